@@ -5,6 +5,7 @@ import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.SourceDataLine;
+import java.nio.ByteBuffer;
 
 /**
  * Audio Processing Unit
@@ -24,6 +25,15 @@ public class APU {
 
     private int frameCounter = 0;
 
+    /**
+     * 卡带上的扩展音源（VRC6等），没有时为null
+     */
+    private Channel expansionChannel;
+
+    public void setExpansionChannel(Channel channel) {
+        this.expansionChannel = channel;
+    }
+
     public int read(int address) {
         return 0;
     }
@@ -74,6 +84,9 @@ public class APU {
         double tnd = 159.79 / (1 / (triangleChannel.getOutput() / 8227 + noiseChannel.getOutput() / 12241 + dmcChannel.getOutput() / 22638) + 100);
 
         double mixed = pulse + tnd;
+        if (expansionChannel != null) {
+            mixed += expansionChannel.getOutput();
+        }
         return mixed;
     }
 
@@ -97,6 +110,46 @@ public class APU {
         }
     }
 
+    /**
+     * 三角波，噪声和DMC通道还没有状态
+     */
+    void saveState(ByteBuffer buffer) {
+        pulseChannel1.saveState(buffer);
+        pulseChannel2.saveState(buffer);
+        buffer.put((byte) ((pulseChannel1Enabled ? 0x01 : 0) | (pulseChannel2Enabled ? 0x02 : 0)
+                | (triangleChannelEnabled ? 0x04 : 0) | (noiseChannelEnabled ? 0x08 : 0) | (dmcChannelEnabled ? 0x10 : 0)));
+        buffer.putInt(frameCounter);
+    }
+
+    void loadState(ByteBuffer buffer) {
+        pulseChannel1.loadState(buffer);
+        pulseChannel2.loadState(buffer);
+        int enabled = buffer.get();
+        pulseChannel1Enabled = (enabled & 0x01) != 0;
+        pulseChannel2Enabled = (enabled & 0x02) != 0;
+        triangleChannelEnabled = (enabled & 0x04) != 0;
+        noiseChannelEnabled = (enabled & 0x08) != 0;
+        dmcChannelEnabled = (enabled & 0x10) != 0;
+        frameCounter = buffer.getInt();
+    }
+
+    /**
+     * 上电: 所有通道回到初始状态，扩展音源由mapper负责
+     */
+    void powerOn() {
+        pulseChannel1 = new PulseChannel();
+        pulseChannel2 = new PulseChannel();
+        triangleChannel = new TriangleChannel();
+        noiseChannel = new NoiseChannel();
+        dmcChannel = new DmcChannel();
+        pulseChannel1Enabled = false;
+        pulseChannel2Enabled = false;
+        triangleChannelEnabled = false;
+        noiseChannelEnabled = false;
+        dmcChannelEnabled = false;
+        frameCounter = 0;
+    }
+
     public void reset() {
 
     }
@@ -1,8 +1,7 @@
 package com.arcsinw.nesemulator;
 
 
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
 /**
  * 2A03的CPU模拟
@@ -24,6 +23,16 @@ public class CPU {
     int clockCount = 0;
     boolean logging = false;
 
+    /**
+     * IRQ输入线，每个中断源占1位，任意一位为1时IRQ有效（电平触发）
+     */
+    private int irqLine = 0;
+
+    /**
+     * 卡带上的mapper（MMC3等）
+     */
+    public static final int IRQ_MAPPER = 0x01;
+
     // endregion
 
     void setBus(CPUBus b) {
@@ -1167,23 +1176,25 @@ public class CPU {
             this.addressingMode = addressingMode;
         }
 
-        private static Map<Integer, Instruction> cache = new HashMap<>();
         private final static Instruction[] values = Instruction.values();
 
-        public static Instruction fromCode(int code) {
-            if (cache.containsKey(code)) {
-                return cache.get(code);
-            }
+        /**
+         * 按操作码索引，每条指令都要查一次，不使用HashMap避免装箱
+         */
+        private final static Instruction[] table = new Instruction[256];
 
+        static {
             for (Instruction instruction : values) {
-                if (instruction.operationCode == code) {
-                    cache.put(code, instruction);
-                    return instruction;
+                if (table[instruction.operationCode] == null) {
+                    table[instruction.operationCode] = instruction;
                 }
             }
+        }
 
-//            Optional<Instruction> instruction = Arrays.stream(values).filter(x -> x.operationCode == code).findFirst();
-//            return instruction.isPresent() ? instruction.get() : NOP_Implied;
+        public static Instruction fromCode(int code) {
+            if (code >= 0 && code < table.length && table[code] != null) {
+                return table[code];
+            }
             return NOP_Implied;
         }
     }
@@ -1275,6 +1286,16 @@ public class CPU {
 
     // region 3种中断
 
+    /**
+     * 上电: 清空周期计数和IRQ线，寄存器由之后的 {@link #reset()} 设置
+     */
+    void powerOn() {
+        cycles = 0;
+        clockCount = 0;
+        operationCode = 0;
+        irqLine = 0;
+    }
+
     /**
      * 复位
      * 中断向量为0xFFFC
@@ -1309,11 +1330,12 @@ public class CPU {
         write(STACK_BASE_ADDRESS + S--, (byte)(PC & 0x00FF));
 
         // 设置状态寄存器（发生中断），将状态寄存器写入栈
+        // 入栈的是设置I之前的值，RTI之后恢复原来的中断禁用状态
         setFlag(StatusFlag.U, 1);
         setFlag(StatusFlag.B, 0);
-        setFlag(StatusFlag.I, 1);
 
         write(STACK_BASE_ADDRESS + S--, P);
+        setFlag(StatusFlag.I, 1);
 
         // 重置PC
         absoluteAddress = 0xFFFA;
@@ -1335,11 +1357,12 @@ public class CPU {
             write(STACK_BASE_ADDRESS + S--, (byte)(PC & 0x00FF));
 
             // 设置状态寄存器（发生中断），将状态寄存器写入栈
+            // 入栈的是设置I之前的值，RTI之后恢复原来的中断禁用状态
             setFlag(StatusFlag.U, 1);
             setFlag(StatusFlag.B, 0);
-            setFlag(StatusFlag.I, 1);
 
             write(STACK_BASE_ADDRESS + S--, P);
+            setFlag(StatusFlag.I, 1);
 
             // 重置PC
             absoluteAddress = 0xFFFE;
@@ -2419,6 +2442,62 @@ public class CPU {
         }
     }
 
+    /**
+     * 设置或清除某个中断源的IRQ信号，中断源自己负责清除（确认中断）
+     * @param source 中断源 {@link #IRQ_MAPPER}
+     * @param active true 有效
+     */
+    public void setIrq(int source, boolean active) {
+        if (active) {
+            irqLine |= source;
+        } else {
+            irqLine &= ~source;
+        }
+    }
+
+    public boolean isIrqActive() {
+        return irqLine != 0;
+    }
+
+    // region 状态
+
+    /**
+     * 保存寄存器和执行状态，CPU总是在指令边界保存
+     */
+    void saveState(ByteBuffer buffer) {
+        buffer.put(A);
+        buffer.put(X);
+        buffer.put(Y);
+        buffer.putInt(PC);
+        buffer.putInt(S);
+        buffer.put(P);
+        buffer.putInt(fetched);
+        buffer.putInt(absoluteAddress);
+        buffer.put(relativeAddress);
+        buffer.putInt(cycles);
+        buffer.putInt(operationCode);
+        buffer.putInt(clockCount);
+        buffer.putInt(irqLine);
+    }
+
+    void loadState(ByteBuffer buffer) {
+        A = buffer.get();
+        X = buffer.get();
+        Y = buffer.get();
+        PC = buffer.getInt();
+        S = buffer.getInt();
+        P = buffer.get();
+        fetched = buffer.getInt();
+        absoluteAddress = buffer.getInt();
+        relativeAddress = buffer.get();
+        cycles = buffer.getInt();
+        operationCode = buffer.getInt();
+        clockCount = buffer.getInt();
+        irqLine = buffer.getInt();
+    }
+
+    // endregion
+
     int fetch() {
         if (INSTRUCTION_ADDRESSING_MODE[operationCode] != AddressingMode.Implied.key &&
                 INSTRUCTION_ADDRESSING_MODE[operationCode] != AddressingMode.Accumulator.key) {
@@ -2429,6 +2508,13 @@ public class CPU {
     }
 
     public void clock() {
+        // 每条指令开始前检查IRQ线
+        if (irqLine != 0 && getFlag(StatusFlag.I) == 0) {
+            irq();
+            clockCount++;
+            return;
+        }
+
         int tmpPC = PC;
         operationCode = read(PC++) & 0x00FF;
         setFlag(StatusFlag.U, 1);
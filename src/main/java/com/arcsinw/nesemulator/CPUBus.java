@@ -3,6 +3,9 @@ package com.arcsinw.nesemulator;
 
 import com.arcsinw.nesemulator.input.Joypad;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  * CPU总线
  * 16bit 0x0000 ~ 0xFFFF 共 64KB
@@ -30,6 +33,11 @@ public class CPUBus {
      */
     public byte[] cpuRAM = new byte[2048];
 
+    /**
+     * 直接修改cpuRAM时需要调用markAll()
+     */
+    private final DirtyPages ramPages = new DirtyPages(2048);
+
     /**
      * 两个控制器
      * 8位 每位代表一个按键的状态（1 按下）A B Select Start Up Down Left Right
@@ -57,8 +65,17 @@ public class CPUBus {
     private boolean isDMACanStart = false;
     // endregion
 
+    /**
+     * 主时钟，每个PPU cycle加1，CPU在 cycles % 3 == 0 时运行
+     */
     private long cycles = 0;
 
+    /**
+     * mapper预约的下一个事件（主时钟），Long.MAX_VALUE表示没有
+     * mapper的计数器根据主时钟直接计算，不需要每个cycle回调
+     */
+    private long mapperEventCycle = Long.MAX_VALUE;
+
     public CPUBus() {
     }
 
@@ -72,6 +89,7 @@ public class CPUBus {
         if (address >= 0x0000 && address <= 0x1FFF) {
             // 0x0000 - 0x1FFF 共8k，但实际CPU RAM只有2K大小，其余都是mirror
             cpuRAM[address & 0x07FF] = byteData;
+            ramPages.mark(address & 0x07FF);
         } else if (address >= 0x2000 && address <= 0x3FFF) {
             // 0x2000 - 0x2007 是PPU的8个寄存器，其余是mirror
             // CPU通过寄存器读写PPU
@@ -86,9 +104,12 @@ public class CPUBus {
 
             isDMAStart = true;
         } else if (address == 0x4016) {
+            // 两个手柄共用 $4016 的选通信号
             joypad1.write(0x4016, data);
+            joypad2.write(0x4016, data);
             controllerState[address & 0x0001] = controller[address & 0x0001];
-        } else if (address >= 0x8000 && address <= 0xFFFF) {
+        } else if (address >= 0x4020 && address <= 0xFFFF) {
+            // 0x4020 - 0x5FFF Expansion, 0x6000 - 0x7FFF SRAM, 0x8000 - 0xFFFF PRG-ROM
             cartridge.cpuWrite(address, data);
         }
     }
@@ -112,7 +133,7 @@ public class CPUBus {
             // 手柄2
             data = joypad2.read();
 
-        } else if (address >= 0x8000 && address <= 0xFFFF) {
+        } else if (address >= 0x4020 && address <= 0xFFFF) {
             data = cartridge.cpuRead(address);
         }
 
@@ -121,9 +142,53 @@ public class CPUBus {
 
     public void setCartridge(Cartridge cartridge) {
         this.cartridge = cartridge;
+        this.mapperEventCycle = Long.MAX_VALUE;
+        this.apu.setExpansionChannel(null);
+        this.cartridge.setBus(this);
         this.ppu.setCartridge(cartridge);
     }
 
+    public APU getApu() {
+        return apu;
+    }
+
+    public DirtyPages getRamPages() {
+        return ramPages;
+    }
+
+    public CPU getCpu() {
+        return cpu;
+    }
+
+    public Cartridge getCartridge() {
+        return cartridge;
+    }
+
+    /**
+     * @return 主时钟（PPU cycle）
+     */
+    public long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * 预约一个mapper事件，主时钟到达cycle时调用{@link com.arcsinw.nesemulator.mapper.AbstractMapper#onScheduledEvent(long)}
+     * 只有一个事件，新的预约会覆盖之前的
+     * @param cycle 主时钟，Long.MAX_VALUE表示取消
+     */
+    public void scheduleMapperEvent(long cycle) {
+        mapperEventCycle = cycle;
+    }
+
+    /**
+     * 设置CPU的IRQ输入
+     * @param source 中断源 {@link CPU#IRQ_MAPPER}
+     * @param active true 有效
+     */
+    public void setIrq(int source, boolean active) {
+        cpu.setIrq(source, active);
+    }
+
     public void setPpu(PPU ppu) {
         this.ppu = ppu;
     }
@@ -169,6 +234,11 @@ public class CPUBus {
         }
 
 
+        if (cycles >= mapperEventCycle) {
+            mapperEventCycle = Long.MAX_VALUE;
+            cartridge.getMapper().onScheduledEvent(cycles);
+        }
+
         if (ppu.nmi) {
             ppu.nmi = false;
             cpu.nmi();
@@ -177,10 +247,141 @@ public class CPUBus {
         cycles++;
     }
 
+    /**
+     * 运行到PPU完成当前帧
+     */
+    public void runFrame() {
+        int frame = ppu.getFrames();
+        while (ppu.getFrames() == frame) {
+            clock();
+        }
+    }
+
+    // region 状态
+
+    void saveState(ByteBuffer buffer) {
+        buffer.put(cpuRAM);
+        saveRegisters(buffer);
+    }
+
+    void loadState(ByteBuffer buffer) {
+        buffer.get(cpuRAM);
+        ramPages.markAll();
+        loadRegisters(buffer);
+    }
+
+    /**
+     * 除了RAM之外的状态
+     */
+    void saveRegisters(ByteBuffer buffer) {
+        buffer.put(controller);
+        buffer.put(controllerState);
+        joypad1.saveState(buffer);
+        joypad2.saveState(buffer);
+        buffer.put(dmaPage);
+        buffer.put(dmaOffset);
+        buffer.put(dmaData);
+        buffer.put((byte) ((isDMAStart ? 0x01 : 0) | (isDMACanStart ? 0x02 : 0)));
+        buffer.putLong(cycles);
+        buffer.putLong(mapperEventCycle);
+    }
+
+    void loadRegisters(ByteBuffer buffer) {
+        buffer.get(controller);
+        buffer.get(controllerState);
+        joypad1.loadState(buffer);
+        joypad2.loadState(buffer);
+        dmaPage = buffer.get();
+        dmaOffset = buffer.get();
+        dmaData = buffer.get();
+        int dma = buffer.get();
+        isDMAStart = (dma & 0x01) != 0;
+        isDMACanStart = (dma & 0x02) != 0;
+        cycles = buffer.getLong();
+        mapperEventCycle = buffer.getLong();
+    }
+
+    // endregion
+
+    // region 复制
+
+    /**
+     * {@link #copyInto(CPUBus)}复制寄存器用的缓冲区，第一次复制时分配
+     */
+    private ByteBuffer copyBuffer;
+
+    /**
+     * 复制出一台新的机器，共享ROM数据，其余状态和这台完全相同
+     * 新机器没有帧完成的监听器，手柄的按键和这台相同
+     */
+    @Override
+    public CPUBus clone() {
+        CPUBus copy = new CPUBus();
+        copy.setCpu(new CPU());
+        copy.setPpu(new PPU());
+        copy.setCartridge(cartridge.fork());
+        copyInto(copy);
+        return copy;
+    }
+
+    /**
+     * 把整个机器的状态复制到另一台装着相同ROM的机器，用于树搜索等需要大量分支的场景
+     * RAM，VRAM，SRAM，CHR-RAM和画面直接复制数组，寄存器经过一个复用的缓冲区，ROM不复制
+     * 在{@link #clock()}之间调用，同一个源不能在多个线程中同时复制
+     */
+    public void copyInto(CPUBus other) {
+        if (copyBuffer == null) {
+            copyBuffer = ByteBuffer.allocate(16 * 1024);
+        }
+        ByteBuffer scratch = copyBuffer;
+
+        System.arraycopy(cpuRAM, 0, other.cpuRAM, 0, cpuRAM.length);
+        other.ramPages.markAll();
+
+        scratch.clear();
+        cpu.saveState(scratch);
+        saveRegisters(scratch);
+        apu.saveState(scratch);
+        scratch.flip();
+        other.cpu.loadState(scratch);
+        other.loadRegisters(scratch);
+        other.apu.loadState(scratch);
+
+        ppu.copyInto(other.ppu, scratch);
+        cartridge.copyInto(other.cartridge, scratch);
+    }
+
+    // endregion
+
+    /**
+     * 重新上电（冷启动）：清空RAM和手柄，PPU的name table，OAM和调色板，APU，
+     * 卡带的CHR-RAM和没有电池的PRG-RAM，mapper回到初始状态，然后reset
+     * 有电池的PRG-RAM保留
+     */
+    public void powerOn() {
+        Arrays.fill(cpuRAM, (byte) 0);
+        ramPages.markAll();
+        Arrays.fill(controller, (byte) 0);
+        Arrays.fill(controllerState, (byte) 0);
+        joypad1.reset();
+        joypad2.reset();
+        dmaPage = 0x00;
+        dmaOffset = 0x00;
+        dmaData = 0x00;
+        isDMAStart = false;
+        isDMACanStart = false;
+        cartridge.powerOn();
+        cpu.powerOn();
+        ppu.powerOn();
+        apu.powerOn();
+        reset();
+    }
+
     public void reset() {
         cpu.reset();
         ppu.reset();
 //        Arrays.fill(cpuRAM, (byte)0xFF);
         cycles = 0;
+        mapperEventCycle = Long.MAX_VALUE;
     }
 }
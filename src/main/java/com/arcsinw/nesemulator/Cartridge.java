@@ -2,10 +2,24 @@ package com.arcsinw.nesemulator;
 
 import com.arcsinw.nesemulator.mapper.AbstractMapper;
 import com.arcsinw.nesemulator.mapper.MapperFactory;
-
+import com.arcsinw.nesemulator.rom.HeaderDatabase;
+import com.arcsinw.nesemulator.rom.RomCache;
+import com.arcsinw.nesemulator.rom.RomImage;
+import com.arcsinw.nesemulator.rom.RomPatcher;
+import com.arcsinw.nesemulator.rom.ZipRomArchive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
 
 /**
  * 卡带
@@ -25,14 +39,19 @@ public class Cartridge {
          */
         Vertical(1),
         /**
-         * 单屏幕镜像
+         * 单屏幕镜像，4个Name table都指向第一块（0x2000）
          */
-        SingleScreen(2),
+        SingleScreenLower(2),
         /**
          * 四屏镜像
          * 具有4个Name table（卡带提供了2KB）
          */
         FourScreen(3),
+        /**
+         * 单屏幕镜像，4个Name table都指向第二块（0x2400）
+         * 只由mapper在运行时设置，文件头无法表示
+         */
+        SingleScreenUpper(4),
         ;
 
         private int key;
@@ -40,53 +59,267 @@ public class Cartridge {
         Mirror(int k) {
             key = k;
         }
+
+        public int getKey() {
+            return key;
+        }
+
+        public static Mirror fromKey(int k) {
+            for (Mirror mirror : values()) {
+                if (mirror.key == k) {
+                    return mirror;
+                }
+            }
+            return Horizontal;
+        }
     }
 
     /**
      * 文件头，16字节
+     * 只依赖文件头本身，可以在不加载PRG/CHR的情况下单独解析
      */
-    class Header {
-        private final byte[] NES_MAGIC_STRING = new byte[] {0x4E, 0x45, 0x53, 0x1A};
+    public static class Header {
+        private static final byte[] NES_MAGIC_STRING = new byte[] {0x4E, 0x45, 0x53, 0x1A};
+
+        /**
+         * 文件头长度
+         */
+        public static final int SIZE = 16;
 
         /**
          * Number of 16kB ROM banks, also named PRG
          */
-        int prgBanksCount;
+        public int prgBanksCount;
 
         /**
          * Number of 8kB VROM banks, also named CHR
          */
-        int chrBanksCount;
+        public int chrBanksCount;
 
         /**
          * Id of mapper
          */
-        int mapperNo;
+        public int mapperNo;
+
+        /**
+         * NES 2.0 submapper，iNES 1.0 为0
+         */
+        public int submapper;
 
-        boolean trainerFlag;
+        public boolean trainerFlag;
+
+        /**
+         * 卡带带有电池，0x6000 - 0x7FFF 的SRAM需要保存
+         */
+        public boolean batteryFlag;
 
         /**
          * Mirroring: 0: horizontal (vertical arrangement) (CIRAM A10 = PPU A11)
          *            1: vertical (horizontal arrangement) (CIRAM A10 = PPU A10)
+         * byte 6 bit 3 为1时是四屏镜像，忽略bit 0
          */
-        Mirror mirror;
+        public Mirror mirror;
+
+        /**
+         * 文件头是否为 NES 2.0 格式
+         */
+        public boolean nes20;
+
+        /**
+         * PRG-ROM / CHR-ROM 字节数
+         * NES 2.0 的指数表示法可以表示不是16KB/8KB整数倍的大小
+         */
+        public int prgRomSize;
+        public int chrRomSize;
+
+        /**
+         * PRG-RAM（易失）/ PRG-NVRAM（电池供电）字节数
+         */
+        public int prgRamSize;
+        public int prgNvramSize;
+
+        /**
+         * CHR-RAM（易失）/ CHR-NVRAM（电池供电）字节数
+         */
+        public int chrRamSize;
+        public int chrNvramSize;
+
+        /**
+         * CPU/PPU 时序
+         * 0: NTSC; 1: PAL; 2: 多区域; 3: Dendy
+         */
+        public int timingMode;
+
+        /**
+         * 主机类型 byte 7 bit 0-1
+         * 0: NES/Famicom; 1: Vs. System; 2: PlayChoice-10; 3: 扩展类型（见 extendedConsoleType）
+         */
+        public int consoleType;
+
+        /**
+         * NES 2.0 byte 13: Vs. System 类型或扩展主机类型
+         */
+        public int extendedConsoleType;
+
+        /**
+         * NES 2.0 byte 14: 其他ROM的数量
+         */
+        public int miscRomsCount;
+
+        /**
+         * NES 2.0 byte 15: 默认的输入设备
+         */
+        public int defaultExpansionDevice;
 
         public Header(byte[] bytes) {
             int length = bytes.length;
-            if (length != 16) return;
+            if (length != SIZE) return;
 
             // 检查文件头是否为NES_MAGIC_STRING
             for (int i = 0; i < 4; i++) {
                 check(bytes[i] == NES_MAGIC_STRING[i], INVALID_NES_ROM_MESSAGE);
             }
 
+            nes20 = (bytes[7] & 0x0C) == 0x08;
+
             prgBanksCount = bytes[4] & 0xFF;
             chrBanksCount = bytes[5] & 0xFF;
 
-            mapperNo = ((bytes[7] & 0xF0) | (bytes[6] >>> 4)) & 0x0FFF; // 确保是正数
+            mapperNo = ((bytes[7] & 0xF0) | ((bytes[6] & 0xF0) >>> 4)) & 0x0FFF; // 确保是正数
+
+            // 旧的dump工具会在 byte 7 - 15 写入 "DiskDude!" 之类的垃圾数据，此时 byte 7 不可信
+            if (!nes20 && (bytes[12] | bytes[13] | bytes[14] | bytes[15]) != 0) {
+                mapperNo = (bytes[6] & 0xF0) >>> 4;
+            }
 
             mirror = (bytes[6] & 0x01) != 0 ? Mirror.Vertical : Mirror.Horizontal;
+            if ((bytes[6] & 0x08) != 0) {
+                mirror = Mirror.FourScreen;
+            }
+            batteryFlag = (bytes[6] & 0x02) != 0;
             trainerFlag = (bytes[6] & 0x04) != 0;
+            consoleType = bytes[7] & 0x03;
+
+            if (nes20) {
+                parseNes20(bytes);
+            } else {
+                prgRomSize = prgBanksCount * 16384;
+                chrRomSize = chrBanksCount * 8192;
+
+                // iNES 1.0 没有可靠的RAM大小，保持8KB PRG-RAM、8KB CHR-RAM
+                if (batteryFlag) {
+                    prgNvramSize = 8192;
+                } else {
+                    prgRamSize = 8192;
+                }
+                chrRamSize = chrBanksCount == 0 ? 8192 : 0;
+            }
+        }
+
+        /**
+         * https://wiki.nesdev.com/w/index.php/NES_2.0
+         */
+        private void parseNes20(byte[] bytes) {
+            // byte 8: mapper bit 8-11, submapper
+            mapperNo |= (bytes[8] & 0x0F) << 8;
+            submapper = (bytes[8] & 0xF0) >>> 4;
+
+            // byte 9: PRG/CHR-ROM 大小的高4位
+            prgRomSize = romSize(bytes[4] & 0xFF, bytes[9] & 0x0F, 16384);
+            chrRomSize = romSize(bytes[5] & 0xFF, (bytes[9] & 0xF0) >>> 4, 8192);
+            prgBanksCount = prgRomSize / 16384;
+            chrBanksCount = chrRomSize / 8192;
+
+            // byte 10, 11: RAM大小 64 << shift
+            prgRamSize = ramSize(bytes[10] & 0x0F);
+            prgNvramSize = ramSize((bytes[10] & 0xF0) >>> 4);
+            chrRamSize = ramSize(bytes[11] & 0x0F);
+            chrNvramSize = ramSize((bytes[11] & 0xF0) >>> 4);
+
+            timingMode = bytes[12] & 0x03;
+            extendedConsoleType = bytes[13] & 0xFF;
+            miscRomsCount = bytes[14] & 0x03;
+            defaultExpansionDevice = bytes[15] & 0x3F;
+        }
+
+        /**
+         * NES 2.0 非指数表示法能表示的最大PRG-ROM是 0xEFF * 16KB，不到64MB
+         */
+        private static final int MAX_ROM_SIZE = 64 * 1024 * 1024;
+
+        /**
+         * @param lsb byte 4 或 byte 5
+         * @param msb byte 9 中对应的4位
+         * @param unit 16KB 或 8KB
+         */
+        private static int romSize(int lsb, int msb, int unit) {
+            long size;
+            if (msb == 0x0F) {
+                // 指数表示法 EEEEEEMM: 2^E * (MM * 2 + 1)，E 最大为63，先排除会溢出的指数
+                int exponent = lsb >>> 2;
+                int multiplier = (lsb & 0x03) * 2 + 1;
+                size = exponent < 32 ? (1L << exponent) * multiplier : Long.MAX_VALUE;
+            } else {
+                size = (long) ((msb << 8) | lsb) * unit;
+            }
+            check(size <= MAX_ROM_SIZE, String.format("%s: PRG/CHR-ROM大小超过%dMB", INVALID_NES_ROM_MESSAGE, MAX_ROM_SIZE >> 20));
+            return (int) size;
+        }
+
+        private static int ramSize(int shift) {
+            return shift == 0 ? 0 : 64 << shift;
+        }
+
+        /**
+         * @param bytes 文件的前16字节
+         * @return 是否以 NES_MAGIC_STRING 开头
+         */
+        public static boolean isNesHeader(byte[] bytes) {
+            if (bytes.length < SIZE) {
+                return false;
+            }
+
+            for (int i = 0; i < 4; i++) {
+                if (bytes[i] != NES_MAGIC_STRING[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return 文件头之后到PRG之前的字节数（trainer）
+         */
+        public int getTrainerSize() {
+            return trainerFlag ? 512 : 0;
+        }
+
+        /**
+         * @return PRG-ROM 字节数
+         */
+        public int getPrgSize() {
+            return prgRomSize;
+        }
+
+        /**
+         * @return CHR-ROM 字节数，0表示卡带使用CHR-RAM
+         */
+        public int getChrSize() {
+            return chrRomSize;
+        }
+
+        /**
+         * @return 0x6000 - 0x7FFF 上的 PRG-RAM 总字节数（易失 + 电池供电）
+         */
+        public int getPrgRamTotalSize() {
+            return prgRamSize + prgNvramSize;
+        }
+
+        /**
+         * @return CHR-RAM 总字节数（易失 + 电池供电）
+         */
+        public int getChrRamTotalSize() {
+            return chrRamSize + chrNvramSize;
         }
 
         @Override
@@ -95,13 +328,20 @@ public class Cartridge {
                     "romBanksCount=" + prgBanksCount +
                     ", vromBanksCount=" + chrBanksCount +
                     ", mapperNo=" + mapperNo +
+                    (nes20 ? ", submapper=" + submapper : "") +
                     ", trainerFlag=" + trainerFlag +
+                    ", batteryFlag=" + batteryFlag +
                     ", mirrorFlag=" + mirror.key +
+                    (nes20 ? ", prgRam=" + prgRamSize + ", prgNvram=" + prgNvramSize +
+                            ", chrRam=" + chrRamSize + ", chrNvram=" + chrNvramSize +
+                            ", timingMode=" + timingMode : "") +
                     " }";
         }
     }
 
-    private final String INVALID_NES_ROM_MESSAGE = "非法的nes文件";
+    private static final String INVALID_NES_ROM_MESSAGE = "非法的nes文件";
+
+    private static final String UNSUPPORTED_MAPPER_MESSAGE = "不支持的Mapper";
 
     // region 字段
 
@@ -111,27 +351,39 @@ public class Cartridge {
 
     private byte[] trainer;
 
+    /**
+     * 共享的只读ROM数据
+     */
+    private RomImage romImage;
+
     /**
      * Program
      * 16KB per bank
+     * 指向romImage中的共享数组，只读
      */
     byte[] prg;
 
     /**
      * Character
      * 8KB per bank
+     * CHR-ROM时指向romImage中的共享数组（只读），CHR-RAM时为实例自己的数组
      */
     public byte[] chr;
 
+    private boolean chrRam;
+
+    private List<String> headerOverrides = Collections.emptyList();
+
     /**
      * SRAM
      * 0x6000 - 0x7FFF
+     * 大小由文件头决定，没有PRG-RAM的卡带长度为0
      */
     byte[] sram = new byte[8192];
 
     // endregion
 
-    void check(boolean result, String errorMessage) {
+    static void check(boolean result, String errorMessage) {
         if (!result) {
             throw new Error(errorMessage);
         }
@@ -142,6 +394,14 @@ public class Cartridge {
             if (mapper != null) {
                 mapper.write(address, data);
             }
+        } else if (address >= 0x6000 && address <= 0x7FFF) {
+            if (mapper != null) {
+                mapper.writePrgRam(address, data);
+            }
+        } else if (address >= 0x4020 && address <= 0x5FFF) {
+            if (mapper != null) {
+                mapper.writeExpansion(address, data);
+            }
         }
     }
 
@@ -162,6 +422,14 @@ public class Cartridge {
             if (mapper != null) {
                 return mapper.read(address);
             }
+        } else if (address >= 0x6000 && address <= 0x7FFF) {
+            if (mapper != null) {
+                return mapper.readPrgRam(address);
+            }
+        } else if (address >= 0x4020 && address <= 0x5FFF) {
+            if (mapper != null) {
+                return mapper.readExpansion(address);
+            }
         }
 
         return 0x00;
@@ -174,8 +442,13 @@ public class Cartridge {
      */
     public void ppuWrite(int address, byte data) {
         // Pattern Table  0x0000 - 0x1FFF
-        if (address >= 0x0000 && address <= 0x1FFF) {
-            chr[address] = data;
+        // CHR-ROM 是共享的，只有CHR-RAM可写
+        if (address >= 0x0000 && address <= 0x1FFF && chrRam) {
+            if (mapper != null) {
+                mapper.write(address, data);
+            } else if (address < chr.length) {
+                chr[address] = data;
+            }
         }
     }
 
@@ -186,165 +459,271 @@ public class Cartridge {
      */
     public byte ppuRead(int address) {
         if (address >= 0x0000 && address <= 0x1FFF) {
-            return chr[address];
+            // 经过mapper的CHR bank切换
+            if (mapper != null) {
+                return mapper.read(address);
+            }
+            if (address < chr.length) {
+                return chr[address];
+            }
         }
 
         return 0x00;
     }
 
     public Cartridge(InputStream inputStream) throws IOException {
-        byte[] headerBytes = new byte[16];
-
-        inputStream.read(headerBytes, 0, 16);
-        header = new Header(headerBytes);
+        loadRom(inputStream);
+    }
 
-        if (header.trainerFlag) {
-            trainer = new byte[512];
-            inputStream.read(trainer, 0, 512);
-        }
+    public Cartridge(String filePath) throws IOException {
+        loadRom(filePath);
+    }
 
-        int prgCount = header.prgBanksCount;
-        prg = new byte[prgCount * 16384];
-        for (int i = 0; i < prgCount; i++) {
-            inputStream.read(prg, i * 16384, 16384);
-        }
+    public Cartridge() {
 
-        int chrCount = header.chrBanksCount;
-        if (chrCount == 0) {
-            chr = new byte[8192];
-        } else {
-            chr = new byte[chrCount * 8192];
-            for (int i = 0; i < chrCount; i++) {
-                inputStream.read(chr, i * 8192, 8192);
-            }
-        }
+    }
 
-        mapper = MapperFactory.getMapper(header.mapperNo);
-        if (mapper != null) {
-            mapper.setPrg(prg);
-            mapper.setChr(chr);
-            mapper.setSram(sram);
-            mapper.reset();
-        }
+    public Cartridge(InputStream inputStream, List<Path> patches) throws IOException {
+        loadRom(inputStream, patches);
     }
 
-    public Cartridge(String filePath) throws IOException {
-//        InputStream inputStream = new FileInputStream(filePath);
-        InputStream inputStream = Cartridge.class.getResourceAsStream(filePath);
+    public void loadRom(InputStream inputStream) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
 
         byte[] headerBytes = new byte[16];
-        inputStream.read(headerBytes, 0, 16);
+        dataInputStream.readFully(headerBytes, 0, 16);
         header = new Header(headerBytes);
 
+        byte[] trainerBytes = null;
         if (header.trainerFlag) {
-            trainer = new byte[512];
-            inputStream.read(trainer, 0, 512);
+            trainerBytes = new byte[512];
+            dataInputStream.readFully(trainerBytes, 0, 512);
         }
 
-        int prgCount = header.prgBanksCount;
-        prg = new byte[prgCount * 16384];
-        for (int i = 0; i < prgCount; i++) {
-            inputStream.read(prg, i * 16384, 16384);
-        }
+        byte[] prgRom = new byte[header.getPrgSize()];
+        dataInputStream.readFully(prgRom);
 
-        int chrCount = header.chrBanksCount;
-        if (chrCount == 0) {
-            chr = new byte[8192];
-        } else {
-            chr = new byte[chrCount * 8192];
-            for (int i = 0; i < chrCount; i++) {
-                inputStream.read(chr, i * 8192, 8192);
-            }
-        }
+        byte[] chrRom = new byte[header.getChrSize()];
+        dataInputStream.readFully(chrRom);
 
-        mapper = MapperFactory.getMapper(header.mapperNo);
-        if (mapper != null) {
-            mapper.setPrg(prg);
-            mapper.setChr(chr);
-            mapper.setSram(sram);
-            mapper.reset();
-        }
+        // PRG/CHR-ROM 由所有实例共享
+        load(header, trainerBytes, RomCache.intern(prgRom, chrRom));
     }
 
-    public Cartridge() {
+    /**
+     * 加载原始ROM并按顺序应用补丁（IPS / BPS / UPS）
+     * 补丁的结果以 原始ROM + 补丁 的SHA-1 缓存在{@link RomCache}中，同一组补丁只应用一次
+     * @param inputStream 原始.nes文件
+     * @param patches 补丁文件，按顺序应用
+     */
+    public void loadRom(InputStream inputStream, List<Path> patches) throws IOException {
+        byte[] source = readAll(inputStream);
+        String key = RomPatcher.cacheKey(source, patches);
 
-    }
+        RomCache.Patched patched = RomCache.getPatched(key);
+        if (patched == null) {
+            byte[] target = RomPatcher.apply(source, patches);
+            DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(target));
 
-    public void loadRom(InputStream inputStream) throws IOException {
-        byte[] headerBytes = new byte[16];
+            Header patchedHeader = new Header(Arrays.copyOf(target, 16));
+            int headerSize = 16 + patchedHeader.getTrainerSize();
+            dataInputStream.skipBytes(headerSize);
 
-        inputStream.read(headerBytes, 0, 16);
-        header = new Header(headerBytes);
+            byte[] prgRom = new byte[patchedHeader.getPrgSize()];
+            dataInputStream.readFully(prgRom);
+            byte[] chrRom = new byte[patchedHeader.getChrSize()];
+            dataInputStream.readFully(chrRom);
 
-        if (header.trainerFlag) {
-            trainer = new byte[512];
-            inputStream.read(trainer, 0, 512);
+            patched = RomCache.putPatched(key, Arrays.copyOf(target, headerSize), prgRom, chrRom);
         }
 
-        int prgCount = header.prgBanksCount;
-        prg = new byte[prgCount * 16384];
-        for (int i = 0; i < prgCount; i++) {
-            inputStream.read(prg, i * 16384, 16384);
+        byte[] headerBytes = patched.getHeader();
+        header = new Header(Arrays.copyOf(headerBytes, 16));
+        byte[] trainerBytes = header.trainerFlag ? Arrays.copyOfRange(headerBytes, 16, headerBytes.length) : null;
+        load(header, trainerBytes, patched.getImage());
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while ((n = inputStream.read(buffer)) > 0) {
+            outputStream.write(buffer, 0, n);
         }
+        return outputStream.toByteArray();
+    }
 
-        int chrCount = header.chrBanksCount;
-        if (chrCount == 0) {
-            chr = new byte[8192];
+    /**
+     * 根据文件头分配RAM并创建mapper
+     */
+    private void load(Header header, byte[] trainerBytes, RomImage image) {
+        this.header = header;
+        this.trainer = trainerBytes;
+
+        // 用内置数据库修正错误的文件头
+        CRC32 crc32 = new CRC32();
+        crc32.update(image.getPrg());
+        crc32.update(image.getChr());
+        headerOverrides = HeaderDatabase.getInstance().correct(header, (int) crc32.getValue());
+
+        allocate(image);
+    }
+
+    /**
+     * 分配RAM并创建mapper，ROM数据直接使用image中的数组
+     */
+    private void allocate(RomImage image) {
+        romImage = image;
+        prg = romImage.getPrg();
+
+        if (header.getChrSize() == 0) {
+            // CHR-RAM 每个实例单独分配，大小由文件头决定
+            int chrRamSize = header.getChrRamTotalSize();
+            chr = new byte[chrRamSize == 0 ? 8192 : chrRamSize];
+            chrRam = true;
         } else {
-            chr = new byte[chrCount * 8192];
-            for (int i = 0; i < chrCount; i++) {
-                inputStream.read(chr, i * 8192, 8192);
-            }
+            chr = romImage.getChr();
+            chrRam = false;
         }
 
-        mapper = MapperFactory.getMapper(header.mapperNo);
-        if (mapper != null) {
-            mapper.setPrg(prg);
-            mapper.setChr(chr);
-            mapper.setSram(sram);
-            mapper.reset();
-        }
+        // PRG-RAM 同样按文件头分配，NES 2.0 卡带可能没有或者大于8KB
+        sram = new byte[header.getPrgRamTotalSize()];
+
+        mapper = MapperFactory.getMapper(header.mapperNo, header.submapper);
+        check(mapper != null, UNSUPPORTED_MAPPER_MESSAGE + ": " + header.mapperNo);
+        mapper.setPrg(prg);
+        mapper.setChr(chr);
+        mapper.setSram(sram);
+        mapper.setMirror(header.mirror);
+        mapper.reset();
     }
 
     public void loadRom(String filePath) throws IOException {
 //        InputStream inputStream = new FileInputStream(filePath);
-        InputStream inputStream = Cartridge.class.getResourceAsStream(filePath);
+        try (InputStream inputStream = Cartridge.class.getResourceAsStream(filePath)) {
+            check(inputStream != null, INVALID_NES_ROM_MESSAGE + ": " + filePath);
+            loadRom(inputStream);
+        }
+    }
 
-        byte[] headerBytes = new byte[16];
+    /**
+     * 从文件系统加载，路径可以是 .nes 文件，或者 path.zip!entry.nes（没有 !entry 时加载压缩包中的第一个ROM）
+     */
+    public static Cartridge fromFile(String path) throws IOException {
+        if (ZipRomArchive.isArchivePath(path)) {
+            return ZipRomArchive.loadPath(path);
+        }
+        try (InputStream inputStream = new FileInputStream(path)) {
+            return new Cartridge(inputStream);
+        }
+    }
 
-        inputStream.read(headerBytes, 0, 16);
-        header = new Header(headerBytes);
+    /**
+     * @return 加载时根据文件头数据库修改的内容，由调用者决定是否输出
+     */
+    public List<String> getHeaderOverrides() {
+        return headerOverrides;
+    }
 
-        if (header.trainerFlag) {
-            trainer = new byte[512];
-            inputStream.read(trainer, 0, 512);
+    public AbstractMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * @return 当前的镜像类型，mapper可以在运行时切换
+     */
+    public Mirror getMirror() {
+        return mapper != null ? mapper.getMirror() : header.mirror;
+    }
+
+    public void setBus(CPUBus bus) {
+        if (mapper != null) {
+            mapper.setBus(bus);
         }
+    }
+
+    public RomImage getRomImage() {
+        return romImage;
+    }
+
+    public byte[] getSram() {
+        return sram;
+    }
 
-        int prgCount = header.prgBanksCount;
-        prg = new byte[prgCount * 16384];
-        for (int i = 0; i < prgCount; i++) {
-            inputStream.read(prg, i * 16384, 16384);
+    /**
+     * 保存SRAM，CHR-RAM和mapper的状态，ROM部分不保存
+     */
+    void saveState(ByteBuffer buffer) {
+        buffer.put(sram);
+        if (chrRam) {
+            buffer.put(chr);
         }
+        mapper.saveState(buffer);
+    }
 
-        int chrCount = header.chrBanksCount;
-        if (chrCount == 0) {
-            chr = new byte[8192];
-        } else {
-            chr = new byte[chrCount * 8192];
-            for (int i = 0; i < chrCount; i++) {
-                inputStream.read(chr, i * 8192, 8192);
-            }
+    void loadState(ByteBuffer buffer) {
+        buffer.get(sram);
+        mapper.getSramPages().markAll();
+        if (chrRam) {
+            buffer.get(chr);
+            mapper.getChrPages().markAll();
         }
+        mapper.loadState(buffer);
+    }
 
-        mapper = MapperFactory.getMapper(header.mapperNo);
-        if (mapper != null) {
-            mapper.setPrg(prg);
-            mapper.setChr(chr);
-            mapper.setSram(sram);
-            mapper.reset();
+    /**
+     * 上电: 易失的PRG-RAM和CHR-RAM清零，mapper回到初始状态
+     * 有电池时整个PRG-RAM保留（NES 2.0 同时有RAM和NVRAM时无法区分两部分）
+     */
+    void powerOn() {
+        if (!header.batteryFlag && header.prgNvramSize == 0) {
+            Arrays.fill(sram, (byte) 0);
+            mapper.getSramPages().markAll();
+        }
+        if (chrRam && header.chrNvramSize == 0) {
+            Arrays.fill(chr, (byte) 0);
+            mapper.getChrPages().markAll();
         }
+        mapper.reset();
     }
 
-}
+    /**
+     * 复制一张卡带，共享文件头和ROM数据，SRAM，CHR-RAM和mapper单独创建
+     * 新卡带处于上电状态，用{@link #copyInto(Cartridge, ByteBuffer)}复制状态
+     */
+    public Cartridge fork() {
+        Cartridge copy = new Cartridge();
+        copy.header = header;
+        copy.trainer = trainer;
+        copy.headerOverrides = headerOverrides;
+        copy.allocate(romImage);
+        return copy;
+    }
 
+    /**
+     * 把SRAM，CHR-RAM和mapper的状态复制到另一张相同ROM的卡带
+     * @param scratch 复制mapper寄存器用的缓冲区
+     */
+    void copyInto(Cartridge other, ByteBuffer scratch) {
+        check(other.romImage == romImage, "只能在相同ROM的卡带之间复制状态");
+
+        System.arraycopy(sram, 0, other.sram, 0, sram.length);
+        other.mapper.getSramPages().markAll();
+        if (chrRam) {
+            System.arraycopy(chr, 0, other.chr, 0, chr.length);
+            other.mapper.getChrPages().markAll();
+        }
 
+        scratch.clear();
+        mapper.saveState(scratch);
+        scratch.flip();
+        other.mapper.loadState(scratch);
+    }
+
+    /**
+     * @return true 卡带使用CHR-RAM（可写）
+     */
+    public boolean isChrRam() {
+        return chrRam;
+    }
+}
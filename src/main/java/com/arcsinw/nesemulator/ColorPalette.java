@@ -41,4 +41,16 @@ public class ColorPalette {
             { 0x9F, 0xFF, 0xF3 }, { 0xDD, 0xDD, 0xDD },
             { 0x11, 0x11, 0x11 }, { 0x11, 0x11, 0x11 }
     };
+
+    /**
+     * 每种颜色的亮度 0 - 255 (BT.601: 0.299 R + 0.587 G + 0.114 B)
+     */
+    public static final int[] LUMINANCE = new int[COLOR_PALETTE.length];
+
+    static {
+        for (int i = 0; i < COLOR_PALETTE.length; i++) {
+            int[] rgb = COLOR_PALETTE[i];
+            LUMINANCE[i] = (299 * rgb[0] + 587 * rgb[1] + 114 * rgb[2] + 500) / 1000;
+        }
+    }
 }
@@ -0,0 +1,140 @@
+package com.arcsinw.nesemulator;
+
+import com.arcsinw.nesemulator.input.Joypad;
+
+import java.io.IOException;
+
+/**
+ * 一台完整的NES：CPU，PPU，APU，总线，卡带和两个手柄
+ * 不依赖AWT，没有静态状态，一个进程里可以同时运行多台，每台只能在一个线程中使用
+ */
+public class Console {
+
+    /**
+     * 每个CPU cycle对应3个PPU cycle（主时钟）
+     */
+    private static final int PPU_CYCLES_PER_CPU_CYCLE = 3;
+
+    private final CPUBus bus;
+
+    public Console(Cartridge cartridge) {
+        bus = new CPUBus();
+        bus.setCpu(new CPU());
+        bus.setPpu(new PPU());
+        insert(cartridge);
+    }
+
+    /**
+     * @param romPath classpath中的ROM {@link Cartridge#loadRom(String)}
+     */
+    public Console(String romPath) throws IOException {
+        this(new Cartridge(romPath));
+    }
+
+    private Console(CPUBus bus) {
+        this.bus = bus;
+    }
+
+    /**
+     * 换上另一张卡带并reset
+     */
+    public void insert(Cartridge cartridge) {
+        bus.setCartridge(cartridge);
+        bus.reset();
+    }
+
+    // region 运行
+
+    /**
+     * 运行到PPU完成当前帧
+     */
+    public void stepFrame() {
+        bus.runFrame();
+    }
+
+    /**
+     * 运行n个CPU cycle
+     * CPU每次执行一整条指令，所以指令的其余cycle会在之后的调用中继续计数
+     */
+    public void stepCycles(long n) {
+        for (long i = n * PPU_CYCLES_PER_CPU_CYCLE; i > 0; i--) {
+            bus.clock();
+        }
+    }
+
+    /**
+     * 按下reset键，RAM保留
+     */
+    public void reset() {
+        bus.reset();
+    }
+
+    /**
+     * 重新上电 {@link CPUBus#powerOn()}
+     */
+    public void powerOn() {
+        bus.powerOn();
+    }
+
+    // endregion
+
+    /**
+     * 复制出一台状态完全相同的机器，共享ROM数据 {@link CPUBus#clone()}
+     */
+    public Console fork() {
+        return new Console(bus.clone());
+    }
+
+    /**
+     * 把状态复制到另一台装着相同ROM的机器 {@link CPUBus#copyInto(CPUBus)}
+     */
+    public void copyInto(Console other) {
+        bus.copyInto(other.bus);
+    }
+
+    // region 设备
+
+    public CPUBus getBus() {
+        return bus;
+    }
+
+    public CPU getCpu() {
+        return bus.getCpu();
+    }
+
+    public PPU getPpu() {
+        return bus.ppu;
+    }
+
+    public APU getApu() {
+        return bus.getApu();
+    }
+
+    public Cartridge getCartridge() {
+        return bus.getCartridge();
+    }
+
+    public Joypad getJoypad1() {
+        return bus.joypad1;
+    }
+
+    public Joypad getJoypad2() {
+        return bus.joypad2;
+    }
+
+    /**
+     * @return 调色板索引 [240][256] {@link PPU#getScreen()}
+     */
+    public byte[][] getScreen() {
+        return bus.ppu.getScreen();
+    }
+
+    /**
+     * @return 已完成的帧数
+     */
+    public int getFrames() {
+        return bus.ppu.getFrames();
+    }
+
+    // endregion
+}
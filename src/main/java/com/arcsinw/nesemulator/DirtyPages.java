@@ -0,0 +1,42 @@
+package com.arcsinw.nesemulator;
+
+/**
+ * 记录一块内存中被写过的页（256字节），{@link StateHash}只重新计算这些页
+ * 每页一个版本号，写入时加1，使用者各自保存上次看到的版本，可以有多个使用者
+ */
+public final class DirtyPages {
+
+    public static final int PAGE_SHIFT = 8;
+
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private final int[] versions;
+
+    /**
+     * @param size 内存大小（字节）
+     */
+    public DirtyPages(int size) {
+        versions = new int[Math.max((size + PAGE_SIZE - 1) >>> PAGE_SHIFT, 1)];
+    }
+
+    public void mark(int address) {
+        versions[address >>> PAGE_SHIFT]++;
+    }
+
+    /**
+     * 整块内存被替换（读档，上电）
+     */
+    public void markAll() {
+        for (int i = 0; i < versions.length; i++) {
+            versions[i]++;
+        }
+    }
+
+    public int getPageCount() {
+        return versions.length;
+    }
+
+    public int getVersion(int page) {
+        return versions[page];
+    }
+}
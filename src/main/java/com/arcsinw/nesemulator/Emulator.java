@@ -2,6 +2,8 @@ package com.arcsinw.nesemulator;
 
 import com.arcsinw.nesemulator.input.Joypad;
 import com.arcsinw.nesemulator.input.XboxController;
+import com.arcsinw.nesemulator.netplay.RollbackSession;
+import com.arcsinw.nesemulator.netplay.UdpTransport;
 import com.arcsinw.nesemulator.ui.*;
 
 import javax.swing.*;
@@ -11,16 +13,15 @@ import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.Arrays;
 import java.util.HashMap;
 
 public class Emulator extends JFrame implements PPU.FrameRenderCompletedEventListener {
-    private static CPU cpu = new CPU();
-    private static PPU ppu = new PPU();
-    private static CPUBus cpuBus = new CPUBus();
-    private static XboxController controller = new XboxController();
+    private final Console console;
+
+    private final XboxController controller = new XboxController();
 
-    private static Cartridge cartridge = null;
     private BufferedImage image = new BufferedImage(256, 240, BufferedImage.TYPE_INT_RGB);
 
     private Panel panel = new Panel();
@@ -36,8 +37,31 @@ public class Emulator extends JFrame implements PPU.FrameRenderCompletedEventLis
 
     private static final int FPS = 60;
 
+    /**
+     * 倒带占用的内存上限，每帧的差异压缩后通常只有几KB，64MB可以保存几分钟
+     */
+    private static final long REWIND_MEMORY_LIMIT = 64L * 1024 * 1024;
+
+    private static final int REWIND_KEY = KeyEvent.VK_BACK_SPACE;
+
     // endregion
 
+    private final Rewind rewind;
+
+    private final RunAhead runAhead;
+
+    /**
+     * 联机时本地键盘的按键，每帧由RollbackSession送到对应的手柄
+     */
+    private final Joypad keyboard = new Joypad();
+
+    private RollbackSession netplay = null;
+
+    /**
+     * 按住倒带键时为true
+     */
+    private volatile boolean rewinding = false;
+
     private void addMenuBar() {
         MenuBar menuBar = new MenuBar();
 
@@ -74,6 +98,22 @@ public class Emulator extends JFrame implements PPU.FrameRenderCompletedEventLis
             menuBar.add(debugMenu);
         }
 
+        {
+            Menu optionMenu = new Menu("选项");
+            {
+                Menu runAheadMenu = new Menu("Run-ahead");
+                for (int frames = 0; frames <= 3; frames++) {
+                    final int runAheadFrames = frames;
+                    MenuItem runAheadMenuItem = new MenuItem(frames == 0 ? "关闭" : frames + " 帧");
+                    runAheadMenuItem.addActionListener(e -> runAhead.setFrames(runAheadFrames));
+                    runAheadMenu.add(runAheadMenuItem);
+                }
+                optionMenu.add(runAheadMenu);
+            }
+
+            menuBar.add(optionMenu);
+        }
+
         {
             Menu helpMenu = new Menu("帮助");
             {
@@ -105,7 +145,12 @@ public class Emulator extends JFrame implements PPU.FrameRenderCompletedEventLis
         }
     };
 
-    public Emulator() {
+    public Emulator(Console console) {
+        this.console = console;
+        this.rewind = new Rewind(console.getBus(), REWIND_MEMORY_LIMIT);
+        this.runAhead = new RunAhead(console.getBus(), 0);
+        console.getPpu().addFrameRenderCompletedEventListener(this);
+
         setTitle("NesEmulator");
         setBackground(Color.black);
         addMenuBar();
@@ -121,8 +166,10 @@ public class Emulator extends JFrame implements PPU.FrameRenderCompletedEventLis
             public void keyPressed(KeyEvent e) {
                 int keyCode = e.getKeyCode();
 
-                if (KEYBOARD_MAPPING.containsKey(keyCode)) {
-                    cpuBus.joypad1.setButton(KEYBOARD_MAPPING.get(keyCode), 1);
+                if (keyCode == REWIND_KEY) {
+                    rewinding = true;
+                } else if (KEYBOARD_MAPPING.containsKey(keyCode)) {
+                    (netplay != null ? keyboard : console.getJoypad1()).setButton(KEYBOARD_MAPPING.get(keyCode), 1);
                 }
             }
 
@@ -130,15 +177,18 @@ public class Emulator extends JFrame implements PPU.FrameRenderCompletedEventLis
             public void keyReleased(KeyEvent e) {
                 int keyCode = e.getKeyCode();
 
-                if (KEYBOARD_MAPPING.containsKey(keyCode)) {
-                    cpuBus.joypad1.setButton(KEYBOARD_MAPPING.get(keyCode), 0);
+                if (keyCode == REWIND_KEY) {
+                    rewinding = false;
+                } else if (KEYBOARD_MAPPING.containsKey(keyCode)) {
+                    (netplay != null ? keyboard : console.getJoypad1()).setButton(KEYBOARD_MAPPING.get(keyCode), 0);
                 }
             }
         });
 
         controller.addListener((button, pressed) -> {
-            if (XboxController.XBOXCONTROLLER_MAPPING.containsKey(button)) {
-                cpuBus.joypad2.setButton(XboxController.XBOXCONTROLLER_MAPPING.get(button), pressed ? 1 : 0);
+            // 联机时joypad2由网络输入
+            if (netplay == null && XboxController.XBOXCONTROLLER_MAPPING.containsKey(button)) {
+                console.getJoypad2().setButton(XboxController.XBOXCONTROLLER_MAPPING.get(button), pressed ? 1 : 0);
             }
         });
 
@@ -148,7 +198,6 @@ public class Emulator extends JFrame implements PPU.FrameRenderCompletedEventLis
     }
 
     public static void main(String[] args) throws IOException {
-        Emulator emulator = new Emulator();
 //        String romPath = "/nestest.nes";
 //        String romPath = "/Pac-Man.nes";
 //        String romPath = "/Donkey Kong.nes";
@@ -164,42 +213,61 @@ public class Emulator extends JFrame implements PPU.FrameRenderCompletedEventLis
 //        String romPath = "/ppu_2000_glitch.nes";
 //        String romPath = "/IceClimber.nes";
 //        String romPath = "/BattleCity.nes";
-        cartridge = new Cartridge(romPath);
-        System.out.println(cartridge.header);
+        Console console = new Console(romPath);
+        System.out.println(console.getCartridge().header);
 
-        ppu.addFrameRenderCompletedEventListener(emulator);
+        Emulator emulator = new Emulator(console);
 
-        cpuBus.setCpu(cpu);
-        cpuBus.setPpu(ppu);
-        cpuBus.setCartridge(cartridge);
-        cpuBus.reset();
+        String netplayConfig = System.getProperty("netplay");
+        if (netplayConfig != null) {
+            emulator.netplay = emulator.connect(netplayConfig);
+        }
 
-        while (true) {
-            long start = System.currentTimeMillis();
-            if (!emulator.frameRenderCompleted) {
-                cpuBus.clock();
-            } else {
-                long elapsed = System.currentTimeMillis() - start;
-                long wait = 1000 / FPS - elapsed;
-                if (wait > 0) {
-                    try {
-                        Thread.sleep(wait);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
+        emulator.loop();
+    }
 
-                emulator.frameRenderCompleted = false;
-            }
+    /**
+     * @param config 本地端口:对方地址:对方端口:本地玩家(1或2)，例如 -Dnetplay=7000:192.168.1.2:7000:1
+     */
+    private RollbackSession connect(String config) throws IOException {
+        String[] parts = config.split(":");
+        if (parts.length != 4) {
+            throw new Error("netplay: 本地端口:对方地址:对方端口:玩家");
         }
+        UdpTransport transport = new UdpTransport(Integer.parseInt(parts[0]),
+                new InetSocketAddress(parts[1], Integer.parseInt(parts[2])));
+        return new RollbackSession(console.getBus(), transport, Integer.parseInt(parts[3]));
     }
 
     public void loop() {
         while (true) {
             long start = System.currentTimeMillis();
-            if (!frameRenderCompleted) {
-                cpuBus.clock();
+            if (rewinding && netplay == null) {
+                // 倒带时不运行模拟器，每帧恢复一个之前的状态
+                if (rewind.stepBack()) {
+                    display();
+                }
+                try {
+                    Thread.sleep(1000 / FPS);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            } else if (!frameRenderCompleted) {
+                if (netplay == null) {
+                    runAhead.runFrame();
+                } else if (!advanceNetplay()) {
+                    // 等待对方的输入
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
             } else {
+                if (netplay == null) {
+                    rewind.push();
+                }
+
                 long elapsed = System.currentTimeMillis() - start;
                 long wait = 1000 / FPS - elapsed;
                 if (wait > 0) {
@@ -215,45 +283,52 @@ public class Emulator extends JFrame implements PPU.FrameRenderCompletedEventLis
         }
     }
 
+    private boolean advanceNetplay() {
+        try {
+            return netplay.advance(keyboard.getButtons());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
     public void showPatternTableFrame() {
-        if (cartridge != null) {
-            PatternTableFrame patternTableFrame = new PatternTableFrame(ppu);
+        if (console.getCartridge() != null) {
+            PatternTableFrame patternTableFrame = new PatternTableFrame(console.getPpu());
             patternTableFrame.displayPatternTable();
         }
     }
 
     public void showNameTableFrame() {
-        if (cartridge != null) {
-            NameTableFrame patternTableFrame = new NameTableFrame(ppu);
+        if (console.getCartridge() != null) {
+            NameTableFrame patternTableFrame = new NameTableFrame(console.getPpu());
             patternTableFrame.displayNameTable();
         }
     }
 
     public void showOAMFrame() {
-        if (cartridge != null) {
-            ObjectAttributeMemoryFrame oamFrame = new ObjectAttributeMemoryFrame(ppu);
+        if (console.getCartridge() != null) {
+            ObjectAttributeMemoryFrame oamFrame = new ObjectAttributeMemoryFrame(console.getPpu());
         }
     }
 
     public void showHexViewerFrame() {
-        if (cartridge != null) {
-            new MemoryViewerFrame("CPU RAM", cpuBus.cpuRAM);
-            new MemoryViewerFrame("PPU RAM", ppu.getPalette());
-            new MemoryViewerFrame("OAM", ppu.oam);
+        if (console.getCartridge() != null) {
+            new MemoryViewerFrame("CPU RAM", console.getBus().cpuRAM);
+            new MemoryViewerFrame("PPU RAM", console.getPpu().getPalette());
+            new MemoryViewerFrame("OAM", console.getPpu().oam);
         }
     }
 
     public void loadRom(String romPath) throws IOException {
-//        cartridge = new Cartridge(romPath);
-        cartridge.loadRom(romPath);
+        Cartridge cartridge = new Cartridge(romPath);
         System.out.println(cartridge.header);
+        for (String override : cartridge.getHeaderOverrides()) {
+            System.out.println("Header override: " + override);
+        }
 
-//        ppu.addFrameRenderCompletedEventListener(emulator);
-
-        cpuBus.setCpu(cpu);
-        cpuBus.setPpu(ppu);
-        cpuBus.setCartridge(cartridge);
-        cpuBus.reset();
+        console.insert(cartridge);
+        rewind.clear();
 
         loop();
     }
@@ -272,7 +347,7 @@ public class Emulator extends JFrame implements PPU.FrameRenderCompletedEventLis
     public void displayPatternTable() {
         BufferedImage image = new BufferedImage(16*8, 16*8, BufferedImage.TYPE_3BYTE_BGR);
 
-        byte[][] table = ppu.getPatternTable();
+        byte[][] table = console.getPpu().getPatternTable();
 
         /**
          * 2 Background 和 Sprite
@@ -350,7 +425,7 @@ public class Emulator extends JFrame implements PPU.FrameRenderCompletedEventLis
     }
 
     public void display() {
-        byte[][] screen = ppu.getScreen();
+        byte[][] screen = console.getScreen();
         int[] imageData = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
 
         for (int row = 0; row < 240; row++) {
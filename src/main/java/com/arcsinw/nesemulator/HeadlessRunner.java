@@ -0,0 +1,462 @@
+package com.arcsinw.nesemulator;
+
+import com.arcsinw.nesemulator.input.Joypad;
+import com.arcsinw.nesemulator.rom.RomIndex;
+import com.arcsinw.nesemulator.utils.PngEncoder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * 命令行运行ROM，不使用java.awt和手柄的本地库，可以在没有显示器的服务器上运行
+ * 不限速运行N帧，输出每帧的hash，定期保存PNG截图，最后保存RAM，输出时间统计
+ *
+ * usage: HeadlessRunner rom [选项]，选项见{@link #USAGE}
+ * rom 可以是 .nes 文件或者 path.zip!entry.nes，使用 --index 时也可以是 PRG + CHR 的 SHA-1 或 CRC32（见 {@link RomIndex}）
+ */
+public class HeadlessRunner {
+
+    // region 退出码
+
+    public static final int EXIT_OK = 0;
+
+    /**
+     * 参数错误
+     */
+    public static final int EXIT_USAGE = 1;
+
+    /**
+     * ROM无法读取或者不支持
+     */
+    public static final int EXIT_ROM = 2;
+
+    /**
+     * 录像或输入脚本无法读取，或者不属于这个ROM
+     */
+    public static final int EXIT_INPUT = 3;
+
+    /**
+     * 截图，RAM或JSON无法写入
+     */
+    public static final int EXIT_OUTPUT = 4;
+
+    /**
+     * 最后的状态hash和 --expect-hash 不同
+     */
+    public static final int EXIT_HASH_MISMATCH = 5;
+
+    // endregion
+
+    private static final String USAGE = String.join("\n",
+            "usage: HeadlessRunner <rom.nes | archive.zip[!entry.nes] | sha1 | crc32> [options]",
+            "  --index FILE         RomIndexer生成的索引，ROM可以用PRG + CHR的SHA-1或CRC32指定",
+            "  --frames N           运行的帧数，默认为录像的长度，没有录像时为60",
+            "  --movie FILE         播放录像",
+            "  --input FILE         输入脚本，每行: 帧 手柄1 [手柄2]，按键如 A+Start，- 表示松开，或者十六进制 0x09",
+            "  --hash-every N       每N帧输出一次画面和状态的hash，默认1，0表示只输出最后一帧",
+            "  --snapshot-every N   每N帧保存一张PNG截图",
+            "  --snapshot-dir DIR   截图目录，默认为当前目录",
+            "  --ram-dump FILE      最后保存CPU RAM和PRG-RAM",
+            "  --json FILE          把结果写成JSON",
+            "  --expect-hash HEX    最后的状态hash不同时返回 " + EXIT_HASH_MISMATCH);
+
+    /**
+     * 参数错误，退出码 {@link #EXIT_USAGE}
+     */
+    private static class UsageException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UsageException(String message) {
+            super(message);
+        }
+    }
+
+    // region 参数
+
+    private String romPath;
+    private String indexPath;
+    private int frames = -1;
+    private String moviePath;
+    private String inputPath;
+    private int hashEvery = 1;
+    private int snapshotEvery = 0;
+    private File snapshotDir = new File(".");
+    private String ramDumpPath;
+    private String jsonPath;
+    private Long expectedHash;
+
+    // endregion
+
+    private final PrintStream out;
+
+    private HeadlessRunner(PrintStream out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * @return 退出码
+     */
+    public static int run(String[] args, PrintStream out, PrintStream err) {
+        HeadlessRunner runner = new HeadlessRunner(out);
+        try {
+            runner.parse(args);
+        } catch (UsageException e) {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        Console console;
+        try {
+            if (runner.indexPath != null) {
+                runner.romPath = runner.resolveRom(runner.romPath);
+            }
+            console = new Console(Cartridge.fromFile(runner.romPath));
+        } catch (IOException | Error e) {
+            err.println("无法加载ROM " + runner.romPath + ": " + e.getMessage());
+            return EXIT_ROM;
+        }
+        // stdout只输出hash，修正信息写到stderr
+        for (String override : console.getCartridge().getHeaderOverrides()) {
+            err.println("Header override: " + override);
+        }
+
+        MoviePlayer player = null;
+        TreeMap<Integer, int[]> script = null;
+        try {
+            if (runner.moviePath != null) {
+                try (InputStream inputStream = new FileInputStream(runner.moviePath)) {
+                    player = new MoviePlayer(console.getBus(), Movie.load(inputStream));
+                }
+            } else if (runner.inputPath != null) {
+                script = loadScript(runner.inputPath);
+            }
+        } catch (IOException | Error e) {
+            err.println("无法加载输入: " + e.getMessage());
+            return EXIT_INPUT;
+        }
+
+        try {
+            return runner.execute(console, player, script);
+        } catch (IOException e) {
+            err.println("无法写入输出: " + e.getMessage());
+            return EXIT_OUTPUT;
+        }
+    }
+
+    private void parse(String[] args) throws UsageException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                if (romPath != null) {
+                    throw new UsageException("多余的参数: " + arg);
+                }
+                romPath = arg;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new UsageException(arg + " 缺少参数");
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--index":
+                    indexPath = value;
+                    break;
+                case "--frames":
+                    frames = parseInt(arg, value);
+                    break;
+                case "--movie":
+                    moviePath = value;
+                    break;
+                case "--input":
+                    inputPath = value;
+                    break;
+                case "--hash-every":
+                    hashEvery = parseInt(arg, value);
+                    break;
+                case "--snapshot-every":
+                    snapshotEvery = parseInt(arg, value);
+                    break;
+                case "--snapshot-dir":
+                    snapshotDir = new File(value);
+                    break;
+                case "--ram-dump":
+                    ramDumpPath = value;
+                    break;
+                case "--json":
+                    jsonPath = value;
+                    break;
+                case "--expect-hash":
+                    try {
+                        expectedHash = Long.parseUnsignedLong(value.startsWith("0x") ? value.substring(2) : value, 16);
+                    } catch (NumberFormatException e) {
+                        throw new UsageException(arg + " 不是十六进制数: " + value);
+                    }
+                    break;
+                default:
+                    throw new UsageException("未知的选项: " + arg);
+            }
+        }
+
+        if (romPath == null) {
+            throw new UsageException("缺少ROM");
+        }
+        if (moviePath != null && inputPath != null) {
+            throw new UsageException("--movie 和 --input 不能同时使用");
+        }
+    }
+
+    private static final Pattern SHA1 = Pattern.compile("[0-9a-fA-F]{40}");
+    private static final Pattern CRC32 = Pattern.compile("[0-9a-fA-F]{8}");
+
+    /**
+     * 在索引中按哈希查找ROM的路径，不像哈希的参数原样作为路径
+     */
+    private String resolveRom(String rom) throws IOException {
+        boolean sha1 = SHA1.matcher(rom).matches();
+        if (!sha1 && !CRC32.matcher(rom).matches()) {
+            return rom;
+        }
+
+        RomIndex index = RomIndex.load(Paths.get(indexPath));
+        if (sha1) {
+            RomIndex.Entry entry = index.findBySha1(rom);
+            if (entry != null) {
+                return entry.path;
+            }
+        } else {
+            List<RomIndex.Entry> entries = index.findByCrc32(Integer.parseUnsignedInt(rom, 16));
+            if (!entries.isEmpty()) {
+                return entries.get(0).path;
+            }
+        }
+        throw new IOException("索引 " + indexPath + " 中没有 " + rom);
+    }
+
+    private static int parseInt(String option, String value) throws UsageException {
+        try {
+            int n = Integer.parseInt(value);
+            if (n < 0) {
+                throw new UsageException(option + " 不能是负数");
+            }
+            return n;
+        } catch (NumberFormatException e) {
+            throw new UsageException(option + " 不是整数: " + value);
+        }
+    }
+
+    // region 输入脚本
+
+    /**
+     * @return 帧 -> { 手柄1, 手柄2 }，从这一帧开始一直保持
+     */
+    private static TreeMap<Integer, int[]> loadScript(String path) throws IOException {
+        TreeMap<Integer, int[]> script = new TreeMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                String[] parts = line.split("\\s+");
+                try {
+                    if (parts.length < 2 || parts.length > 3) {
+                        throw new IllegalArgumentException("需要 帧 手柄1 [手柄2]");
+                    }
+                    int frame = Integer.parseInt(parts[0]);
+                    int buttons1 = parseButtons(parts[1]);
+                    int buttons2 = parts.length == 3 ? parseButtons(parts[2]) : 0;
+                    script.put(frame, new int[]{buttons1, buttons2});
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(String.format("%s:%d: %s", path, lineNumber, e.getMessage()));
+                }
+            }
+        }
+        return script;
+    }
+
+    /**
+     * @param text A+Start，- 或者 0x09
+     */
+    private static int parseButtons(String text) {
+        if (text.equals("-")) {
+            return 0;
+        }
+        if (text.startsWith("0x")) {
+            return Integer.parseInt(text.substring(2), 16) & 0x00FF;
+        }
+
+        int buttons = 0;
+        for (String name : text.split("\\+")) {
+            Joypad.ButtonFlag flag = null;
+            for (Joypad.ButtonFlag candidate : Joypad.ButtonFlag.values()) {
+                if (candidate.name().equalsIgnoreCase(name)) {
+                    flag = candidate;
+                }
+            }
+            if (flag == null) {
+                throw new IllegalArgumentException("未知的按键: " + name);
+            }
+            buttons |= flag.getMask();
+        }
+        return buttons;
+    }
+
+    // endregion
+
+    private int execute(Console console, MoviePlayer player, TreeMap<Integer, int[]> script) throws IOException {
+        int frameCount = frames >= 0 ? frames : player != null ? player.getMovie().getFrameCount() : 60;
+        if (snapshotEvery > 0 && !snapshotDir.isDirectory() && !snapshotDir.mkdirs()) {
+            throw new IOException("无法创建目录 " + snapshotDir);
+        }
+
+        StateHash stateHash = new StateHash(console.getBus());
+        List<String> hashLines = new ArrayList<>();
+        List<String> snapshots = new ArrayList<>();
+        long emulationNanos = 0;
+        long maxFrameNanos = 0;
+        long screenHash = 0;
+        long state = 0;
+
+        long start = System.nanoTime();
+        for (int frame = 0; frame < frameCount; frame++) {
+            long frameStart = System.nanoTime();
+            if (player != null && !player.isFinished()) {
+                player.runFrame();
+            } else {
+                int[] buttons = script != null ? currentButtons(script, frame) : null;
+                console.getJoypad1().setButtons(buttons != null ? buttons[0] : 0);
+                console.getJoypad2().setButtons(buttons != null ? buttons[1] : 0);
+                console.stepFrame();
+            }
+            long frameNanos = System.nanoTime() - frameStart;
+            emulationNanos += frameNanos;
+            maxFrameNanos = Math.max(maxFrameNanos, frameNanos);
+
+            boolean last = frame == frameCount - 1;
+            if (last || (hashEvery > 0 && (frame + 1) % hashEvery == 0)) {
+                screenHash = hashScreen(console.getScreen());
+                state = stateHash.compute();
+                String line = String.format("frame %d screen %016x state %016x", frame, screenHash, state);
+                out.println(line);
+                hashLines.add(String.format("{\"frame\": %d, \"screen\": \"%016x\", \"state\": \"%016x\"}", frame, screenHash, state));
+            }
+
+            if (snapshotEvery > 0 && (frame + 1) % snapshotEvery == 0) {
+                File file = new File(snapshotDir, String.format("frame_%06d.png", frame));
+                try (OutputStream outputStream = new FileOutputStream(file)) {
+                    PngEncoder.write(console.getScreen(), ColorPalette.COLOR_PALETTE, outputStream);
+                }
+                snapshots.add(file.getPath());
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double fps = frameCount / Math.max(emulationNanos / 1e9, 1e-9);
+
+        if (ramDumpPath != null) {
+            try (OutputStream outputStream = new FileOutputStream(ramDumpPath)) {
+                outputStream.write(console.getBus().cpuRAM);
+                outputStream.write(console.getCartridge().getSram());
+            }
+        }
+
+        out.println(String.format("%d frames in %.3f s, emulation %.1f fps, max frame %.3f ms",
+                frameCount, seconds, fps, maxFrameNanos / 1e6));
+
+        boolean mismatch = expectedHash != null && expectedHash != state;
+        if (mismatch) {
+            out.println(String.format("state hash %016x, expected %016x", state, expectedHash));
+        }
+
+        if (jsonPath != null) {
+            StringBuilder json = new StringBuilder();
+            json.append("{\n");
+            json.append("  \"rom\": ").append(quote(romPath)).append(",\n");
+            json.append("  \"sha1\": ").append(quote(console.getCartridge().getRomImage().getSha1())).append(",\n");
+            json.append("  \"frames\": ").append(frameCount).append(",\n");
+            json.append(String.format(Locale.ROOT, "  \"seconds\": %.6f,\n", seconds));
+            json.append(String.format(Locale.ROOT, "  \"fps\": %.2f,\n", fps));
+            json.append(String.format(Locale.ROOT, "  \"maxFrameMillis\": %.4f,\n", maxFrameNanos / 1e6));
+            json.append(String.format("  \"screenHash\": \"%016x\",\n", screenHash));
+            json.append(String.format("  \"stateHash\": \"%016x\",\n", state));
+            json.append("  \"hashMatched\": ").append(expectedHash == null ? "null" : String.valueOf(!mismatch)).append(",\n");
+            json.append("  \"ramDump\": ").append(ramDumpPath == null ? "null" : quote(ramDumpPath)).append(",\n");
+            json.append("  \"snapshots\": [");
+            for (int i = 0; i < snapshots.size(); i++) {
+                json.append(i == 0 ? "" : ", ").append(quote(snapshots.get(i)));
+            }
+            json.append("],\n");
+            json.append("  \"hashes\": [\n");
+            for (int i = 0; i < hashLines.size(); i++) {
+                json.append("    ").append(hashLines.get(i)).append(i == hashLines.size() - 1 ? "\n" : ",\n");
+            }
+            json.append("  ]\n");
+            json.append("}\n");
+
+            try (OutputStream outputStream = new FileOutputStream(jsonPath)) {
+                outputStream.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        return mismatch ? EXIT_HASH_MISMATCH : EXIT_OK;
+    }
+
+    private static int[] currentButtons(TreeMap<Integer, int[]> script, int frame) {
+        Map.Entry<Integer, int[]> entry = script.floorEntry(frame);
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * FNV-1a 64
+     */
+    private static long hashScreen(byte[][] screen) {
+        long hash = 0xCBF29CE484222325L;
+        for (byte[] row : screen) {
+            for (byte pixel : row) {
+                hash = (hash ^ (pixel & 0x00FF)) * 0x100000001B3L;
+            }
+        }
+        return hash;
+    }
+
+    private static String quote(String text) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+}
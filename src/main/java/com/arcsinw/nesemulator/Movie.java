@@ -0,0 +1,194 @@
+package com.arcsinw.nesemulator;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 输入录像
+ * 保存每一帧两个手柄的按键和reset / 上电事件，以及ROM的sha1
+ * 每隔{@link #getKeyframeInterval()}帧保存一个存档（关键帧），跳转时从最近的关键帧开始最多运行N-1帧
+ *
+ * 第i帧的运行顺序：（i % N == 0 时，关键帧i是这一步之前的状态）处理事件，设置手柄，运行一帧
+ *
+ * 文件格式：
+ * "NESM" 版本
+ * 之后的内容经过Deflate压缩：
+ * sha1 关键帧间隔 帧数 每帧3字节（手柄1 手柄2 事件） 关键帧数 每个关键帧（长度 内容）
+ */
+public class Movie {
+
+    private static final int MAGIC = 0x4E45534D;
+
+    public static final int VERSION = 1;
+
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 600;
+
+    // region 事件
+
+    public static final int EVENT_RESET = 0x01;
+
+    /**
+     * 重新上电，录像的第0帧总是上电
+     */
+    public static final int EVENT_POWER = 0x02;
+
+    // endregion
+
+    private static final int BYTES_PER_FRAME = 3;
+
+    private final String romSha1;
+
+    private final int keyframeInterval;
+
+    private byte[] frames = new byte[BYTES_PER_FRAME * 1024];
+
+    private int frameCount;
+
+    private final List<byte[]> keyframes = new ArrayList<>();
+
+    public Movie(String romSha1, int keyframeInterval) {
+        if (keyframeInterval <= 0) {
+            throw new Error("keyframeInterval must be positive");
+        }
+        this.romSha1 = romSha1;
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    public String getRomSha1() {
+        return romSha1;
+    }
+
+    public int getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public int getButtons1(int frame) {
+        return frames[frame * BYTES_PER_FRAME] & 0x00FF;
+    }
+
+    public int getButtons2(int frame) {
+        return frames[frame * BYTES_PER_FRAME + 1] & 0x00FF;
+    }
+
+    public int getEvents(int frame) {
+        return frames[frame * BYTES_PER_FRAME + 2] & 0x00FF;
+    }
+
+    void addFrame(int buttons1, int buttons2, int events) {
+        if ((frameCount + 1) * BYTES_PER_FRAME > frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+        }
+        int offset = frameCount * BYTES_PER_FRAME;
+        frames[offset] = (byte) buttons1;
+        frames[offset + 1] = (byte) buttons2;
+        frames[offset + 2] = (byte) events;
+        frameCount++;
+    }
+
+    /**
+     * @param keyframe 第 keyframes.size() * N 帧之前的存档
+     */
+    void addKeyframe(byte[] keyframe) {
+        keyframes.add(keyframe);
+    }
+
+    int getKeyframeCount() {
+        return keyframes.size();
+    }
+
+    /**
+     * @return 第 index * N 帧之前的存档
+     */
+    byte[] getKeyframe(int index) {
+        return keyframes.get(index);
+    }
+
+    /**
+     * 运行录像中的第frame帧
+     */
+    void runFrame(CPUBus bus, int frame) {
+        int events = getEvents(frame);
+        if ((events & EVENT_POWER) != 0) {
+            bus.powerOn();
+        } else if ((events & EVENT_RESET) != 0) {
+            bus.reset();
+        }
+
+        bus.joypad1.setButtons(getButtons1(frame));
+        bus.joypad2.setButtons(getButtons2(frame));
+        bus.runFrame();
+    }
+
+    /**
+     * 从第frame帧开始重新录制时丢弃之后的内容
+     */
+    void truncate(int frame) {
+        frameCount = frame;
+        int keep = (frame + keyframeInterval - 1) / keyframeInterval;
+        while (keyframes.size() > keep) {
+            keyframes.remove(keyframes.size() - 1);
+        }
+    }
+
+    // region 文件
+
+    public void save(OutputStream outputStream) throws IOException {
+        DataOutputStream header = new DataOutputStream(outputStream);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.flush();
+
+        DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(outputStream, new Deflater(Deflater.BEST_SPEED), 65536);
+        DataOutputStream out = new DataOutputStream(deflaterOutputStream);
+        out.writeUTF(romSha1);
+        out.writeInt(keyframeInterval);
+        out.writeInt(frameCount);
+        out.write(frames, 0, frameCount * BYTES_PER_FRAME);
+        out.writeInt(keyframes.size());
+        for (byte[] keyframe : keyframes) {
+            out.writeInt(keyframe.length);
+            out.write(keyframe);
+        }
+        out.flush();
+        deflaterOutputStream.finish();
+    }
+
+    public static Movie load(InputStream inputStream) throws IOException {
+        DataInputStream header = new DataInputStream(inputStream);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("不是录像文件");
+        }
+        int version = header.readInt();
+        if (version != VERSION) {
+            throw new IOException("不支持的录像版本: " + version);
+        }
+
+        DataInputStream in = new DataInputStream(new InflaterInputStream(inputStream));
+        Movie movie = new Movie(in.readUTF(), in.readInt());
+        movie.frameCount = in.readInt();
+        movie.frames = new byte[Math.max(movie.frameCount, 1024) * BYTES_PER_FRAME];
+        in.readFully(movie.frames, 0, movie.frameCount * BYTES_PER_FRAME);
+        int keyframeCount = in.readInt();
+        for (int i = 0; i < keyframeCount; i++) {
+            byte[] keyframe = new byte[in.readInt()];
+            in.readFully(keyframe);
+            movie.keyframes.add(keyframe);
+        }
+        return movie;
+    }
+
+    // endregion
+}
@@ -0,0 +1,115 @@
+package com.arcsinw.nesemulator;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 播放输入录像，不限制速度
+ * 跳转时恢复最近的关键帧，最多再运行 N - 1 帧
+ */
+public class MoviePlayer {
+
+    private final CPUBus bus;
+
+    private final Movie movie;
+
+    private final SaveState state;
+
+    /**
+     * 下一帧的序号
+     */
+    private int position;
+
+    public MoviePlayer(CPUBus bus, Movie movie) {
+        if (!movie.getRomSha1().equals(bus.getCartridge().getRomImage().getSha1())) {
+            throw new Error("录像不属于当前ROM");
+        }
+        this.bus = bus;
+        this.movie = movie;
+        this.state = new SaveState(bus);
+        seek(0);
+    }
+
+    public CPUBus getBus() {
+        return bus;
+    }
+
+    public Movie getMovie() {
+        return movie;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public boolean isFinished() {
+        return position >= movie.getFrameCount();
+    }
+
+    /**
+     * 跳转到第frame帧运行之前
+     */
+    public void seek(int frame) {
+        if (frame < 0 || frame > movie.getFrameCount()) {
+            throw new Error("frame out of range: " + frame);
+        }
+        if (movie.getKeyframeCount() == 0) {
+            // 录像至少有第0帧之前的关键帧，没有时无法恢复到任何一帧
+            throw new Error("录像是空的，没有关键帧");
+        }
+
+        int keyframe = Math.min(frame / movie.getKeyframeInterval(), movie.getKeyframeCount() - 1);
+        state.load(movie.getKeyframe(keyframe));
+        state.restore();
+        position = keyframe * movie.getKeyframeInterval();
+        while (position < frame) {
+            movie.runFrame(bus, position++);
+        }
+    }
+
+    /**
+     * @return false 录像已经结束
+     */
+    public boolean runFrame() {
+        if (isFinished()) {
+            return false;
+        }
+        movie.runFrame(bus, position++);
+        return true;
+    }
+
+    /**
+     * 不显示画面，以最快速度播放录像
+     * 参数: ROM文件 录像文件
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: MoviePlayer <rom> <movie>");
+            return;
+        }
+
+        CPUBus bus = new CPUBus();
+        bus.setCpu(new CPU());
+        bus.setPpu(new PPU());
+        try (InputStream inputStream = new FileInputStream(args[0])) {
+            bus.setCartridge(new Cartridge(inputStream));
+        }
+
+        Movie movie;
+        try (InputStream inputStream = new FileInputStream(args[1])) {
+            movie = Movie.load(inputStream);
+        }
+
+        MoviePlayer player = new MoviePlayer(bus, movie);
+        long start = System.nanoTime();
+        while (player.runFrame()) {
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // 状态hash可以作为回归测试的结果
+        System.out.println(String.format("%d frames in %.2f s (%.1f fps), state hash %016x",
+                movie.getFrameCount(), seconds, movie.getFrameCount() / seconds,
+                new StateHash(bus).compute()));
+    }
+}
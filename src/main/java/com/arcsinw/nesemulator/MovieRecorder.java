@@ -0,0 +1,79 @@
+package com.arcsinw.nesemulator;
+
+/**
+ * 录制输入录像，从上电开始
+ * 每帧开始时记录两个手柄的按键，帧运行期间手柄的变化不影响这一帧
+ */
+public class MovieRecorder {
+
+    private final CPUBus bus;
+
+    private final Movie movie;
+
+    private final SaveState state;
+
+    /**
+     * 下一帧开始时处理的事件
+     */
+    private int pendingEvents = Movie.EVENT_POWER;
+
+    public MovieRecorder(CPUBus bus, int keyframeInterval) {
+        this(bus, new Movie(bus.getCartridge().getRomImage().getSha1(), keyframeInterval));
+    }
+
+    public MovieRecorder(CPUBus bus) {
+        this(bus, Movie.DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    /**
+     * 从播放器的当前位置接着录制，丢弃录像中之后的内容
+     */
+    public MovieRecorder(MoviePlayer player) {
+        this(player.getBus(), player.getMovie());
+        movie.truncate(player.getPosition());
+        pendingEvents = 0;
+    }
+
+    private MovieRecorder(CPUBus bus, Movie movie) {
+        this.bus = bus;
+        this.movie = movie;
+        this.state = new SaveState(bus);
+    }
+
+    public Movie getMovie() {
+        return movie;
+    }
+
+    /**
+     * 在下一帧开始时reset
+     */
+    public void reset() {
+        pendingEvents |= Movie.EVENT_RESET;
+    }
+
+    /**
+     * 在下一帧开始时重新上电
+     */
+    public void powerOn() {
+        pendingEvents |= Movie.EVENT_POWER;
+    }
+
+    /**
+     * 使用手柄当前的按键运行一帧
+     */
+    public void runFrame() {
+        runFrame(bus.joypad1.getButtons(), bus.joypad2.getButtons());
+    }
+
+    public void runFrame(int buttons1, int buttons2) {
+        int frame = movie.getFrameCount();
+        if (frame % movie.getKeyframeInterval() == 0) {
+            state.capture();
+            movie.addKeyframe(state.toByteArray());
+        }
+
+        movie.addFrame(buttons1, buttons2, pendingEvents);
+        pendingEvents = 0;
+        movie.runFrame(bus, frame);
+    }
+}
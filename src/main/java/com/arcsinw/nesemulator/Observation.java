@@ -0,0 +1,165 @@
+package com.arcsinw.nesemulator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PPU直接输出的观察值，用于机器学习，不需要先生成256x240的画面再转换
+ * 每个像素在PPU输出时累加到目标大小，一帧完成时写入调用者提供的ByteBuffer，每个像素1字节，按行排列
+ *
+ * GRAYSCALE: 亮度 {@link ColorPalette#LUMINANCE}，缩小时取区域平均
+ * PALETTE_INDEX: 调色板索引 0 - 63，缩小时取每个区域中心的像素
+ *
+ * 通过 {@link PPU#setObservation(Observation)} 使用，{@link PPU#setScreenEnabled(boolean)} 可以关闭全尺寸的画面
+ */
+public class Observation {
+
+    public enum Format {
+        GRAYSCALE,
+        PALETTE_INDEX
+    }
+
+    private static final int SCREEN_WIDTH = 256;
+    private static final int SCREEN_HEIGHT = 240;
+
+    private final Format format;
+    private final boolean grayscale;
+    private final int width;
+    private final int height;
+
+    /**
+     * 画面的每一列 / 行对应的目标列 / 行
+     * PALETTE_INDEX 时只有每个区域中心的列 / 行有值，其余为-1
+     */
+    private final int[] columnOf = new int[SCREEN_WIDTH];
+    private final int[] rowOf = new int[SCREEN_HEIGHT];
+
+    /**
+     * GRAYSCALE 时每个目标像素的亮度和，以及这一帧输出的像素数
+     * 按实际输出的像素计数，PPU不会输出扫描线0的第一个像素
+     */
+    private final int[] sums;
+    private final int[] counts;
+
+    private ByteBuffer target;
+    private int offset;
+
+    /**
+     * @param width 目标宽度 1 - 256，例如 84
+     * @param height 目标高度 1 - 240
+     */
+    public Observation(Format format, int width, int height) {
+        if (width <= 0 || width > SCREEN_WIDTH || height <= 0 || height > SCREEN_HEIGHT) {
+            throw new Error(String.format("observation size must be within %dx%d", SCREEN_WIDTH, SCREEN_HEIGHT));
+        }
+        this.format = format;
+        this.grayscale = format == Format.GRAYSCALE;
+        this.width = width;
+        this.height = height;
+
+        mapAxis(columnOf, width);
+        mapAxis(rowOf, height);
+
+        if (grayscale) {
+            sums = new int[width * height];
+            counts = new int[width * height];
+        } else {
+            sums = null;
+            counts = null;
+        }
+    }
+
+    private void mapAxis(int[] map, int size) {
+        for (int i = 0; i < map.length; i++) {
+            map[i] = i * size / map.length;
+        }
+        if (!grayscale) {
+            // 每个区域只保留中心的那一个
+            for (int i = 0; i < map.length; i++) {
+                int center = (2 * map[i] + 1) * map.length / (2 * size);
+                if (i != center) {
+                    map[i] = -1;
+                }
+            }
+        }
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return 一帧的字节数 width * height
+     */
+    public int size() {
+        return width * height;
+    }
+
+    /**
+     * 之后完成的帧写入 buffer 的 [offset, offset + size())，不改变buffer的position
+     */
+    public void setTarget(ByteBuffer buffer, int offset) {
+        if (offset < 0 || offset + size() > buffer.capacity()) {
+            throw new Error("observation target too small");
+        }
+        this.target = buffer;
+        this.offset = offset;
+    }
+
+    /**
+     * PPU输出一个像素
+     * @param color 调色板索引
+     */
+    void put(int y, int x, int color) {
+        if (grayscale) {
+            int i = rowOf[y] * width + columnOf[x];
+            sums[i] += ColorPalette.LUMINANCE[color & 0x3F];
+            counts[i]++;
+        } else {
+            int row = rowOf[y];
+            int column = columnOf[x];
+            if (row >= 0 && column >= 0 && target != null) {
+                target.put(offset + row * width + column, (byte) (color & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * 一帧结束
+     * @param write false 这一帧没有输出（run-ahead等隐藏的帧），只清空累加的数据
+     * 没有输出过的目标像素保持原来的值
+     */
+    void finish(boolean write) {
+        if (!grayscale) {
+            return;
+        }
+        for (int i = 0; i < sums.length; i++) {
+            int count = counts[i];
+            if (write && target != null && count != 0) {
+                target.put(offset + i, (byte) ((sums[i] + count / 2) / count));
+            }
+            sums[i] = 0;
+            counts[i] = 0;
+        }
+    }
+
+    /**
+     * 从已经生成的画面计算观察值，例如读档之后PPU还没有输出新的帧
+     */
+    public void capture(byte[][] screen) {
+        for (int y = 0; y < SCREEN_HEIGHT; y++) {
+            byte[] line = screen[y];
+            for (int x = 0; x < SCREEN_WIDTH; x++) {
+                put(y, x, line[x]);
+            }
+        }
+        finish(true);
+    }
+}
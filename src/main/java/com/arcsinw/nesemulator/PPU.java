@@ -1,6 +1,10 @@
 package com.arcsinw.nesemulator;
 
+import com.arcsinw.nesemulator.mapper.AbstractMapper;
+
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EventListener;
 import java.util.List;
 import java.util.stream.IntStream;
@@ -29,7 +33,12 @@ public class PPU {
      * 0x2000 - 0x2FFF Name Tables + Attribute Tables  共 4KB 分为4块
      * 0x3000 - 0x3EFF Mirrors
      */
-    private byte[][] nameTable = new byte[2][1024];
+    private byte[][] nameTable = new byte[4][1024];
+
+    /**
+     * 4个Name Table连续编号，table * 1024 + offset
+     */
+    private final DirtyPages nameTablePages = new DirtyPages(4 * 1024);
 
     /**
      * 调色板，共 32 种颜色的索引，指向NES的全部64种颜色
@@ -258,6 +267,110 @@ public class PPU {
 
     // endregion
 
+    // region 渲染读取的hook
+
+    /**
+     * 需要观察或者替换PPU渲染读取的mapper（MMC5）实现这个接口
+     * 没有hook时PPU只多一次null判断
+     */
+    public interface FetchHook {
+        /**
+         * 读取 Name table，包括渲染和CPU通过$2007的读取
+         * @param address 0x0000 - 0x0FFF
+         * @param vram PPU内部的VRAM，[0] [1] 是主机的2KB
+         */
+        byte readNameTable(int address, byte[][] vram);
+
+        void writeNameTable(int address, int data, byte[][] vram);
+
+        /**
+         * 渲染时读取tile id，包括每条扫描线末尾的两次空读
+         * @param address 0x2000 - 0x2FFF
+         * @param data readNameTable读出的tile id
+         * @return 实际使用的tile id
+         */
+        int fetchTile(int address, int data);
+
+        /**
+         * 渲染时读取属性字节
+         * @return 实际使用的属性字节
+         */
+        int fetchAttribute(int address, int data);
+
+        /**
+         * 渲染时读取背景图案
+         * @param address 0x0000 - 0x1FFF
+         */
+        byte fetchBackgroundPattern(int address);
+
+        /**
+         * 读取Sprite图案
+         * @param address 0x0000 - 0x1FFF
+         */
+        byte fetchSpritePattern(int address);
+
+        /**
+         * CPU写入PPUCTRL ($2000)
+         */
+        void writePpuCtrl(int data);
+    }
+
+    private FetchHook fetchHook;
+
+    private boolean isRenderingEnabled() {
+        return (ppuMask & 0x18) != 0;
+    }
+
+    /**
+     * 每个cycle都要检查，直接测试位，不经过{@link #getPpuMask(PPUMask)}
+     * @return true 显示背景 {@link PPUMask#BackgroundEnable}
+     */
+    private boolean isBackgroundEnabled() {
+        return (ppuMask & 0x08) != 0;
+    }
+
+    /**
+     * @return true 显示sprite {@link PPUMask#SpriteEnable}
+     */
+    private boolean isSpriteEnabled() {
+        return (ppuMask & 0x10) != 0;
+    }
+
+    /**
+     * 渲染时读取tile id
+     */
+    private int fetchTile(int address) {
+        int data = ppuRead(address);
+        if (fetchHook != null && isRenderingEnabled()) {
+            data = fetchHook.fetchTile(address, data & 0x00FF);
+        }
+        return data;
+    }
+
+    private byte fetchAttribute(int address) {
+        byte data = ppuRead(address);
+        if (fetchHook != null && isRenderingEnabled()) {
+            data = (byte) fetchHook.fetchAttribute(address, data & 0x00FF);
+        }
+        return data;
+    }
+
+    private byte fetchBackgroundPattern(int address) {
+        if (fetchHook != null) {
+            return fetchHook.fetchBackgroundPattern(address & 0x1FFF);
+        }
+        return ppuRead(address);
+    }
+
+    private byte fetchSpritePattern(int address) {
+        if (fetchHook != null) {
+            return fetchHook.fetchSpritePattern(address & 0x1FFF);
+        }
+        return ppuRead(address);
+    }
+
+    // endregion
+
     // region 帧渲染完成事件
 
     public interface FrameRenderCompletedEventListener extends EventListener {
@@ -280,6 +393,7 @@ public class PPU {
 
     public PPU() {
         IntStream.range(0, 64).forEach(i -> oam[i] = new OAMEntry());
+        IntStream.range(0, 8).forEach(i -> scanLineSpriteEntries[i] = new OAMEntry());
     }
 
     /**
@@ -413,12 +527,27 @@ public class PPU {
      * 一行扫描线上的Sprite
      */
     public List<OAMEntry> scanLineSprite = new ArrayList<>(8);
+
+    /**
+     * scanLineSprite中的对象，每条扫描线重复使用，不分配内存
+     */
+    private final OAMEntry[] scanLineSpriteEntries = new OAMEntry[8];
+
     private byte spriteCount = 0;
 
     private byte[] spritePatternShifterLo = new byte[8];
 
     private byte[] spritePatternShifterHi = new byte[8];
 
+    private OAMEntry copySpriteEntry(OAMEntry source) {
+        OAMEntry entry = scanLineSpriteEntries[scanLineSprite.size()];
+        entry.y = source.y;
+        entry.id = source.id;
+        entry.attribute = source.attribute;
+        entry.x = source.x;
+        return entry;
+    }
+
     private boolean spriteZeroHitPossible = false;
     private boolean spriteZeroRendering = false;
 
@@ -452,21 +581,28 @@ public class PPU {
      */
     private Cartridge cartridge;
 
+    /**
+     * 卡带上的mapper，接收A12上升沿
+     */
+    private AbstractMapper mapper;
+
     public void setCartridge(Cartridge cartridge) {
         this.cartridge = cartridge;
-        if (this.cartridge.chr.length >= 8192) {
-            System.arraycopy(this.cartridge.chr, 0, patternTable[0], 0, 4096);
-            System.arraycopy(this.cartridge.chr, 4096, patternTable[1], 0, 4096);
-        }
+        this.mapper = cartridge.getMapper();
+        this.fetchHook = mapper instanceof FetchHook ? (FetchHook) mapper : null;
     }
 
     /**
      * 获取图案表
      * 每个图案8x8个像素，使用16字节
      * 图案表分为 背景图案表 和 精灵图案表，各256个图案
+     * 图案表的内容由mapper当前的CHR bank决定，每次调用时重新读取
      * @return [2][4096]
      */
     public byte[][] getPatternTable() {
+        for (int i = 0; i < 8192; i++) {
+            patternTable[i >>> 12][i & 0x0FFF] = cartridge.ppuRead(i);
+        }
         return this.patternTable;
     }
 
@@ -532,6 +668,9 @@ public class PPU {
             // PPU Control
             case 0x0000:
                 setPpuCtrlValue(data);
+                if (fetchHook != null) {
+                    fetchHook.writePpuCtrl(data & 0x00FF);
+                }
                 t = (t & ~0x0C00) | ((data & 0x03) << 10);
                 break;
             // PPU Mask
@@ -631,48 +770,52 @@ public class PPU {
         return data;
     }
 
+    /**
+     * 根据当前的镜像类型，计算 0x2000 - 0x2FFF 中的地址对应的Name table
+     * 镜像类型由mapper决定，可以在运行时切换
+     * @param address 0x0000 - 0x0FFF
+     * @return 0 - 3
+     */
+    private int getNameTableIndex(int address) {
+        switch (cartridge.getMirror()) {
+            case Vertical:
+                // 0x2000 = 0x2800, 0x2400 = 0x2C00
+                return (address >>> 10) & 0x01;
+            case SingleScreenLower:
+                return 0;
+            case SingleScreenUpper:
+                return 1;
+            case FourScreen:
+                // 卡带提供额外的2KB
+                return (address >>> 10) & 0x03;
+            case Horizontal:
+            default:
+                // 0x2000 = 0x2400, 0x2800 = 0x2C00
+                return (address >>> 11) & 0x01;
+        }
+    }
+
     public void ppuWrite(int address, int data) {
         address &= 0x3FFF;
 
         if (address >= 0x0000 && address <= 0x1FFF) {
             // Pattern table
-            patternTable[(address & 0x1000) >>> 12][address & 0x0FFF] = getUnsignedByte(data);
+            cartridge.ppuWrite(address, getUnsignedByte(data));
         }
         if (address >= 0x2000 && address <= 0x3EFF) {
             // Name Tables 实际地址 0x2000 - 0x2FFF 其余是Mirror（只Mirror了0x2000 - 0x2EFF）
             // 最多有4个Name Table
             address &= 0x0FFF;
-            if (this.cartridge.header.mirror == Cartridge.Mirror.Vertical)
-            {
-                // Vertical mirror
-                if (address >= 0x0000 && address <= 0x03FF) {
-                    nameTable[0][address & 0x03FF] = getUnsignedByte(data);
-                }
-                if (address >= 0x0400 && address <= 0x07FF) {
-                    nameTable[1][address & 0x03FF] = getUnsignedByte(data);
-                }
-                if (address >= 0x0800 && address <= 0x0BFF) {
-                    nameTable[0][address & 0x03FF] = getUnsignedByte(data);
-                }
-                if (address >= 0x0C00 && address <= 0x0FFF) {
-                    nameTable[1][address & 0x03FF] = getUnsignedByte(data);
-                }
-            }
-            else
-            {
-                // Horizontal mirror
-                if (address >= 0x0000 && address <= 0x03FF) {
-                    nameTable[0][address & 0x03FF] = getUnsignedByte(data);
-                }
-                if (address >= 0x0400 && address <= 0x07FF) {
-                    nameTable[0][address & 0x03FF] = getUnsignedByte(data);
-                }
-                if (address >= 0x0800 && address <= 0x0BFF) {
-                    nameTable[1][address & 0x03FF] = getUnsignedByte(data);
-                }
-                if (address >= 0x0C00 && address <= 0x0FFF) {
-                    nameTable[1][address & 0x03FF] = getUnsignedByte(data);
+            if (fetchHook != null) {
+                // mapper决定写到哪个Name Table，4个都标记
+                for (int table = 0; table < 4; table++) {
+                    nameTablePages.mark(table * 1024 + (address & 0x03FF));
                 }
+                fetchHook.writeNameTable(address, data & 0x00FF, nameTable);
+            } else {
+                int table = getNameTableIndex(address);
+                nameTablePages.mark(table * 1024 + (address & 0x03FF));
+                nameTable[table][address & 0x03FF] = getUnsignedByte(data);
             }
         }
         else if (address >= 0x3F00 && address <= 0x3FFF) {
@@ -693,41 +836,16 @@ public class PPU {
 
         if (address >= 0x0000 && address <= 0x1FFF) {
             // Pattern table
-            data = patternTable[(address & 0x1000) >> 12][address & 0x0FFF];
+            data = cartridge.ppuRead(address);
         }
         if (address >= 0x2000 && address <= 0x3EFF) {
             // Name Tables 实际地址 0x2000 - 0x2FFF 其余是Mirror
             // 最多有4个Name Table
             address &= 0x0FFF;
-            if (cartridge.header.mirror == Cartridge.Mirror.Vertical) {
-                // Vertical mirror
-                if (address >= 0x0000 && address <= 0x03FF) {
-                    data = nameTable[0][address & 0x03FF];
-                }
-                if (address >= 0x0400 && address <= 0x07FF) {
-                    data = nameTable[1][address & 0x03FF];
-                }
-                if (address >= 0x0800 && address <= 0x0BFF) {
-                    data = nameTable[0][address & 0x03FF];
-                }
-                if (address >= 0x0C00 && address <= 0x0FFF) {
-                    data = nameTable[1][address & 0x03FF];
-                }
-            }
-            else if (cartridge.header.mirror == Cartridge.Mirror.Horizontal) {
-                // Horizontal mirror
-                if (address >= 0x0000 && address <= 0x03FF) {
-                    data = nameTable[0][address & 0x03FF];
-                }
-                if (address >= 0x0400 && address <= 0x07FF) {
-                    data = nameTable[0][address & 0x03FF];
-                }
-                if (address >= 0x0800 && address <= 0x0BFF) {
-                    data = nameTable[1][address & 0x03FF];
-                }
-                if (address >= 0x0C00 && address <= 0x0FFF) {
-                    data = nameTable[1][address & 0x03FF];
-                }
+            if (fetchHook != null) {
+                data = fetchHook.readNameTable(address, nameTable);
+            } else {
+                data = nameTable[getNameTableIndex(address)][address & 0x03FF];
             }
         }
         else if (address >= 0x3F00 && address <= 0x3FFF) {
@@ -780,8 +898,26 @@ public class PPU {
      */
     private int frames = 0;
 
+    /**
+     * false 时不写入画面也不通知帧完成，用于run-ahead中不显示的帧
+     */
+    private boolean outputEnabled = true;
+
+    /**
+     * false 时不写入全尺寸的画面，只输出observation
+     */
+    private boolean screenEnabled = true;
+
+    private Observation observation;
+
     public boolean nmi = false;
 
+    /**
+     * 当前扫描线上A12上升沿所在的cycle，-1表示没有
+     * 在每条渲染扫描线的cycle 257计算，不需要在每次读取Pattern table时检查地址
+     */
+    private int a12RisingCycle = -1;
+
     // region 背景渲染相关字段
 
     /**
@@ -836,7 +972,7 @@ public class PPU {
      * 将所有的Shifter寄存器左移1位
      */
     public void updateShifters() {
-        if ((getPpuMask(PPUMask.BackgroundEnable) != 0) || scanLine == 261) {
+        if (isBackgroundEnabled() || scanLine == 261) {
             backgroundAttributeShifterHi = (backgroundAttributeShifterHi << 1) & 0xFFFF;
             backgroundAttributeShifterLo = (backgroundAttributeShifterLo << 1) & 0xFFFF;
 
@@ -845,7 +981,7 @@ public class PPU {
         }
 
         // 更新Sprite相关Shifter
-        if ((getPpuMask(PPUMask.SpriteEnable) != 0) && cycles >= 1 && cycles < 258) {
+        if (isSpriteEnabled() && cycles >= 1 && cycles < 258) {
             for (int i = 0; i < scanLineSprite.size(); i++) {
                 if (scanLineSprite.get(i).x > 0) {
                     scanLineSprite.get(i).x--;
@@ -858,7 +994,7 @@ public class PPU {
     }
 
     public void incrementScrollX() {
-        if ((getPpuMask(PPUMask.BackgroundEnable)) != 0 || (getPpuMask(PPUMask.SpriteEnable) != 0)) {
+        if (isRenderingEnabled()) {
             if ((v & 0x001F) == 31) { // if coarse X == 31
                 v &= ~0x001F;          // coarse X = 0
                 v ^= 0x0400;           // switch horizontal nametable
@@ -869,7 +1005,7 @@ public class PPU {
     }
 
     public void incrementScrollY() {
-        if ((getPpuMask(PPUMask.BackgroundEnable)) != 0 || (getPpuMask(PPUMask.SpriteEnable) != 0)) {
+        if (isRenderingEnabled()) {
             if ((v & 0x7000) != 0x7000) {       // if fine Y < 7
                 v += 0x1000;                      // increment fine Y
             } else {
@@ -889,17 +1025,40 @@ public class PPU {
     }
 
     public void transferAddressX() {
-        if ((getPpuMask(PPUMask.BackgroundEnable)) != 0 || (getPpuMask(PPUMask.SpriteEnable) != 0)) {
+        if (isRenderingEnabled()) {
             v = (v & ~0x041F) | (t & 0x041F);
         }
     }
 
     public void transferAddressY() {
-        if ((getPpuMask(PPUMask.BackgroundEnable)) != 0 || (getPpuMask(PPUMask.SpriteEnable) != 0)) {
+        if (isRenderingEnabled()) {
             v = (v & ~0x7BE0) | (t & 0x7BE0);
         }
     }
 
+    /**
+     * 计算当前扫描线上PPU地址线A12的上升沿
+     * 背景使用0x0000、Sprite使用0x1000时，在cycle 260开始读取Sprite图案时上升
+     * 背景使用0x1000、Sprite使用0x0000时，在cycle 324开始读取下一条扫描线的背景图案时上升
+     * 8x16的Sprite未使用的slot会读取tile 0xFF，视为0x1000
+     * @return 上升沿所在的cycle，没有渲染或者两者使用同一个图案表时为-1
+     */
+    private int getA12RisingCycle() {
+        if (!isRenderingEnabled()) {
+            return -1;
+        }
+
+        boolean backgroundHigh = getPpuCtrl(PPUCtrl.BackgroundSelect) == 1;
+        boolean spriteHigh = getPpuCtrl(PPUCtrl.SpriteSize) == 1 || getPpuCtrl(PPUCtrl.SpriteSelect) == 1;
+
+        if (!backgroundHigh && spriteHigh) {
+            return 260;
+        } else if (backgroundHigh && !spriteHigh) {
+            return 324;
+        }
+        return -1;
+    }
+
     /**
      * 反转字节的比特位
      * @param b
@@ -924,7 +1083,8 @@ public class PPU {
             // region background render
             byte backgroundPixel = 0x00, backgroundPalette = 0x00;
 
-            if (getPpuMask(PPUMask.BackgroundEnable) != 0) {
+            // 不输出画面时只有sprite 0 hit会影响模拟结果，不需要背景和前景的颜色
+            if (outputEnabled && isBackgroundEnabled()) {
                 // 二进制中的 1 表明当前渲染的像素位置
                 short shifterMask = (short) (0x8000 >>> fineX);
 
@@ -944,7 +1104,11 @@ public class PPU {
             // region foreground render
             byte foregroundPixel = 0x00, foregroundPalette = 0x00, foregroundPriority = 0x00;
 
-            if (getPpuMask(PPUMask.SpriteEnable) != 0) {
+            if (isSpriteEnabled() && !outputEnabled) {
+                // 和下面的循环结果相同：第一个不透明的sprite是scanLineSprite[0]
+                spriteZeroRendering = !scanLineSprite.isEmpty() && scanLineSprite.get(0).x == 0
+                        && ((spritePatternShifterLo[0] | spritePatternShifterHi[0]) & 0x80) != 0;
+            } else if (isSpriteEnabled()) {
                 spriteZeroRendering = false;
 
                 for (int i = 0; i < scanLineSprite.size(); i++) {
@@ -992,7 +1156,7 @@ public class PPU {
 
             // Sprite Zero Hit Detection
             if (spriteZeroRendering && spriteZeroHitPossible) {
-                if (getPpuMask(PPUMask.BackgroundEnable) != 0 && getPpuMask(PPUMask.SpriteEnable) != 0) {
+                if (isBackgroundEnabled() && isSpriteEnabled()) {
                     if (getPpuMask(PPUMask.BackgroundLeftEnable) == 0 && getPpuMask(PPUMask.SpriteLeftEnable) == 0) {
                         if (cycles >= 9 && cycles < 258) {
                             setPpuStatus(PPUStatus.SpriteZeroHit, 1);
@@ -1005,7 +1169,15 @@ public class PPU {
                 }
             }
 
-            screen[scanLine][cycles - 1] = getColorFromPalette(palette, pixel);
+            if (outputEnabled) {
+                byte color = getColorFromPalette(palette, pixel);
+                if (screenEnabled) {
+                    screen[scanLine][cycles - 1] = color;
+                }
+                if (observation != null) {
+                    observation.put(scanLine, cycles - 1, color);
+                }
+            }
         }
 
         // 处理可视扫描线和pre-render扫描线中的 8个cycle的循环
@@ -1028,7 +1200,7 @@ public class PPU {
                         loadBackgroundShifters();
 
                         // 加载Name table
-                        nextBackgroundTileId = ppuRead(getTileAddress(v)) & 0x00FF;
+                        nextBackgroundTileId = fetchTile(getTileAddress(v)) & 0x00FF;
                         break;
                     case 3:
                         // 读取Attribute table中的1字节（Attribute table中1字节控制一个4x4tile 的大Tile的颜色）
@@ -1040,7 +1212,7 @@ public class PPU {
 //                                (vramAddress.coarseX >>> 2) |
 //                                ((vramAddress.coarseY >>> 2) << 3));
 
-                        nextBackgroundTileAttribute = ppuRead(getAttributeAddress(v));
+                        nextBackgroundTileAttribute = fetchAttribute(getAttributeAddress(v));
 
                         // 从Attribute Table的1字节中选出2 bit
                         if (((v >>> 5) & 0x02) != 0) {
@@ -1055,12 +1227,12 @@ public class PPU {
                         break;
                     case 5:
                         // 读取Pattern table低字节
-                        nextBackgroundTilePatternLo = ppuRead((getPpuCtrl(PPUCtrl.BackgroundSelect) << 12) +
+                        nextBackgroundTilePatternLo = fetchBackgroundPattern((getPpuCtrl(PPUCtrl.BackgroundSelect) << 12) +
                                 (nextBackgroundTileId << 4) + getFineY(v));
                         break;
                     case 7:
                         // 读取Pattern table高字节
-                        nextBackgroundTilePatternHi = ppuRead((getPpuCtrl(PPUCtrl.BackgroundSelect) << 12) +
+                        nextBackgroundTilePatternHi = fetchBackgroundPattern((getPpuCtrl(PPUCtrl.BackgroundSelect) << 12) +
                                 (nextBackgroundTileId << 4) + getFineY(v) + 8);
                         break;
                     case 0:
@@ -1079,11 +1251,13 @@ public class PPU {
             if (cycles == 257) {
                 loadBackgroundShifters();
                 transferAddressX();
+
+                a12RisingCycle = getA12RisingCycle();
             }
 
             if (cycles == 338 || cycles == 340)
             {
-                nextBackgroundTileId = ppuRead(getTileAddress(v));
+                nextBackgroundTileId = fetchTile(getTileAddress(v));
             }
 
             // --------------Foreground Render--------------
@@ -1098,10 +1272,8 @@ public class PPU {
 //                });
                 spriteCount = 0;
 
-                IntStream.range(0, 8).forEach(i -> {
-                    spritePatternShifterLo[i] = 0;
-                    spritePatternShifterHi[i] = 0;
-                });
+                Arrays.fill(spritePatternShifterLo, (byte) 0);
+                Arrays.fill(spritePatternShifterHi, (byte) 0);
 
                 int index = 0;
                 spriteZeroHitPossible = false;
@@ -1113,7 +1285,7 @@ public class PPU {
                                 spriteZeroHitPossible = true;
                             }
 
-                            scanLineSprite.add(new OAMEntry(oam[index]));
+                            scanLineSprite.add(copySpriteEntry(oam[index]));
                         }
 
                         spriteCount++;
@@ -1178,8 +1350,8 @@ public class PPU {
                     }
 
                     spritePatternAddressHi = spritePatternAddressLo + 8;
-                    spritePatternBitsHi = ppuRead(spritePatternAddressHi);
-                    spritePatternBitsLo = ppuRead(spritePatternAddressLo);
+                    spritePatternBitsHi = fetchSpritePattern(spritePatternAddressHi);
+                    spritePatternBitsLo = fetchSpritePattern(spritePatternAddressLo);
 
                     // 水平翻转
                     if ((scanLineSprite.get(i).attribute & 0x40) != 0) {
@@ -1212,10 +1384,8 @@ public class PPU {
                 setPpuStatus(PPUStatus.SpriteOverflow, 0);
                 setPpuStatus(PPUStatus.SpriteZeroHit, 0);
 
-                IntStream.range(0, 8).forEach(i -> {
-                    spritePatternShifterLo[i] = 0;
-                    spritePatternShifterHi[i] = 0;
-                });
+                Arrays.fill(spritePatternShifterLo, (byte) 0);
+                Arrays.fill(spritePatternShifterHi, (byte) 0);
             }
             else if (cycles >= 280 && cycles <= 304) {
                 transferAddressY();
@@ -1226,6 +1396,13 @@ public class PPU {
             nextBackgroundTileId = ppuRead(0x2000 | (getPPUAddress(v) & 0x0FFF));
         }
 
+        if (cycles == a12RisingCycle) {
+            a12RisingCycle = -1;
+            if (mapper != null) {
+                mapper.ppuA12Rising();
+            }
+        }
+
         cycles++;
         if (cycles > 340) {
             cycles = 0;
@@ -1235,11 +1412,38 @@ public class PPU {
                 scanLine = 0;
                 frames++;
 
-                notifyFrameRenderCompleted();
+                if (observation != null) {
+                    observation.finish(outputEnabled);
+                }
+                if (outputEnabled) {
+                    notifyFrameRenderCompleted();
+                }
             }
         }
     }
 
+    /**
+     * 上电: 清空name table，OAM，调色板和画面，寄存器由之后的 {@link #reset()} 设置
+     */
+    void powerOn() {
+        for (byte[] table : nameTable) {
+            Arrays.fill(table, (byte) 0);
+        }
+        nameTablePages.markAll();
+        // 和构造时相同，全部为0xFF
+        for (OAMEntry entry : oam) {
+            entry.y = 0xFF;
+            entry.id = 0xFF;
+            entry.attribute = (byte) 0xFF;
+            entry.x = 0xFF;
+        }
+        oamAddress = 0;
+        Arrays.fill(palette, (byte) 0);
+        for (byte[] row : screen) {
+            Arrays.fill(row, (byte) 0);
+        }
+    }
+
     public void reset() {
         isFirstPpuAddress = true;
         ppuDataBuffer = 0x00;
@@ -1264,8 +1468,223 @@ public class PPU {
 
         v = 0;
         t = 0;
+
+        a12RisingCycle = -1;
+    }
+
+    /**
+     * @return reset之后完成的帧数
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * @param outputEnabled false 不输出画面，sprite 0 hit等影响模拟结果的部分照常运行
+     */
+    public void setOutputEnabled(boolean outputEnabled) {
+        this.outputEnabled = outputEnabled;
+    }
+
+    public boolean isOutputEnabled() {
+        return outputEnabled;
+    }
+
+    /**
+     * @param screenEnabled false 不写入 {@link #getScreen()}，只需要observation时可以跳过全尺寸的画面
+     */
+    public void setScreenEnabled(boolean screenEnabled) {
+        this.screenEnabled = screenEnabled;
+    }
+
+    public boolean isScreenEnabled() {
+        return screenEnabled;
+    }
+
+    /**
+     * @param observation 每帧同时输出的观察值，null 表示关闭
+     */
+    public void setObservation(Observation observation) {
+        this.observation = observation;
+    }
+
+    public Observation getObservation() {
+        return observation;
+    }
+
+    // region 状态
+
+    private static void putBoolean(ByteBuffer buffer, boolean value) {
+        buffer.put((byte) (value ? 1 : 0));
+    }
+
+    private static void putEntry(ByteBuffer buffer, OAMEntry entry) {
+        buffer.put((byte) entry.y);
+        buffer.put((byte) entry.id);
+        buffer.put(entry.attribute);
+        buffer.put((byte) entry.x);
+    }
+
+    private static void getEntry(ByteBuffer buffer, OAMEntry entry) {
+        entry.y = buffer.get() & 0x00FF;
+        entry.id = buffer.get() & 0x00FF;
+        entry.attribute = buffer.get();
+        entry.x = buffer.get() & 0x00FF;
+    }
+
+    /**
+     * 保存PPU的寄存器，VRAM，OAM，渲染流水线和当前的画面
+     */
+    void saveState(ByteBuffer buffer) {
+        for (byte[] table : nameTable) {
+            buffer.put(table);
+        }
+        saveRegisters(buffer);
+
+        for (byte[] line : screen) {
+            buffer.put(line);
+        }
+    }
+
+    void loadState(ByteBuffer buffer) {
+        for (byte[] table : nameTable) {
+            buffer.get(table);
+        }
+        nameTablePages.markAll();
+        loadRegisters(buffer);
+
+        for (byte[] line : screen) {
+            buffer.get(line);
+        }
+    }
+
+    /**
+     * 除了Name Table和画面之外的状态：调色板，寄存器，OAM，渲染流水线
+     * {@link StateHash}每帧计算这一部分
+     */
+    void saveRegisters(ByteBuffer buffer) {
+        buffer.put(palette);
+
+        buffer.put(ppuCtrl);
+        buffer.put(ppuMask);
+        buffer.put(ppuStatus);
+        buffer.putInt(oamAddress);
+        buffer.put(oamData);
+        buffer.put(oamDMA);
+        buffer.put(PpuScroll);
+        buffer.put(ppuAddress);
+        buffer.put(ppuData);
+        putBoolean(buffer, isFirstPpuAddress);
+        buffer.put(ppuDataBuffer);
+
+        for (OAMEntry entry : oam) {
+            putEntry(buffer, entry);
+        }
+        buffer.put((byte) scanLineSprite.size());
+        for (OAMEntry entry : scanLineSprite) {
+            putEntry(buffer, entry);
+        }
+        buffer.put(spriteCount);
+        buffer.put(spritePatternShifterLo);
+        buffer.put(spritePatternShifterHi);
+        putBoolean(buffer, spriteZeroHitPossible);
+        putBoolean(buffer, spriteZeroRendering);
+
+        buffer.putInt(fineX);
+        buffer.putInt(v);
+        buffer.putInt(t);
+        buffer.putInt(scanLine);
+        buffer.putInt(cycles);
+        buffer.putInt(frames);
+        putBoolean(buffer, nmi);
+        buffer.putInt(a12RisingCycle);
+
+        buffer.putInt(nextBackgroundTileId);
+        buffer.put(nextBackgroundTileAttribute);
+        buffer.put(nextBackgroundTilePatternHi);
+        buffer.put(nextBackgroundTilePatternLo);
+        buffer.putInt(backgroundPatternShifterHi);
+        buffer.putInt(backgroundPatternShifterLo);
+        buffer.putInt(backgroundAttributeShifterLo);
+        buffer.putInt(backgroundAttributeShifterHi);
+    }
+
+    void loadRegisters(ByteBuffer buffer) {
+        buffer.get(palette);
+
+        ppuCtrl = buffer.get();
+        ppuMask = buffer.get();
+        ppuStatus = buffer.get();
+        oamAddress = buffer.getInt();
+        oamData = buffer.get();
+        oamDMA = buffer.get();
+        PpuScroll = buffer.get();
+        ppuAddress = buffer.get();
+        ppuData = buffer.get();
+        isFirstPpuAddress = buffer.get() != 0;
+        ppuDataBuffer = buffer.get();
+
+        for (OAMEntry entry : oam) {
+            getEntry(buffer, entry);
+        }
+        int count = buffer.get();
+        scanLineSprite.clear();
+        for (int i = 0; i < count; i++) {
+            OAMEntry entry = scanLineSpriteEntries[i];
+            getEntry(buffer, entry);
+            scanLineSprite.add(entry);
+        }
+        spriteCount = buffer.get();
+        buffer.get(spritePatternShifterLo);
+        buffer.get(spritePatternShifterHi);
+        spriteZeroHitPossible = buffer.get() != 0;
+        spriteZeroRendering = buffer.get() != 0;
+
+        fineX = buffer.getInt();
+        v = buffer.getInt();
+        t = buffer.getInt();
+        scanLine = buffer.getInt();
+        cycles = buffer.getInt();
+        frames = buffer.getInt();
+        nmi = buffer.get() != 0;
+        a12RisingCycle = buffer.getInt();
+
+        nextBackgroundTileId = buffer.getInt();
+        nextBackgroundTileAttribute = buffer.get();
+        nextBackgroundTilePatternHi = buffer.get();
+        nextBackgroundTilePatternLo = buffer.get();
+        backgroundPatternShifterHi = buffer.getInt();
+        backgroundPatternShifterLo = buffer.getInt();
+        backgroundAttributeShifterLo = buffer.getInt();
+        backgroundAttributeShifterHi = buffer.getInt();
     }
 
+    /**
+     * 把状态复制到另一个PPU，Name Table和画面直接复制数组
+     * @param scratch 复制寄存器用的缓冲区
+     */
+    void copyInto(PPU other, ByteBuffer scratch) {
+        for (int i = 0; i < nameTable.length; i++) {
+            System.arraycopy(nameTable[i], 0, other.nameTable[i], 0, nameTable[i].length);
+        }
+        other.nameTablePages.markAll();
+
+        scratch.clear();
+        saveRegisters(scratch);
+        scratch.flip();
+        other.loadRegisters(scratch);
+
+        for (int row = 0; row < screen.length; row++) {
+            System.arraycopy(screen[row], 0, other.screen[row], 0, screen[row].length);
+        }
+    }
+
+    DirtyPages getNameTablePages() {
+        return nameTablePages;
+    }
+
+    // endregion
+
     private byte getUnsignedByte(int value) {
         return (byte) (value & 0x00FF);
     }
@@ -4,6 +4,7 @@ import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.SourceDataLine;
+import java.nio.ByteBuffer;
 
 /**
  * 脉冲波
@@ -119,6 +120,22 @@ public class PulseChannel implements Channel {
         return (byte) (data & 0x00FF);
     }
 
+    void saveState(ByteBuffer buffer) {
+        buffer.putInt(duty);
+        buffer.putInt(reload);
+        buffer.putInt(timer);
+        buffer.putInt(lengthCounter);
+        buffer.put((byte) (enabled ? 1 : 0));
+    }
+
+    void loadState(ByteBuffer buffer) {
+        duty = buffer.getInt();
+        reload = buffer.getInt();
+        timer = buffer.getInt();
+        lengthCounter = buffer.getInt();
+        enabled = buffer.get() != 0;
+    }
+
     public static void main(String[] args) {
         try {
             byte[] buffer = new byte[2];
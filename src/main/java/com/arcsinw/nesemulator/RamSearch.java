@@ -0,0 +1,363 @@
+package com.arcsinw.nesemulator;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * RAM搜索，用来找生命，坐标，计时器等变量的地址
+ * 搜索范围是 CPU RAM (0x0000 - 0x07FF) 和 PRG-RAM (0x6000 - )，拼接成一个快照
+ * 候选地址用位图表示，每次比较两个快照，把不满足条件的地址去掉
+ *
+ * 交互使用: {@link #reset()} 之后每次 {@link #filter(Condition)} 和上一次的快照比较
+ * 脚本使用: 先把录像的每一帧记录到 {@link Recording}，再用 {@link #filterEach} 在多个核心上并行筛选
+ */
+public class RamSearch {
+
+    private static final int RAM_SIZE = 2048;
+
+    private static final int SRAM_ADDRESS = 0x6000;
+
+    // region 条件
+
+    /**
+     * 比较方式
+     */
+    public enum Comparison {
+        /**
+         * 等于operand
+         */
+        EQUAL,
+        NOT_EQUAL,
+        LESS,
+        GREATER,
+        /**
+         * 和上一个快照相比变化了
+         */
+        CHANGED,
+        UNCHANGED,
+        INCREASED,
+        DECREASED,
+        /**
+         * 当前值 - 上一个值 == operand（按宽度回绕）
+         */
+        DIFFERENCE
+    }
+
+    /**
+     * 筛选条件，默认8位无符号
+     * 例如 {@code Condition.increasedBy(1).word()}, {@code Condition.lessThan(0).signed()}
+     */
+    public static final class Condition {
+        final Comparison comparison;
+        final int operand;
+        final boolean word;
+        final boolean signed;
+
+        private Condition(Comparison comparison, int operand, boolean word, boolean signed) {
+            this.comparison = comparison;
+            this.operand = operand;
+            this.word = word;
+            this.signed = signed;
+        }
+
+        public static Condition equalTo(int value) {
+            return new Condition(Comparison.EQUAL, value, false, false);
+        }
+
+        public static Condition notEqualTo(int value) {
+            return new Condition(Comparison.NOT_EQUAL, value, false, false);
+        }
+
+        public static Condition lessThan(int value) {
+            return new Condition(Comparison.LESS, value, false, false);
+        }
+
+        public static Condition greaterThan(int value) {
+            return new Condition(Comparison.GREATER, value, false, false);
+        }
+
+        public static Condition changed() {
+            return new Condition(Comparison.CHANGED, 0, false, false);
+        }
+
+        public static Condition unchanged() {
+            return new Condition(Comparison.UNCHANGED, 0, false, false);
+        }
+
+        public static Condition increased() {
+            return new Condition(Comparison.INCREASED, 0, false, false);
+        }
+
+        public static Condition decreased() {
+            return new Condition(Comparison.DECREASED, 0, false, false);
+        }
+
+        public static Condition increasedBy(int n) {
+            return new Condition(Comparison.DIFFERENCE, n, false, false);
+        }
+
+        public static Condition decreasedBy(int n) {
+            return new Condition(Comparison.DIFFERENCE, -n, false, false);
+        }
+
+        /**
+         * 16位，小端，地址是低字节
+         */
+        public Condition word() {
+            return new Condition(comparison, operand, true, signed);
+        }
+
+        /**
+         * 按有符号数比较大小
+         */
+        public Condition signed() {
+            return new Condition(comparison, operand, word, true);
+        }
+
+        int value(byte[] data, int offset) {
+            if (word) {
+                int value = (data[offset] & 0x00FF) | (data[offset + 1] & 0x00FF) << 8;
+                return signed ? (short) value : value;
+            }
+            return signed ? data[offset] : data[offset] & 0x00FF;
+        }
+
+        /**
+         * @param previous 上一个快照中的值
+         * @param current 当前快照中的值
+         */
+        boolean test(int previous, int current) {
+            switch (comparison) {
+                case EQUAL:
+                    return current == operand;
+                case NOT_EQUAL:
+                    return current != operand;
+                case LESS:
+                    return current < operand;
+                case GREATER:
+                    return current > operand;
+                case CHANGED:
+                    return current != previous;
+                case UNCHANGED:
+                    return current == previous;
+                case INCREASED:
+                    return current > previous;
+                case DECREASED:
+                    return current < previous;
+                case DIFFERENCE:
+                    int mask = word ? 0xFFFF : 0x00FF;
+                    return ((current - previous) & mask) == (operand & mask);
+                default:
+                    throw new Error("unknown comparison " + comparison);
+            }
+        }
+    }
+
+    // endregion
+
+    // region 录像
+
+    /**
+     * 连续多帧的快照，保存在一个数组中
+     */
+    public static final class Recording {
+        private final int snapshotSize;
+        private byte[] data;
+        private int frameCount;
+
+        public Recording(CPUBus bus) {
+            this.snapshotSize = RAM_SIZE + bus.getCartridge().getSram().length;
+            this.data = new byte[snapshotSize * 64];
+        }
+
+        /**
+         * 记录当前的内存
+         */
+        public void add(CPUBus bus) {
+            if ((frameCount + 1) * snapshotSize > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            snapshot(bus, data, frameCount * snapshotSize);
+            frameCount++;
+        }
+
+        /**
+         * 播放录像到结束，记录开始的状态和每一帧之后的状态
+         * 第i个快照是录像中第 position + i 帧运行之前的内存
+         */
+        public static Recording record(MoviePlayer player) {
+            Recording recording = new Recording(player.getBus());
+            recording.add(player.getBus());
+            while (player.runFrame()) {
+                recording.add(player.getBus());
+            }
+            return recording;
+        }
+
+        public int getFrameCount() {
+            return frameCount;
+        }
+
+        public int getSnapshotSize() {
+            return snapshotSize;
+        }
+    }
+
+    private static void snapshot(CPUBus bus, byte[] data, int offset) {
+        System.arraycopy(bus.cpuRAM, 0, data, offset, RAM_SIZE);
+        byte[] sram = bus.getCartridge().getSram();
+        System.arraycopy(sram, 0, data, offset + RAM_SIZE, sram.length);
+    }
+
+    // endregion
+
+    private final CPUBus bus;
+
+    private final int size;
+
+    /**
+     * 候选位图，第i位对应快照中的第i个字节
+     */
+    private final long[] candidates;
+
+    private byte[] previous;
+    private byte[] current;
+
+    public RamSearch(CPUBus bus) {
+        this.bus = bus;
+        this.size = RAM_SIZE + bus.getCartridge().getSram().length;
+        this.candidates = new long[(size + 63) >>> 6];
+        this.previous = new byte[size];
+        this.current = new byte[size];
+        reset();
+    }
+
+    /**
+     * 所有地址重新成为候选，并保存当前的快照
+     */
+    public void reset() {
+        Arrays.fill(candidates, -1L);
+        if ((size & 63) != 0) {
+            candidates[candidates.length - 1] = (1L << (size & 63)) - 1;
+        }
+        snapshot(bus, previous, 0);
+    }
+
+    /**
+     * 保存新的快照，和上一次的快照比较
+     * @return 剩余的候选数
+     */
+    public int filter(Condition condition) {
+        snapshot(bus, current, 0);
+        filter(previous, 0, current, 0, condition, 0, candidates.length);
+
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+        return getCount();
+    }
+
+    /**
+     * 比较录像中的两帧（不一定相邻）
+     * @return 剩余的候选数
+     */
+    public int filter(Recording recording, int previousFrame, int frame, Condition condition) {
+        checkRecording(recording, previousFrame, frame);
+        filter(recording.data, previousFrame * recording.snapshotSize, recording.data, frame * recording.snapshotSize,
+                condition, 0, candidates.length);
+        return getCount();
+    }
+
+    /**
+     * 录像中 [from, to] 的每一对相邻帧都要满足条件
+     * 位图按64位一组分给多个线程，每组依次检查所有帧，候选全部去掉之后提前结束
+     * @return 剩余的候选数
+     */
+    public int filterEach(Recording recording, int from, int to, Condition condition) {
+        checkRecording(recording, from, to);
+        int snapshotSize = recording.snapshotSize;
+        IntStream.range(0, candidates.length).parallel().forEach(word -> {
+            for (int frame = from + 1; frame <= to && candidates[word] != 0; frame++) {
+                filter(recording.data, (frame - 1) * snapshotSize, recording.data, frame * snapshotSize, condition, word, word + 1);
+            }
+        });
+        return getCount();
+    }
+
+    private void checkRecording(Recording recording, int from, int to) {
+        if (recording.snapshotSize != size) {
+            throw new Error("录像的快照大小和当前卡带不同");
+        }
+        if (from < 0 || to >= recording.frameCount || from > to) {
+            throw new Error("frame out of range: " + from + " - " + to);
+        }
+    }
+
+    /**
+     * 筛选位图中 [fromWord, toWord) 的部分
+     */
+    private void filter(byte[] previousData, int previousOffset, byte[] currentData, int currentOffset,
+                        Condition condition, int fromWord, int toWord) {
+        for (int word = fromWord; word < toWord; word++) {
+            long bits = candidates[word];
+            long remaining = bits;
+            while (remaining != 0) {
+                int bit = Long.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+
+                int offset = (word << 6) + bit;
+                // 16位的值不能跨过RAM和PRG-RAM的边界
+                if (condition.word && (offset == RAM_SIZE - 1 || offset == size - 1)) {
+                    bits &= ~(1L << bit);
+                    continue;
+                }
+                int before = condition.value(previousData, previousOffset + offset);
+                int after = condition.value(currentData, currentOffset + offset);
+                if (!condition.test(before, after)) {
+                    bits &= ~(1L << bit);
+                }
+            }
+            candidates[word] = bits;
+        }
+    }
+
+    // region 结果
+
+    public int getCount() {
+        int count = 0;
+        for (long word : candidates) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * @return 候选的CPU地址
+     */
+    public int[] getAddresses() {
+        int[] addresses = new int[getCount()];
+        int n = 0;
+        for (int word = 0; word < candidates.length; word++) {
+            long bits = candidates[word];
+            while (bits != 0) {
+                int offset = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                addresses[n++] = offset < RAM_SIZE ? offset : SRAM_ADDRESS + offset - RAM_SIZE;
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * 去掉一个候选（例如确认是无关的地址）
+     */
+    public void exclude(int address) {
+        int offset = address < RAM_SIZE ? address : address - SRAM_ADDRESS + RAM_SIZE;
+        if (offset < 0 || offset >= size) {
+            throw new Error(String.format("address out of range: %04X", address));
+        }
+        candidates[offset >>> 6] &= ~(1L << (offset & 63));
+    }
+
+    // endregion
+}
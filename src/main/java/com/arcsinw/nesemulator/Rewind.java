@@ -0,0 +1,333 @@
+package com.arcsinw.nesemulator;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 倒带，每帧保存一个存档，按住倒带键时一帧一帧恢复
+ *
+ * 每隔{@link #keyframeInterval}帧保存一个完整的关键帧，中间的帧保存和关键帧的异或（大部分是0）
+ * 模拟线程只复制一次存档，异或和Deflate压缩在后台线程完成
+ * 压缩后的总大小超过{@link #memoryLimit}时，从最旧的关键帧开始整组丢弃
+ */
+public class Rewind {
+
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+
+    /**
+     * 一帧的存档
+     * 压缩完成之前只有raw，压缩完成之后只有compressed
+     */
+    private static class Frame {
+        final Frame keyframe;
+
+        /**
+         * 原始大小
+         */
+        final int length;
+        byte[] raw;
+        byte[] compressed;
+        boolean removed;
+
+        Frame(Frame keyframe, byte[] raw) {
+            this.keyframe = keyframe;
+            this.raw = raw;
+            this.length = raw.length;
+        }
+
+        boolean isKeyframe() {
+            return keyframe == null;
+        }
+
+        int size() {
+            return raw != null ? raw.length : compressed.length;
+        }
+    }
+
+    private final SaveState state;
+
+    private final long memoryLimit;
+
+    private final int keyframeInterval;
+
+    /**
+     * 从旧到新，访问时锁住this
+     */
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+
+    private long totalSize;
+
+    /**
+     * 当前的关键帧和之后保存的帧数
+     */
+    private Frame currentKeyframe;
+    private int framesSinceKeyframe;
+
+    private final ExecutorService compressor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rewind-compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // region 后台线程
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater compressorInflater = new Inflater();
+
+    /**
+     * 后台线程最近压缩的关键帧的原始内容，用于计算异或
+     */
+    private Frame xorKeyframe;
+    private byte[] xorKeyframeBytes;
+
+    // endregion
+
+    private final Inflater inflater = new Inflater();
+
+    /**
+     * 倒带时最近解压的关键帧，连续倒带时同一组的帧不用重复解压关键帧
+     */
+    private Frame decodedKeyframe;
+    private byte[] decodedKeyframeBytes;
+
+    /**
+     * @param memoryLimit 压缩后占用内存的上限（字节）
+     * @param keyframeInterval 关键帧间隔（帧）
+     */
+    public Rewind(CPUBus bus, long memoryLimit, int keyframeInterval) {
+        if (keyframeInterval <= 0) {
+            throw new Error("keyframeInterval must be positive");
+        }
+        this.state = new SaveState(bus);
+        this.memoryLimit = memoryLimit;
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    public Rewind(CPUBus bus, long memoryLimit) {
+        this(bus, memoryLimit, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    /**
+     * 保存当前帧，在每帧结束时调用
+     */
+    public void push() {
+        state.capture();
+        byte[] raw = state.toByteArray();
+
+        Frame frame;
+        synchronized (this) {
+            boolean keyframe = currentKeyframe == null || currentKeyframe.removed
+                    || framesSinceKeyframe >= keyframeInterval - 1
+                    || raw.length != currentKeyframe.length;
+            frame = new Frame(keyframe ? null : currentKeyframe, raw);
+            if (keyframe) {
+                currentKeyframe = frame;
+                framesSinceKeyframe = 0;
+            } else {
+                framesSinceKeyframe++;
+            }
+
+            frames.addLast(frame);
+            totalSize += raw.length;
+            evict();
+        }
+        compressor.execute(() -> compress(frame));
+    }
+
+    /**
+     * 恢复到最近保存的一帧并把它移除
+     * @return false 没有可以恢复的帧
+     */
+    public boolean stepBack() {
+        byte[] bytes;
+        synchronized (this) {
+            Frame frame = frames.pollLast();
+            if (frame == null) {
+                return false;
+            }
+            remove(frame);
+            bytes = decode(frame, inflater, true);
+        }
+
+        state.load(bytes);
+        state.restore();
+        return true;
+    }
+
+    /**
+     * @return 可以倒退的帧数
+     */
+    public synchronized int size() {
+        return frames.size();
+    }
+
+    /**
+     * @return 当前占用的内存（字节），未压缩的帧按原始大小计算
+     */
+    public synchronized long getMemoryUsage() {
+        return totalSize;
+    }
+
+    public synchronized void clear() {
+        for (Frame frame : frames) {
+            frame.removed = true;
+        }
+        frames.clear();
+        totalSize = 0;
+        currentKeyframe = null;
+        decodedKeyframe = null;
+        decodedKeyframeBytes = null;
+    }
+
+    public void close() {
+        compressor.shutdownNow();
+    }
+
+    private void remove(Frame frame) {
+        frame.removed = true;
+        totalSize -= frame.size();
+        if (frame == decodedKeyframe) {
+            decodedKeyframe = null;
+            decodedKeyframeBytes = null;
+        }
+    }
+
+    /**
+     * 超过内存上限时丢弃最旧的关键帧和依赖它的帧，最新的一组保留
+     */
+    private void evict() {
+        while (totalSize > memoryLimit) {
+            Frame oldest = frames.peekFirst();
+            if (oldest == null || oldest == currentKeyframe || oldest.keyframe == currentKeyframe) {
+                return;
+            }
+
+            Frame group = oldest.isKeyframe() ? oldest : oldest.keyframe;
+            Iterator<Frame> iterator = frames.iterator();
+            while (iterator.hasNext()) {
+                Frame frame = iterator.next();
+                if (frame != group && frame.keyframe != group) {
+                    break;
+                }
+                iterator.remove();
+                remove(frame);
+            }
+        }
+    }
+
+    // region 压缩
+
+    /**
+     * 在后台线程运行
+     */
+    private void compress(Frame frame) {
+        byte[] raw;
+        byte[] delta;
+        synchronized (this) {
+            if (frame.removed) {
+                return;
+            }
+            raw = frame.raw;
+        }
+
+        if (frame.isKeyframe()) {
+            xorKeyframe = frame;
+            xorKeyframeBytes = raw;
+            delta = raw;
+        } else {
+            if (xorKeyframe != frame.keyframe) {
+                // 倒带之后新的帧可能和后台线程上一次处理的关键帧不同
+                synchronized (this) {
+                    if (frame.keyframe.removed) {
+                        return;
+                    }
+                    xorKeyframeBytes = decode(frame.keyframe, compressorInflater, false);
+                }
+                xorKeyframe = frame.keyframe;
+            }
+            delta = new byte[raw.length];
+            for (int i = 0; i < raw.length; i++) {
+                delta[i] = (byte) (raw[i] ^ xorKeyframeBytes[i]);
+            }
+        }
+
+        byte[] compressed = deflate(delta);
+
+        synchronized (this) {
+            if (frame.removed) {
+                return;
+            }
+            frame.compressed = compressed;
+            frame.raw = null;
+            totalSize += compressed.length - raw.length;
+            evict();
+        }
+    }
+
+    private byte[] deflate(byte[] data) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length / 8);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            outputStream.write(buffer, 0, n);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] inflate(Inflater inflater, byte[] data, int length) {
+        inflater.reset();
+        inflater.setInput(data);
+        byte[] result = new byte[length];
+        try {
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                n += inflater.inflate(result, n, length - n);
+            }
+        } catch (DataFormatException e) {
+            throw new Error("倒带数据损坏", e);
+        }
+        return result;
+    }
+
+    /**
+     * 还原一帧的原始内容，需要锁住this
+     * @param cache true 缓存解压的关键帧（模拟线程）
+     */
+    private byte[] decode(Frame frame, Inflater inflater, boolean cache) {
+        if (frame.raw != null) {
+            return frame.raw;
+        }
+
+        if (frame.isKeyframe()) {
+            return inflate(inflater, frame.compressed, frame.length);
+        }
+
+        byte[] keyframeBytes;
+        if (cache && decodedKeyframe == frame.keyframe) {
+            keyframeBytes = decodedKeyframeBytes;
+        } else {
+            keyframeBytes = decode(frame.keyframe, inflater, false);
+            if (cache) {
+                decodedKeyframe = frame.keyframe;
+                decodedKeyframeBytes = keyframeBytes;
+            }
+        }
+
+        byte[] bytes = inflate(inflater, frame.compressed, frame.length);
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] ^= keyframeBytes[i];
+        }
+        return bytes;
+    }
+
+    // endregion
+}
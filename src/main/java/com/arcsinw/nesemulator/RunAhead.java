@@ -0,0 +1,76 @@
+package com.arcsinw.nesemulator;
+
+/**
+ * Run-ahead，减少游戏本身的输入延迟
+ * 每帧先不输出地运行真实的一帧并保存，再用当前的输入向前运行N帧，只显示最后一帧，然后恢复到保存的状态
+ * 游戏在按键之后N帧才有反应的部分就被提前显示了
+ *
+ * 开销约为 N + 1 帧的模拟，隐藏的帧不写入画面
+ */
+public class RunAhead {
+
+    private final CPUBus bus;
+
+    private final SaveState state;
+
+    private volatile int frames;
+
+    /**
+     * 显示的那一帧画面，恢复状态之后放回PPU，getScreen()返回的总是最后显示的画面
+     */
+    private final byte[][] screen = new byte[240][256];
+
+    /**
+     * @param frames 向前运行的帧数，0 表示关闭
+     */
+    public RunAhead(CPUBus bus, int frames) {
+        this.bus = bus;
+        this.state = new SaveState(bus);
+        setFrames(frames);
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    public void setFrames(int frames) {
+        if (frames < 0) {
+            throw new Error("run-ahead frames must not be negative");
+        }
+        this.frames = frames;
+    }
+
+    /**
+     * 运行一帧，帧完成事件只在显示的那一帧触发
+     */
+    public void runFrame() {
+        if (frames == 0) {
+            bus.runFrame();
+            return;
+        }
+
+        PPU ppu = bus.ppu;
+        try {
+            ppu.setOutputEnabled(false);
+            bus.runFrame();
+            state.capture();
+
+            for (int i = 0; i < frames; i++) {
+                ppu.setOutputEnabled(i == frames - 1);
+                bus.runFrame();
+            }
+        } finally {
+            ppu.setOutputEnabled(true);
+        }
+
+        copyScreen(ppu.getScreen(), screen);
+        state.restore();
+        copyScreen(screen, ppu.getScreen());
+    }
+
+    private static void copyScreen(byte[][] from, byte[][] to) {
+        for (int row = 0; row < from.length; row++) {
+            System.arraycopy(from[row], 0, to[row], 0, from[row].length);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.arcsinw.nesemulator;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 二进制存档
+ * 每个部件把自己的字段直接写进一个可以重复使用的direct ByteBuffer，不使用反射和序列化
+ *
+ * 格式（big-endian）:
+ * "NESS" 格式版本
+ * 若干个块: tag(4) 版本(4) 长度(4) 内容
+ *
+ * 读取时跳过不认识的块，块的版本和当前代码不同时拒绝读取
+ */
+public class SaveState {
+
+    private static final int MAGIC = tag("NESS");
+
+    public static final int FORMAT_VERSION = 1;
+
+    // region 块
+
+    /**
+     * ROM的sha1，防止读取其他游戏的存档
+     */
+    private static final int TAG_ROM = tag("ROM ");
+    private static final int TAG_CPU = tag("CPU ");
+    private static final int TAG_PPU = tag("PPU ");
+    private static final int TAG_BUS = tag("BUS ");
+    private static final int TAG_APU = tag("APU ");
+
+    /**
+     * SRAM, CHR-RAM 和 mapper
+     */
+    private static final int TAG_CART = tag("CART");
+
+    /**
+     * 部件的字段改变后增加对应块的版本
+     */
+    private static final int CPU_VERSION = 1;
+    private static final int PPU_VERSION = 1;
+    private static final int BUS_VERSION = 1;
+    private static final int APU_VERSION = 1;
+    private static final int CART_VERSION = 1;
+
+    // endregion
+
+    private static final int INITIAL_CAPACITY = 128 * 1024;
+
+    private final CPUBus bus;
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+
+    /**
+     * 当前块的起始位置
+     */
+    private int chunkStart;
+
+    public SaveState(CPUBus bus) {
+        this.bus = bus;
+        buffer.limit(0);
+    }
+
+    private static int tag(String name) {
+        return name.charAt(0) << 24 | name.charAt(1) << 16 | name.charAt(2) << 8 | name.charAt(3);
+    }
+
+    /**
+     * 保存当前状态，覆盖上一次的内容
+     * 只能在CPU指令之间调用（{@link CPUBus#clock()}之间）
+     */
+    public void capture() {
+        while (true) {
+            try {
+                write();
+                return;
+            } catch (BufferOverflowException e) {
+                // 第一次保存较大的卡带（CHR-RAM，SRAM）时扩容，之后一直复用
+                buffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+            }
+        }
+    }
+
+    private void write() {
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+
+        beginChunk(TAG_ROM, 1);
+        byte[] sha1 = bus.getCartridge().getRomImage().getSha1().getBytes(StandardCharsets.US_ASCII);
+        buffer.put((byte) sha1.length);
+        buffer.put(sha1);
+        endChunk();
+
+        beginChunk(TAG_CPU, CPU_VERSION);
+        bus.getCpu().saveState(buffer);
+        endChunk();
+
+        beginChunk(TAG_PPU, PPU_VERSION);
+        bus.ppu.saveState(buffer);
+        endChunk();
+
+        beginChunk(TAG_BUS, BUS_VERSION);
+        bus.saveState(buffer);
+        endChunk();
+
+        beginChunk(TAG_APU, APU_VERSION);
+        bus.getApu().saveState(buffer);
+        endChunk();
+
+        beginChunk(TAG_CART, CART_VERSION);
+        bus.getCartridge().saveState(buffer);
+        endChunk();
+
+        buffer.flip();
+    }
+
+    private void beginChunk(int tag, int version) {
+        buffer.putInt(tag);
+        buffer.putInt(version);
+        chunkStart = buffer.position();
+        // 长度，endChunk时回填
+        buffer.putInt(0);
+    }
+
+    private void endChunk() {
+        buffer.putInt(chunkStart, buffer.position() - chunkStart - 4);
+    }
+
+    /**
+     * 恢复到上一次capture()或者读入的状态
+     */
+    public void restore() {
+        if (buffer.limit() == 0) {
+            throw new Error("没有可以恢复的存档");
+        }
+
+        ByteBuffer state = buffer.duplicate();
+        if (state.getInt() != MAGIC) {
+            throw new Error("不是存档文件");
+        }
+        int formatVersion = state.getInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new Error("不支持的存档版本: " + formatVersion);
+        }
+
+        while (state.remaining() > 0) {
+            int tag = state.getInt();
+            int version = state.getInt();
+            int length = state.getInt();
+            int end = state.position() + length;
+
+            if (tag == TAG_ROM) {
+                byte[] sha1 = new byte[state.get()];
+                state.get(sha1);
+                String expected = bus.getCartridge().getRomImage().getSha1();
+                if (!expected.equals(new String(sha1, StandardCharsets.US_ASCII))) {
+                    throw new Error("存档不属于当前ROM");
+                }
+            } else if (tag == TAG_CPU) {
+                checkVersion(tag, version, CPU_VERSION);
+                bus.getCpu().loadState(state);
+            } else if (tag == TAG_PPU) {
+                checkVersion(tag, version, PPU_VERSION);
+                bus.ppu.loadState(state);
+            } else if (tag == TAG_BUS) {
+                checkVersion(tag, version, BUS_VERSION);
+                bus.loadState(state);
+            } else if (tag == TAG_APU) {
+                checkVersion(tag, version, APU_VERSION);
+                bus.getApu().loadState(state);
+            } else if (tag == TAG_CART) {
+                checkVersion(tag, version, CART_VERSION);
+                bus.getCartridge().loadState(state);
+            } else {
+                // 不认识的块
+                state.position(end);
+            }
+
+            if (state.position() != end) {
+                throw new Error("存档损坏: " + tagName(tag));
+            }
+        }
+    }
+
+    private static void checkVersion(int tag, int version, int expected) {
+        if (version != expected) {
+            throw new Error(tagName(tag) + " 块的版本 " + version + " 与当前版本 " + expected + " 不同");
+        }
+    }
+
+    private static String tagName(int tag) {
+        return new String(new char[]{(char) (tag >>> 24), (char) ((tag >>> 16) & 0xFF),
+                (char) ((tag >>> 8) & 0xFF), (char) (tag & 0xFF)}).trim();
+    }
+
+    /**
+     * @return 存档的大小（字节）
+     */
+    public int size() {
+        return buffer.limit();
+    }
+
+    /**
+     * @return 存档内容的副本，用于写入文件
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[buffer.limit()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 读入存档文件的内容，随后调用restore()恢复
+     */
+    public void load(byte[] bytes) {
+        if (bytes.length > buffer.capacity()) {
+            buffer = ByteBuffer.allocateDirect(Math.max(bytes.length, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        buffer.put(bytes);
+        buffer.flip();
+    }
+}
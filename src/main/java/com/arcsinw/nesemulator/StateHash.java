@@ -0,0 +1,158 @@
+package com.arcsinw.nesemulator;
+
+import com.arcsinw.nesemulator.mapper.AbstractMapper;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 整个机器状态的64位hash，用于联机不同步检测，录像校验和回归测试
+ *
+ * 大块内存（CPU RAM，Name Table，SRAM，CHR-RAM）按256字节分页，每页的hash混合后相加，
+ * 只重新计算{@link DirtyPages}中版本变化的页，再减去旧值加上新值
+ * 寄存器，调色板，OAM和mapper的状态很小，每次都重新计算
+ *
+ * 不包括画面，只要状态相同，之后的画面也相同
+ */
+public class StateHash {
+
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    /**
+     * 一块分页的内存
+     */
+    private static class Region {
+        final int id;
+        byte[][] rows;
+        DirtyPages pages;
+        int[] seenVersions;
+        long[] pageHashes;
+
+        Region(int id) {
+            this.id = id;
+        }
+
+        /**
+         * 内存被替换（加载了新的卡带）时重新开始
+         * @return 这块内存原来对总和的贡献
+         */
+        long reset(byte[][] rows, DirtyPages pages) {
+            long old = 0;
+            if (pageHashes != null) {
+                for (long hash : pageHashes) {
+                    old += hash;
+                }
+            }
+
+            this.rows = rows;
+            this.pages = pages;
+            int count = pages == null ? 0 : pages.getPageCount();
+            seenVersions = new int[count];
+            pageHashes = new long[count];
+            for (int i = 0; i < count; i++) {
+                seenVersions[i] = pages.getVersion(i) - 1;
+            }
+            return old;
+        }
+
+        /**
+         * @return 总和的变化量
+         */
+        long update() {
+            long delta = 0;
+            int pagesPerRow = rows.length == 0 ? 1 : Math.max(rows[0].length >>> DirtyPages.PAGE_SHIFT, 1);
+            for (int page = 0; page < seenVersions.length; page++) {
+                int version = pages.getVersion(page);
+                if (version == seenVersions[page]) {
+                    continue;
+                }
+                seenVersions[page] = version;
+
+                byte[] row = rows[page / pagesPerRow];
+                int start = (page % pagesPerRow) << DirtyPages.PAGE_SHIFT;
+                long hash = fnv(FNV_OFFSET, row, start, Math.min(start + DirtyPages.PAGE_SIZE, row.length));
+                hash = mix(hash + ((long) id << 32 | page) * 0x9E3779B97F4A7C15L);
+
+                delta += hash - pageHashes[page];
+                pageHashes[page] = hash;
+            }
+            return delta;
+        }
+    }
+
+    private final CPUBus bus;
+
+    private final Region ram = new Region(1);
+    private final Region nameTable = new Region(2);
+    private final Region sram = new Region(3);
+    private final Region chrRam = new Region(4);
+
+    /**
+     * 所有页的hash之和
+     */
+    private long memoryHash;
+
+    private final ByteBuffer registers = ByteBuffer.allocate(16 * 1024);
+
+    public StateHash(CPUBus bus) {
+        this.bus = bus;
+    }
+
+    /**
+     * @return 当前状态的hash，在{@link CPUBus#clock()}之间调用
+     */
+    public long compute() {
+        Cartridge cartridge = bus.getCartridge();
+        AbstractMapper mapper = cartridge.getMapper();
+
+        if (ram.pages != bus.getRamPages()) {
+            memoryHash -= ram.reset(new byte[][]{bus.cpuRAM}, bus.getRamPages());
+        }
+        if (nameTable.pages != bus.ppu.getNameTablePages()) {
+            memoryHash -= nameTable.reset(bus.ppu.getNameTable(), bus.ppu.getNameTablePages());
+        }
+        if (sram.pages != mapper.getSramPages()) {
+            memoryHash -= sram.reset(new byte[][]{cartridge.getSram()}, mapper.getSramPages());
+        }
+        DirtyPages chrPages = cartridge.isChrRam() ? mapper.getChrPages() : null;
+        if (chrRam.pages != chrPages) {
+            memoryHash -= chrRam.reset(new byte[][]{cartridge.chr}, chrPages);
+        }
+
+        memoryHash += ram.update();
+        memoryHash += nameTable.update();
+        memoryHash += sram.update();
+        if (chrPages != null) {
+            memoryHash += chrRam.update();
+        }
+
+        registers.clear();
+        bus.getCpu().saveState(registers);
+        bus.ppu.saveRegisters(registers);
+        bus.saveRegisters(registers);
+        bus.getApu().saveState(registers);
+        mapper.saveState(registers);
+
+        long registersHash = fnv(FNV_OFFSET, registers.array(), 0, registers.position());
+        return mix(memoryHash ^ registersHash);
+    }
+
+    private static long fnv(long hash, byte[] data, int from, int to) {
+        for (int i = from; i < to; i++) {
+            hash = (hash ^ (data[i] & 0xFF)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * MurmurHash3 fmix64
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB93FE53E63A7L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,318 @@
+package com.arcsinw.nesemulator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 并行运行blargg格式的测试ROM，输出JUnit XML报告
+ *
+ * 测试ROM通过PRG-RAM报告结果：
+ * $6001 - $6003 为 DE B0 61 时 $6000 有效，0x80 运行中，0x81 需要按reset（至少等待100ms），0x00 - 0x7F 结果（0 通过）
+ * $6004 开始是以0结尾的文本输出
+ *
+ * 超时按模拟的时间计算（每秒60帧），结果和机器的负载无关
+ *
+ * usage: TestRomSuite 目录 [--threads N] [--timeout 秒] [--report 文件]
+ */
+public class TestRomSuite {
+
+    public static final int DEFAULT_TIMEOUT_SECONDS = 20;
+
+    private static final int FRAMES_PER_SECOND = 60;
+
+    /**
+     * 请求reset之后等待的帧数（100ms）
+     */
+    private static final int RESET_DELAY_FRAMES = 6;
+
+    private static final int STATUS_RUNNING = 0x80;
+    private static final int STATUS_RESET = 0x81;
+
+    public enum Outcome {
+        PASSED,
+        /**
+         * 结果码不为0
+         */
+        FAILED,
+        /**
+         * 超时还没有结果
+         */
+        TIMEOUT,
+        /**
+         * ROM无法加载或者模拟器出错
+         */
+        ERROR
+    }
+
+    public static final class Result {
+        public final String name;
+        public final Outcome outcome;
+
+        /**
+         * $6000的值，没有有效的状态时为-1
+         */
+        public final int status;
+
+        /**
+         * $6004开始的文本，已经去掉了终端颜色代码
+         */
+        public final String text;
+
+        public final int frames;
+        public final double seconds;
+
+        Result(String name, Outcome outcome, int status, String text, int frames, double seconds) {
+            this.name = name;
+            this.outcome = outcome;
+            this.status = status;
+            this.text = text;
+            this.frames = frames;
+            this.seconds = seconds;
+        }
+    }
+
+    private final int threads;
+
+    private final int timeoutFrames;
+
+    /**
+     * @param threads 同时运行的ROM数
+     * @param timeoutSeconds 每个ROM最长的模拟时间
+     */
+    public TestRomSuite(int threads, int timeoutSeconds) {
+        if (threads <= 0 || timeoutSeconds <= 0) {
+            throw new Error("threads and timeout must be positive");
+        }
+        this.threads = threads;
+        this.timeoutFrames = timeoutSeconds * FRAMES_PER_SECOND;
+    }
+
+    /**
+     * @return 和roms的顺序相同
+     */
+    public List<Result> run(List<File> roms) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (File rom : roms) {
+                futures.add(executor.submit(() -> runRom(rom, timeoutFrames)));
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(new Result(roms.get(i).getName(), Outcome.ERROR, -1, String.valueOf(e.getCause()), 0, 0));
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static Result runRom(File rom, int timeoutFrames) {
+        long start = System.nanoTime();
+        Console console;
+        try {
+            console = new Console(Cartridge.fromFile(rom.getPath()));
+        } catch (IOException | Error e) {
+            return new Result(rom.getName(), Outcome.ERROR, -1, String.valueOf(e), 0, 0);
+        }
+
+        CPUBus bus = console.getBus();
+        int resetFrame = -1;
+        int status = -1;
+        int frame = 0;
+        try {
+            while (frame < timeoutFrames) {
+                console.stepFrame();
+                frame++;
+
+                if (!hasSignature(bus)) {
+                    continue;
+                }
+                status = bus.read(0x6000) & 0x00FF;
+                if (status == STATUS_RESET) {
+                    if (resetFrame < 0) {
+                        resetFrame = frame + RESET_DELAY_FRAMES;
+                    } else if (frame >= resetFrame) {
+                        console.reset();
+                        resetFrame = -1;
+                    }
+                } else if (status < STATUS_RUNNING) {
+                    Outcome outcome = status == 0 ? Outcome.PASSED : Outcome.FAILED;
+                    return new Result(rom.getName(), outcome, status, readText(bus), frame, elapsed(start));
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            return new Result(rom.getName(), Outcome.ERROR, status, String.valueOf(e), frame, elapsed(start));
+        }
+        return new Result(rom.getName(), Outcome.TIMEOUT, status, hasSignature(bus) ? readText(bus) : "", frame, elapsed(start));
+    }
+
+    private static boolean hasSignature(CPUBus bus) {
+        return (bus.read(0x6001) & 0x00FF) == 0xDE
+                && (bus.read(0x6002) & 0x00FF) == 0xB0
+                && (bus.read(0x6003) & 0x00FF) == 0x61;
+    }
+
+    /**
+     * 读取$6004开始的文本，去掉 ESC [ ... m 颜色代码和其他控制字符
+     */
+    private static String readText(CPUBus bus) {
+        StringBuilder text = new StringBuilder();
+        boolean escape = false;
+        for (int address = 0x6004; address < 0x8000; address++) {
+            int c = bus.read(address) & 0x00FF;
+            if (c == 0) {
+                break;
+            }
+            if (escape) {
+                escape = c != 'm';
+            } else if (c == 0x1B) {
+                escape = true;
+            } else if (c == '\n' || (c >= 0x20 && c < 0x7F)) {
+                text.append((char) c);
+            }
+        }
+        return text.toString().trim();
+    }
+
+    private static double elapsed(long start) {
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    // region 报告
+
+    public static void writeJUnitXml(String suiteName, List<Result> results, double seconds, OutputStream outputStream) throws IOException {
+        long failures = results.stream().filter(r -> r.outcome == Outcome.FAILED).count();
+        long errors = results.stream().filter(r -> r.outcome == Outcome.TIMEOUT || r.outcome == Outcome.ERROR).count();
+
+        Writer out = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.write(String.format(Locale.ROOT, "<testsuite name=\"%s\" tests=\"%d\" failures=\"%d\" errors=\"%d\" time=\"%.3f\">\n",
+                escape(suiteName), results.size(), failures, errors, seconds));
+        for (Result result : results) {
+            out.write(String.format(Locale.ROOT, "  <testcase classname=\"%s\" name=\"%s\" time=\"%.3f\">\n",
+                    escape(suiteName), escape(result.name), result.seconds));
+            switch (result.outcome) {
+                case FAILED:
+                    out.write(String.format(Locale.ROOT, "    <failure message=\"result %d\">%s</failure>\n", result.status, escape(result.text)));
+                    break;
+                case TIMEOUT:
+                    out.write(String.format(Locale.ROOT, "    <error type=\"timeout\" message=\"no result after %d frames\">%s</error>\n",
+                            result.frames, escape(result.text)));
+                    break;
+                case ERROR:
+                    out.write(String.format(Locale.ROOT, "    <error type=\"error\" message=\"%s\"/>\n", escape(result.text)));
+                    break;
+                default:
+                    break;
+            }
+            if (result.outcome != Outcome.ERROR && !result.text.isEmpty()) {
+                out.write(String.format(Locale.ROOT, "    <system-out>%s</system-out>\n", escape(result.text)));
+            }
+            out.write("  </testcase>\n");
+        }
+        out.write("</testsuite>\n");
+        out.flush();
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    // endregion
+
+    private static void exitWithUsage() {
+        System.err.println("usage: TestRomSuite <dir> [--threads N] [--timeout seconds] [--report junit.xml]");
+        System.exit(2);
+    }
+
+    /**
+     * 退出码: 0 全部通过，1 有失败，2 参数错误
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File directory = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int timeout = DEFAULT_TIMEOUT_SECONDS;
+        File report = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    directory = new File(arg);
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    exitWithUsage();
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--timeout":
+                        timeout = Integer.parseInt(value);
+                        break;
+                    case "--report":
+                        report = new File(value);
+                        break;
+                    default:
+                        exitWithUsage();
+                }
+            }
+        } catch (NumberFormatException e) {
+            exitWithUsage();
+        }
+        if (directory == null || !directory.isDirectory() || threads <= 0 || timeout <= 0) {
+            exitWithUsage();
+        }
+
+        List<File> roms;
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            roms = paths.filter(path -> path.toString().toLowerCase().endsWith(".nes"))
+                    .sorted()
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+
+        long start = System.nanoTime();
+        List<Result> results = new TestRomSuite(threads, timeout).run(roms);
+        double seconds = elapsed(start);
+
+        int passed = 0;
+        for (Result result : results) {
+            System.out.println(String.format("%-8s %s (%d frames, %.2f s)", result.outcome, result.name, result.frames, result.seconds));
+            if (result.outcome == Outcome.PASSED) {
+                passed++;
+            }
+        }
+        System.out.println(String.format("%d / %d passed in %.2f s on %d threads", passed, results.size(), seconds, threads));
+
+        if (report != null) {
+            try (OutputStream outputStream = new FileOutputStream(report)) {
+                writeJUnitXml(directory.getName(), results, seconds, outputStream);
+            }
+        }
+        System.exit(passed == results.size() ? 0 : 1);
+    }
+}
@@ -1,5 +1,7 @@
 package com.arcsinw.nesemulator.input;
 
+import java.nio.ByteBuffer;
+
 /**
  * 手柄控制器
  */
@@ -29,6 +31,10 @@ public class Joypad {
         ButtonFlag(int mask) {
             this.mask = mask;
         }
+
+        public int getMask() {
+            return mask;
+        }
     }
 
     public void setButton(ButtonFlag flag, int value) {
@@ -56,6 +62,35 @@ public class Joypad {
         }
     }
 
+    /**
+     * @return 8个按键的状态，bit 0 - 7: A B Select Start Up Down Left Right
+     */
+    public int getButtons() {
+        return controller & 0x00FF;
+    }
+
+    public void setButtons(int buttons) {
+        controller = (byte) buttons;
+    }
+
+    /**
+     * 上电: 松开所有按键，移位寄存器回到A
+     */
+    public void reset() {
+        controller = 0;
+        index = 0;
+    }
+
+    public void saveState(ByteBuffer buffer) {
+        buffer.put(controller);
+        buffer.putInt(index);
+    }
+
+    public void loadState(ByteBuffer buffer) {
+        controller = buffer.get();
+        index = buffer.getInt();
+    }
+
     /**
      * 按键读出的顺序 A B Select Start Up Down Left Right
      * @return
@@ -1,11 +1,29 @@
 package com.arcsinw.nesemulator.mapper;
 
+import com.arcsinw.nesemulator.CPU;
+import com.arcsinw.nesemulator.CPUBus;
+import com.arcsinw.nesemulator.Cartridge;
+import com.arcsinw.nesemulator.DirtyPages;
+
+import java.nio.ByteBuffer;
+
 /**
  * 将地址映射到正确的物理内存
+ *
+ * 也是mapper插件（{@link MapperProvider}）的基类，子类可以使用的部分：
+ * Bank slot: {@link #prgSlots} {@link #chrSlots} 和 mapPrg / mapChr 系列方法
+ * IRQ: {@link #setIrq(boolean)}，或者通过{@link CPUBus#scheduleMapperEvent(long)}预约事件
+ * PPU: {@link #ppuA12Rising()}，需要观察PPU读取的mapper实现{@link com.arcsinw.nesemulator.PPU.FetchHook}
+ * 状态: {@link #saveState(ByteBuffer)} / {@link #loadState(ByteBuffer)}，子类在super之后写入自己的寄存器
  */
 public abstract class AbstractMapper {
     protected int id;
 
+    /**
+     * NES 2.0 submapper，用来区分同一个mapper号的不同变种
+     */
+    protected int submapper;
+
     public String getName() {
         return String.format("Mapper%03d", id);
     }
@@ -24,6 +42,34 @@ public abstract class AbstractMapper {
 
     protected byte[] sram;
 
+    private DirtyPages chrPages;
+    private DirtyPages sramPages;
+
+    /**
+     * 当前的镜像类型，默认使用文件头中的值，可以由mapper在运行时修改
+     */
+    protected Cartridge.Mirror mirror = Cartridge.Mirror.Horizontal;
+
+    /**
+     * CPU总线，用来触发IRQ
+     */
+    protected CPUBus bus;
+
+    // region Bank slot
+
+    /**
+     * CPU 0x8000 - 0xFFFF 分为4个8KB的slot，保存每个slot在prg中的偏移
+     * 切换bank只需要修改偏移
+     */
+    protected final int[] prgSlots = new int[4];
+
+    /**
+     * PPU 0x0000 - 0x1FFF 分为8个1KB的slot，保存每个slot在chr中的偏移
+     */
+    protected final int[] chrSlots = new int[8];
+
+    // endregion
+
     public AbstractMapper(byte[] prg, byte[] chr) {
         this.prg = prg;
         this.chr = chr;
@@ -43,12 +89,234 @@ public abstract class AbstractMapper {
 
     public void setChr(byte[] chr) {
         this.chr = chr;
+        this.chrPages = new DirtyPages(chr.length);
     }
 
     public void setSram(byte[] sram) {
         this.sram = sram;
+        this.sramPages = new DirtyPages(sram.length);
+    }
+
+    /**
+     * @return SRAM中被写过的页
+     */
+    public DirtyPages getSramPages() {
+        return sramPages;
+    }
+
+    /**
+     * @return CHR-RAM中被写过的页，CHR-ROM不会被写
+     */
+    public DirtyPages getChrPages() {
+        return chrPages;
+    }
+
+    /**
+     * 写SRAM和CHR-RAM都要经过这两个方法，记录被写过的页
+     */
+    protected void writeSram(int index, int data) {
+        sram[index] = (byte) data;
+        sramPages.mark(index);
+    }
+
+    protected void writeChr(int index, int data) {
+        chr[index] = (byte) data;
+        chrPages.mark(index);
+    }
+
+    public Cartridge.Mirror getMirror() {
+        return mirror;
+    }
+
+    public void setMirror(Cartridge.Mirror mirror) {
+        this.mirror = mirror;
+    }
+
+    public void setBus(CPUBus bus) {
+        this.bus = bus;
+    }
+
+    public int getSubmapper() {
+        return submapper;
+    }
+
+    public void setSubmapper(int submapper) {
+        this.submapper = submapper;
+    }
+
+    /**
+     * CPU 0x6000 - 0x7FFF
+     * 默认映射到SRAM的前8KB，小于8KB时镜像，没有PRG-RAM时返回0
+     */
+    public byte readPrgRam(int address) {
+        if (sram == null || sram.length == 0) {
+            return 0;
+        }
+        return sram[(address - 0x6000) % sram.length];
+    }
+
+    public void writePrgRam(int address, int data) {
+        if (sram == null || sram.length == 0) {
+            return;
+        }
+        writeSram((address - 0x6000) % sram.length, data & 0x00FF);
     }
 
+    // region Bank slot
+
+    /**
+     * 将8KB的PRG bank映射到slot，bank号超出范围时取模，负数从最后一个bank开始计算
+     * @param slot 0 - 3，对应 0x8000, 0xA000, 0xC000, 0xE000
+     * @param bank 8KB bank号
+     */
+    protected void mapPrg8k(int slot, int bank) {
+        prgSlots[slot] = Math.floorMod(bank, Math.max(1, prg.length / 0x2000)) * 0x2000;
+    }
+
+    /**
+     * @param slot 0 - 1，对应 0x8000, 0xC000
+     * @param bank 16KB bank号
+     */
+    protected void mapPrg16k(int slot, int bank) {
+        mapPrg8k(slot * 2, bank * 2);
+        mapPrg8k(slot * 2 + 1, bank * 2 + 1);
+    }
+
+    /**
+     * @param bank 32KB bank号
+     */
+    protected void mapPrg32k(int bank) {
+        for (int i = 0; i < 4; i++) {
+            mapPrg8k(i, bank * 4 + i);
+        }
+    }
+
+    /**
+     * @param slot 0 - 7，每个slot 1KB
+     * @param bank 1KB bank号
+     */
+    protected void mapChr1k(int slot, int bank) {
+        chrSlots[slot] = Math.floorMod(bank, Math.max(1, chr.length / 0x0400)) * 0x0400;
+    }
+
+    /**
+     * @param slot 0 - 3，每个slot 2KB
+     * @param bank 2KB bank号
+     */
+    protected void mapChr2k(int slot, int bank) {
+        mapChr1k(slot * 2, bank * 2);
+        mapChr1k(slot * 2 + 1, bank * 2 + 1);
+    }
+
+    /**
+     * @param slot 0 - 1，每个slot 4KB
+     * @param bank 4KB bank号
+     */
+    protected void mapChr4k(int slot, int bank) {
+        for (int i = 0; i < 4; i++) {
+            mapChr1k(slot * 4 + i, bank * 4 + i);
+        }
+    }
+
+    /**
+     * @param bank 8KB bank号
+     */
+    protected void mapChr8k(int bank) {
+        for (int i = 0; i < 8; i++) {
+            mapChr1k(i, bank * 8 + i);
+        }
+    }
+
+    /**
+     * @param address 0x8000 - 0xFFFF
+     */
+    protected byte readPrgSlot(int address) {
+        return prg[prgSlots[(address >>> 13) & 0x03] + (address & 0x1FFF)];
+    }
+
+    /**
+     * @param address 0x0000 - 0x1FFF
+     */
+    protected byte readChrSlot(int address) {
+        return chr[chrSlots[(address >>> 10) & 0x07] + (address & 0x03FF)];
+    }
+
+    protected void writeChrSlot(int address, int data) {
+        writeChr(chrSlots[(address >>> 10) & 0x07] + (address & 0x03FF), data & 0x00FF);
+    }
+
+    // endregion
+
+    /**
+     * PPU地址线A12的上升沿，PPU在每条渲染扫描线上预先计算出上升沿的位置，在该cycle调用一次
+     * 用于MMC3之类通过A12计数扫描线的mapper
+     */
+    public void ppuA12Rising() {}
+
+    /**
+     * 通过{@link CPUBus#scheduleMapperEvent(long)}预约的事件
+     * @param cycle 当前主时钟
+     */
+    public void onScheduledEvent(long cycle) {}
+
+    /**
+     * CPU 0x4020 - 0x5FFF 扩展区域，大多数mapper没有使用
+     */
+    public byte readExpansion(int address) {
+        return 0;
+    }
+
+    public void writeExpansion(int address, int data) {}
+
+    /**
+     * 设置mapper的IRQ输出
+     * @param active true 有效
+     */
+    protected void setIrq(boolean active) {
+        if (bus != null) {
+            bus.setIrq(CPU.IRQ_MAPPER, active);
+        }
+    }
+
+    // region 状态
+
+    /**
+     * 保存mapper的状态，PRG-RAM 和 CHR-RAM 由卡带保存
+     * 默认保存bank slot和镜像类型，有其他寄存器的子类需要先调用super再写入
+     */
+    public void saveState(ByteBuffer buffer) {
+        for (int slot : prgSlots) {
+            buffer.putInt(slot);
+        }
+        for (int slot : chrSlots) {
+            buffer.putInt(slot);
+        }
+        buffer.put((byte) mirror.getKey());
+    }
+
+    /**
+     * 按{@link #saveState(ByteBuffer)}的顺序读取
+     */
+    public void loadState(ByteBuffer buffer) {
+        for (int i = 0; i < prgSlots.length; i++) {
+            prgSlots[i] = buffer.getInt();
+        }
+        for (int i = 0; i < chrSlots.length; i++) {
+            chrSlots[i] = buffer.getInt();
+        }
+        mirror = Cartridge.Mirror.fromKey(buffer.get());
+    }
+
+    protected static void putBoolean(ByteBuffer buffer, boolean value) {
+        buffer.put((byte) (value ? 1 : 0));
+    }
+
+    protected static boolean getBoolean(ByteBuffer buffer) {
+        return buffer.get() != 0;
+    }
+
+    // endregion
+
     public abstract void write(int address, int data);
 
     public abstract byte read(int address);
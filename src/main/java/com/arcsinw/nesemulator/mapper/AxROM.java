@@ -1,5 +1,14 @@
 package com.arcsinw.nesemulator.mapper;
 
+import com.arcsinw.nesemulator.Cartridge;
+
+/**
+ * Mapper007
+ * CPU $8000-$FFFF: 32 KB switchable PRG ROM bank
+ * PPU $0000-$1FFF: 8 KB CHR-RAM
+ * 通过单屏镜像选择使用哪一块 Name table
+ * https://wiki.nesdev.com/w/index.php/AxROM
+ */
 public class AxROM extends AbstractMapper {
     public AxROM(byte[] prg, byte[] chr) {
         super(prg, chr);
@@ -9,13 +18,46 @@ public class AxROM extends AbstractMapper {
     public AxROM() {
         id = 7;
     }
+
     @Override
     public void write(int address, int data) {
-
+        if (address < 0x2000) {
+            // Pattern Table
+            writeChr(address, data & 0x00FF);
+        } else if (address >= 0x8000 && address <= 0xFFFF) {
+            writeBankSelect(data);
+        }
     }
 
     @Override
     public byte read(int address) {
-        return 0;
+        byte data = 0;
+        if (address < 0x2000) {
+            // Pattern Table
+            data = chr[address];
+        } else if (address >= 0x8000 && address <= 0xFFFF) {
+            data = readPrgSlot(address);
+        }
+
+        return data;
+    }
+
+    /**
+     * 7  bit  0
+     * ---- ----
+     * xxxM xPPP
+     *    |  |||
+     *    |  +++- Select 32 KB PRG ROM bank for CPU $8000-$FFFF
+     *    +------ Select 1 KB VRAM page for all 4 nametables
+     * @param data
+     */
+    public void writeBankSelect(int data) {
+        mapPrg32k(data & 0x07);
+        mirror = (data & 0x10) == 0 ? Cartridge.Mirror.SingleScreenLower : Cartridge.Mirror.SingleScreenUpper;
+    }
+
+    @Override
+    public void reset() {
+        writeBankSelect(0);
     }
 }
@@ -0,0 +1,53 @@
+package com.arcsinw.nesemulator.mapper;
+
+import java.util.stream.IntStream;
+
+/**
+ * 模拟器自带的mapper
+ */
+class BuiltinMapperProvider implements MapperProvider {
+
+    /**
+     * create() 中单独实现的mapper，加上 {@link DiscreteMapper} 表中的
+     */
+    private static final int[] IDS = IntStream.concat(
+            IntStream.of(0, 1, 2, 4, 5, 7, 21, 22, 23, 24, 25, 26),
+            IntStream.of(DiscreteMapper.getSupportedIds())).distinct().sorted().toArray();
+
+    @Override
+    public int[] getMapperIds() {
+        return IDS.clone();
+    }
+
+    @Override
+    public AbstractMapper create(int id) {
+        switch (id) {
+            case 0:
+                return new NROM();
+            case 1:
+                return new MMC1();
+            case 2:
+                return new UxROM();
+            case 4:
+                return new MMC3();
+            case 5:
+                return new MMC5();
+            case 7:
+                return new AxROM();
+            case 21:
+            case 22:
+            case 23:
+            case 25:
+                return new VRC4(id);
+            case 24:
+            case 26:
+                return new VRC6(id);
+            default:
+                // 离散逻辑的mapper
+                if (DiscreteMapper.isSupported(id)) {
+                    return new DiscreteMapper(id);
+                }
+                return null;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.arcsinw.nesemulator.mapper;
+
+import com.arcsinw.nesemulator.Cartridge;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 使用离散逻辑芯片（锁存器）实现的mapper
+ * 写入寄存器时，数据中的某几位选择PRG/CHR bank，不同的mapper只是寄存器地址和位的含义不同
+ * 每种mapper用一个{@link Spec}描述，bank切换都使用{@link AbstractMapper}的slot
+ *
+ * 例如 GxROM (066)
+ * 7  bit  0
+ * ---- ----
+ * xxPP xxCC
+ *   ||   ||
+ *   ||   ++- Select 8 KB CHR ROM bank for PPU $0000-$1FFF
+ *   ++------ Select 32 KB PRG ROM bank for CPU $8000-$FFFF
+ */
+public class DiscreteMapper extends AbstractMapper {
+
+    /**
+     * 寄存器中一个字段的作用
+     */
+    enum Target {
+        /**
+         * CPU $8000-$FFFF 32KB
+         */
+        PRG_32K,
+        /**
+         * PPU $0000-$1FFF 8KB
+         */
+        CHR_8K,
+        /**
+         * PPU $0000-$0FFF 4KB
+         */
+        CHR_4K_LOW,
+        /**
+         * PPU $1000-$1FFF 4KB
+         */
+        CHR_4K_HIGH,
+        /**
+         * 0: 水平镜像; 1: 垂直镜像
+         */
+        MIRROR,
+    }
+
+    /**
+     * 一个字段：(data >>> shift) & mask，放到目标值的第 at 位
+     * 多个字段可以写入同一个目标（位不连续的寄存器）
+     */
+    static final class Field {
+        final Target target;
+        final int shift;
+        final int mask;
+        final int at;
+
+        Field(Target target, int shift, int mask, int at) {
+            this.target = target;
+            this.shift = shift;
+            this.mask = mask;
+            this.at = at;
+        }
+    }
+
+    /**
+     * 一个寄存器：(address & addressMask) == addressValue 时写入
+     */
+    static final class Register {
+        final int addressMask;
+        final int addressValue;
+        final Field[] fields;
+
+        Register(int addressMask, int addressValue, Field[] fields) {
+            this.addressMask = addressMask;
+            this.addressValue = addressValue;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * 一种离散逻辑mapper的描述
+     */
+    public static final class Spec {
+        final int id;
+        final String name;
+        final List<Register> registers = new ArrayList<>(1);
+        boolean busConflicts;
+
+        Spec(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        /**
+         * 写入时数据线和ROM的输出冲突，实际写入的值是 data & ROM[address]
+         */
+        Spec busConflicts() {
+            busConflicts = true;
+            return this;
+        }
+
+        Spec register(int addressMask, int addressValue, Field... fields) {
+            registers.add(new Register(addressMask, addressValue, fields));
+            return this;
+        }
+
+        /**
+         * $8000-$FFFF 上的寄存器
+         */
+        Spec register(Field... fields) {
+            return register(0x8000, 0x8000, fields);
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private static Field field(Target target, int shift, int mask) {
+        return new Field(target, shift, mask, 0);
+    }
+
+    private static Field field(Target target, int shift, int mask, int at) {
+        return new Field(target, shift, mask, at);
+    }
+
+    // region 支持的mapper
+
+    private static final Map<Integer, Spec> SPECS = new HashMap<>();
+
+    /**
+     * mapper 034 有 CHR-ROM 时是 NINA-001
+     */
+    private static final Spec NINA_001 = new Spec(34, "NINA-001")
+            .register(0xFFFF, 0x7FFD, field(Target.PRG_32K, 0, 0x01))
+            .register(0xFFFF, 0x7FFE, field(Target.CHR_4K_LOW, 0, 0x0F))
+            .register(0xFFFF, 0x7FFF, field(Target.CHR_4K_HIGH, 0, 0x0F));
+
+    static {
+        add(new Spec(3, "CNROM").busConflicts()
+                .register(field(Target.CHR_8K, 0, 0xFF)));
+        add(new Spec(11, "Color Dreams").busConflicts()
+                .register(field(Target.PRG_32K, 0, 0x03), field(Target.CHR_8K, 4, 0x0F)));
+        add(new Spec(34, "BNROM").busConflicts()
+                .register(field(Target.PRG_32K, 0, 0xFF)));
+        add(new Spec(38, "Bit Corp.")
+                .register(0xF000, 0x7000, field(Target.PRG_32K, 0, 0x03), field(Target.CHR_8K, 2, 0x03)));
+        add(new Spec(66, "GxROM").busConflicts()
+                .register(field(Target.PRG_32K, 4, 0x03), field(Target.CHR_8K, 0, 0x03)));
+        add(new Spec(79, "NINA-03/06")
+                .register(0xE100, 0x4100, field(Target.PRG_32K, 3, 0x01), field(Target.CHR_8K, 0, 0x07)));
+        // CHR bank的低位和高位是反的
+        add(new Spec(87, "Jaleco JF-xx")
+                .register(0xE000, 0x6000, field(Target.CHR_8K, 1, 0x01, 0), field(Target.CHR_8K, 0, 0x01, 1)));
+        add(new Spec(113, "NINA-03/06 (HES)")
+                .register(0xE100, 0x4100, field(Target.PRG_32K, 3, 0x07),
+                        field(Target.CHR_8K, 0, 0x07, 0), field(Target.CHR_8K, 6, 0x01, 3),
+                        field(Target.MIRROR, 7, 0x01)));
+        add(new Spec(140, "Jaleco JF-11/14")
+                .register(0xE000, 0x6000, field(Target.PRG_32K, 4, 0x03), field(Target.CHR_8K, 0, 0x0F)));
+    }
+
+    private static void add(Spec spec) {
+        SPECS.put(spec.id, spec);
+    }
+
+    public static boolean isSupported(int id) {
+        return SPECS.containsKey(id);
+    }
+
+    /**
+     * @return 所有支持的mapper号
+     */
+    static int[] getSupportedIds() {
+        return SPECS.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+
+    // endregion
+
+    private Spec spec;
+
+    public DiscreteMapper(int id) {
+        this.id = id;
+        this.spec = SPECS.get(id);
+        if (spec == null) {
+            throw new Error("不支持的Mapper: " + id);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return String.format("Mapper%03d (%s)", id, spec.name);
+    }
+
+    @Override
+    public void write(int address, int data) {
+        data &= 0x00FF;
+        if (address <= 0x1FFF) {
+            // CHR-RAM
+            writeChrSlot(address, data);
+        } else if (address >= 0x8000 && address <= 0xFFFF) {
+            if (spec.busConflicts) {
+                data &= readPrgSlot(address);
+            }
+            latch(address, data);
+        }
+    }
+
+    @Override
+    public byte read(int address) {
+        byte data = 0;
+        if (address <= 0x1FFF) {
+            data = readChrSlot(address);
+        } else if (address >= 0x8000 && address <= 0xFFFF) {
+            data = readPrgSlot(address);
+        }
+
+        return data;
+    }
+
+    /**
+     * $6000-$7FFF 上的寄存器同时也写入PRG-RAM（NINA-001）
+     */
+    @Override
+    public void writePrgRam(int address, int data) {
+        super.writePrgRam(address, data);
+        latch(address, data & 0x00FF);
+    }
+
+    @Override
+    public void writeExpansion(int address, int data) {
+        latch(address, data & 0x00FF);
+    }
+
+    /**
+     * 找到地址对应的寄存器，按字段切换bank
+     */
+    private void latch(int address, int data) {
+        for (Register register : spec.registers) {
+            if ((address & register.addressMask) != register.addressValue) {
+                continue;
+            }
+
+            int prg32k = -1, chr8k = -1, chr4kLow = -1, chr4kHigh = -1, mirroring = -1;
+            for (Field field : register.fields) {
+                int value = ((data >>> field.shift) & field.mask) << field.at;
+                switch (field.target) {
+                    case PRG_32K:
+                        prg32k = Math.max(prg32k, 0) | value;
+                        break;
+                    case CHR_8K:
+                        chr8k = Math.max(chr8k, 0) | value;
+                        break;
+                    case CHR_4K_LOW:
+                        chr4kLow = Math.max(chr4kLow, 0) | value;
+                        break;
+                    case CHR_4K_HIGH:
+                        chr4kHigh = Math.max(chr4kHigh, 0) | value;
+                        break;
+                    case MIRROR:
+                        mirroring = value;
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            if (prg32k >= 0) {
+                mapPrg32k(prg32k);
+            }
+            if (chr8k >= 0) {
+                mapChr8k(chr8k);
+            }
+            if (chr4kLow >= 0) {
+                mapChr4k(0, chr4kLow);
+            }
+            if (chr4kHigh >= 0) {
+                mapChr4k(1, chr4kHigh);
+            }
+            if (mirroring >= 0 && mirror != Cartridge.Mirror.FourScreen) {
+                mirror = mirroring == 0 ? Cartridge.Mirror.Horizontal : Cartridge.Mirror.Vertical;
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        // BNROM 和 NINA-001 使用同一个mapper号，NINA-001 有 CHR-ROM
+        if (id == 34) {
+            spec = (submapper == 1 || chr.length > 8192) ? NINA_001 : SPECS.get(34);
+        }
+
+        mapPrg32k(0);
+        mapChr8k(0);
+    }
+}
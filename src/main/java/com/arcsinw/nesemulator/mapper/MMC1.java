@@ -1,5 +1,9 @@
 package com.arcsinw.nesemulator.mapper;
 
+import com.arcsinw.nesemulator.Cartridge;
+
+import java.nio.ByteBuffer;
+
 /**
  *
  * CPU $6000-$7FFF: 8 KB PRG RAM bank, (optional)
@@ -108,9 +112,9 @@ public class MMC1 extends AbstractMapper{
         if (address <= 0x1FFF) {
             // write chr
             int bank = (address / 0x1000) == 0 ? chrBank0Offset : chrBank1Offset;
-            chr[bank + (address % 0x1000)] = byteData;
+            writeChr(bank + (address % 0x1000), byteData);
         } else if (address >= 0x6000 && address <= 0x7FFF) {
-            sram[address - 0x6000] = byteData;
+            writeSram(address - 0x6000, byteData);
         } else if (address >= 0x8000 && address <= 0xFFFF) {
             // write common shifter register
             loadRegister(address, data);
@@ -171,6 +175,20 @@ public class MMC1 extends AbstractMapper{
     public void writeControlRegister(byte data) {
         controlRegister = data;
         mirroring = (data & 0x03);
+        switch (mirroring) {
+            case 0:
+                mirror = Cartridge.Mirror.SingleScreenLower;
+                break;
+            case 1:
+                mirror = Cartridge.Mirror.SingleScreenUpper;
+                break;
+            case 2:
+                mirror = Cartridge.Mirror.Vertical;
+                break;
+            default:
+                mirror = Cartridge.Mirror.Horizontal;
+                break;
+        }
         prgRomBankMode = ((data >>> 2) & 0x03);
         chrRomBankMode = ((data >>> 4) & 0x01);
         updateBankOffset();
@@ -235,6 +253,48 @@ public class MMC1 extends AbstractMapper{
             default:
                 break;
         }
+
+        // 8KB的CHR-RAM（SNROM等）会用CHR bank寄存器的高位控制其他功能
+        chrBank0Offset %= chr.length;
+        chrBank1Offset %= chr.length;
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        super.saveState(buffer);
+        buffer.put(controlRegister);
+        buffer.put(chrBank0Register);
+        buffer.put(chrBank1Register);
+        buffer.put(prgBankRegister);
+        buffer.putInt(mirroring);
+        buffer.putInt(prgRomBankMode);
+        buffer.putInt(chrRomBankMode);
+        buffer.putInt(chrBank0Offset);
+        buffer.putInt(chrBank1Offset);
+        buffer.putInt(prgBank0Offset);
+        buffer.putInt(prgBank1Offset);
+        buffer.put(shiftRegister);
+        buffer.put(shiftCount);
+        putBoolean(buffer, prgRamEnable);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        super.loadState(buffer);
+        controlRegister = buffer.get();
+        chrBank0Register = buffer.get();
+        chrBank1Register = buffer.get();
+        prgBankRegister = buffer.get();
+        mirroring = buffer.getInt();
+        prgRomBankMode = buffer.getInt();
+        chrRomBankMode = buffer.getInt();
+        chrBank0Offset = buffer.getInt();
+        chrBank1Offset = buffer.getInt();
+        prgBank0Offset = buffer.getInt();
+        prgBank1Offset = buffer.getInt();
+        shiftRegister = buffer.get();
+        shiftCount = buffer.get();
+        prgRamEnable = getBoolean(buffer);
     }
 
     @Override
@@ -250,5 +310,8 @@ public class MMC1 extends AbstractMapper{
 
         prgBank0Offset = 0;
         prgBank1Offset = ((prg.length / 16384) - 1) * 0x4000;
+
+        chrBank0Offset = 0;
+        chrBank1Offset = 0x1000 % chr.length;
     }
 }
@@ -1,6 +1,25 @@
 package com.arcsinw.nesemulator.mapper;
 
-public class MMC3 extends AbstractMapper{
+import com.arcsinw.nesemulator.Cartridge;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Mapper004
+ * CPU $6000-$7FFF: 8 KB PRG RAM bank (optional)
+ * CPU $8000-$9FFF (or $C000-$DFFF): 8 KB switchable PRG ROM bank
+ * CPU $A000-$BFFF: 8 KB switchable PRG ROM bank
+ * CPU $C000-$DFFF (or $8000-$9FFF): 8 KB PRG ROM bank, fixed to the second-last bank
+ * CPU $E000-$FFFF: 8 KB PRG ROM bank, fixed to the last bank
+ * PPU $0000-$07FF (or $1000-$17FF): 2 KB switchable CHR bank
+ * PPU $0800-$0FFF (or $1800-$1FFF): 2 KB switchable CHR bank
+ * PPU $1000-$13FF (or $0000-$03FF): 1 KB switchable CHR bank
+ * PPU $1400-$17FF (or $0400-$07FF): 1 KB switchable CHR bank
+ * PPU $1800-$1BFF (or $0800-$0BFF): 1 KB switchable CHR bank
+ * PPU $1C00-$1FFF (or $0C00-$0FFF): 1 KB switchable CHR bank
+ * https://wiki.nesdev.com/w/index.php/MMC3
+ */
+public class MMC3 extends AbstractMapper {
 
     public MMC3(byte[] prg, byte[] chr) {
         super(prg, chr);
@@ -11,13 +30,257 @@ public class MMC3 extends AbstractMapper{
         id = 4;
     }
 
+    // region 内部寄存器
+
+    /**
+     * $8000-$9FFE, even
+     * CPMx xRRR
+     * |||   |||
+     * |||   +++- Specify which bank register to update on next write to Bank Data register
+     * |||          0: Select 2 KB CHR bank at PPU $0000-$07FF (or $1000-$17FF)
+     * |||          1: Select 2 KB CHR bank at PPU $0800-$0FFF (or $1800-$1FFF)
+     * |||          2: Select 1 KB CHR bank at PPU $1000-$13FF (or $0000-$03FF)
+     * |||          3: Select 1 KB CHR bank at PPU $1400-$17FF (or $0400-$07FF)
+     * |||          4: Select 1 KB CHR bank at PPU $1800-$1BFF (or $0800-$0BFF)
+     * |||          5: Select 1 KB CHR bank at PPU $1C00-$1FFF (or $0C00-$0FFF)
+     * |||          6: Select 8 KB PRG ROM bank at $8000-$9FFF (or $C000-$DFFF)
+     * |||          7: Select 8 KB PRG ROM bank at $A000-$BFFF
+     * ||+------- Nothing on the MMC3, see MMC6
+     * |+-------- PRG ROM bank mode (0: $8000-$9FFF swappable, $C000-$DFFF fixed to second-last bank;
+     * |                             1: $C000-$DFFF swappable, $8000-$9FFF fixed to second-last bank)
+     * +--------- CHR A12 inversion (0: two 2 KB banks at $0000-$0FFF, four 1 KB banks at $1000-$1FFF;
+     *                               1: two 2 KB banks at $1000-$1FFF, four 1 KB banks at $0000-$0FFF)
+     */
+    private int bankSelect;
+
+    /**
+     * R0 - R7，由 $8001-$9FFF, odd 写入
+     */
+    private final int[] bankRegisters = new int[8];
+
+    /**
+     * $A001-$BFFF, odd
+     * RWXX xxxx
+     * ||||
+     * ||++------ Nothing on the MMC3, see MMC6
+     * |+-------- Write protection (0: allow writes; 1: deny writes)
+     * +--------- PRG RAM chip enable (0: disable; 1: enable)
+     */
+    private boolean prgRamEnable = true;
+    private boolean prgRamWriteProtect = false;
+
+    // endregion
+
+    // region IRQ
+
+    /**
+     * $C000-$DFFE, even
+     * 计数器减到0时重新装入的值
+     */
+    private int irqLatch;
+
+    /**
+     * 扫描线计数器，由PPU A12的上升沿驱动
+     */
+    private int irqCounter;
+
+    /**
+     * $C001-$DFFF, odd 写入后，下一个A12上升沿时重新装入计数器
+     */
+    private boolean irqReload;
+
+    /**
+     * $E000-$FFFE, even 禁用; $E001-$FFFF, odd 启用
+     */
+    private boolean irqEnable;
+
+    // endregion
+
     @Override
     public void write(int address, int data) {
-
+        data &= 0x00FF;
+        if (address <= 0x1FFF) {
+            // CHR-RAM
+            writeChrSlot(address, data);
+        } else if (address >= 0x8000 && address <= 0xFFFF) {
+            writeRegister(address, data);
+        }
     }
 
     @Override
     public byte read(int address) {
-        return 0;
+        byte data = 0;
+        if (address <= 0x1FFF) {
+            data = readChrSlot(address);
+        } else if (address >= 0x8000 && address <= 0xFFFF) {
+            data = readPrgSlot(address);
+        }
+
+        return data;
+    }
+
+    @Override
+    public byte readPrgRam(int address) {
+        if (!prgRamEnable) {
+            return 0;
+        }
+        return super.readPrgRam(address);
+    }
+
+    @Override
+    public void writePrgRam(int address, int data) {
+        if (prgRamEnable && !prgRamWriteProtect) {
+            super.writePrgRam(address, data);
+        }
+    }
+
+    /**
+     * 寄存器按地址范围（8KB）和奇偶分为8个
+     */
+    private void writeRegister(int address, int data) {
+        boolean even = (address & 0x01) == 0;
+        switch (address & 0xE000) {
+            case 0x8000:
+                if (even) {
+                    bankSelect = data;
+                } else {
+                    bankRegisters[bankSelect & 0x07] = data;
+                }
+                updateBankOffset();
+                break;
+            case 0xA000:
+                if (even) {
+                    // 四屏的卡带忽略镜像寄存器
+                    if (mirror != Cartridge.Mirror.FourScreen) {
+                        mirror = (data & 0x01) == 0 ? Cartridge.Mirror.Vertical : Cartridge.Mirror.Horizontal;
+                    }
+                } else {
+                    prgRamEnable = (data & 0x80) != 0;
+                    prgRamWriteProtect = (data & 0x40) != 0;
+                }
+                break;
+            case 0xC000:
+                if (even) {
+                    irqLatch = data;
+                } else {
+                    irqCounter = 0;
+                    irqReload = true;
+                }
+                break;
+            case 0xE000:
+                if (even) {
+                    // 禁用并确认中断
+                    irqEnable = false;
+                    setIrq(false);
+                } else {
+                    irqEnable = true;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void updateBankOffset() {
+        // PRG，倒数第二个bank固定在 $C000 或 $8000，最后一个bank固定在 $E000
+        if ((bankSelect & 0x40) == 0) {
+            mapPrg8k(0, bankRegisters[6]);
+            mapPrg8k(2, -2);
+        } else {
+            mapPrg8k(0, -2);
+            mapPrg8k(2, bankRegisters[6]);
+        }
+        mapPrg8k(1, bankRegisters[7]);
+        mapPrg8k(3, -1);
+
+        // CHR，R0/R1是2KB bank，忽略最低位
+        int inversion = (bankSelect & 0x80) != 0 ? 4 : 0;
+        mapChr1k(inversion, bankRegisters[0] & 0xFE);
+        mapChr1k(inversion + 1, bankRegisters[0] | 0x01);
+        mapChr1k(inversion + 2, bankRegisters[1] & 0xFE);
+        mapChr1k(inversion + 3, bankRegisters[1] | 0x01);
+        mapChr1k(inversion ^ 4, bankRegisters[2]);
+        mapChr1k((inversion ^ 4) + 1, bankRegisters[3]);
+        mapChr1k((inversion ^ 4) + 2, bankRegisters[4]);
+        mapChr1k((inversion ^ 4) + 3, bankRegisters[5]);
+    }
+
+    /**
+     * 计数器为0或者需要重新装入时装入latch，否则减1
+     * 减到0并且启用了IRQ时触发中断
+     * 旧的MMC3A（submapper 4）只在计数器从非0减到0时触发，装入的latch为0时不触发
+     */
+    @Override
+    public void ppuA12Rising() {
+        int previous = irqCounter;
+        if (irqCounter == 0 || irqReload) {
+            irqCounter = irqLatch;
+        } else {
+            irqCounter--;
+        }
+
+        boolean trigger = irqCounter == 0;
+        if (submapper == 4) {
+            trigger = trigger && (previous != 0 || irqReload);
+        }
+        irqReload = false;
+
+        if (trigger && irqEnable) {
+            setIrq(true);
+        }
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        super.saveState(buffer);
+        buffer.putInt(bankSelect);
+        for (int register : bankRegisters) {
+            buffer.putInt(register);
+        }
+        putBoolean(buffer, prgRamEnable);
+        putBoolean(buffer, prgRamWriteProtect);
+        buffer.putInt(irqLatch);
+        buffer.putInt(irqCounter);
+        putBoolean(buffer, irqReload);
+        putBoolean(buffer, irqEnable);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        super.loadState(buffer);
+        bankSelect = buffer.getInt();
+        for (int i = 0; i < bankRegisters.length; i++) {
+            bankRegisters[i] = buffer.getInt();
+        }
+        prgRamEnable = getBoolean(buffer);
+        prgRamWriteProtect = getBoolean(buffer);
+        irqLatch = buffer.getInt();
+        irqCounter = buffer.getInt();
+        irqReload = getBoolean(buffer);
+        irqEnable = getBoolean(buffer);
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        bankSelect = 0;
+        bankRegisters[0] = 0;
+        bankRegisters[1] = 2;
+        bankRegisters[2] = 4;
+        bankRegisters[3] = 5;
+        bankRegisters[4] = 6;
+        bankRegisters[5] = 7;
+        bankRegisters[6] = 0;
+        bankRegisters[7] = 1;
+        prgRamEnable = true;
+        prgRamWriteProtect = false;
+
+        irqLatch = 0;
+        irqCounter = 0;
+        irqReload = false;
+        irqEnable = false;
+        setIrq(false);
+
+        updateBankOffset();
     }
 }
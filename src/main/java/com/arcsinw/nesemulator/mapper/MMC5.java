@@ -0,0 +1,758 @@
+package com.arcsinw.nesemulator.mapper;
+
+import com.arcsinw.nesemulator.Cartridge;
+import com.arcsinw.nesemulator.PPU;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Mapper005 (MMC5 / ExROM)
+ * CPU $5C00-$5FFF: 1 KB ExRAM
+ * CPU $6000-$7FFF: 8 KB switchable PRG RAM bank
+ * CPU $8000-$FFFF: 4种PRG模式，32KB / 16KB / 16KB+8KB / 4 x 8KB，除$E000外都可以映射到PRG RAM
+ * PPU $0000-$1FFF: 4种CHR模式，8KB / 4KB / 2KB / 1KB，8x16 Sprite时背景和Sprite使用两组不同的寄存器
+ * PPU $2000-$2FFF: 每个name table可以选择CIRAM的两页，ExRAM，或者填充模式
+ *
+ * MMC5没有接PPU的A12以外的控制线，只能通过观察PPU的读取来判断扫描线：
+ * 连续3次读取同一个name table地址（每条扫描线末尾的两次空读 + 下一条扫描线的第一次读取）表示新的扫描线开始
+ * 通过{@link PPU.FetchHook}实现，扩展音源没有实现
+ * https://wiki.nesdev.com/w/index.php/MMC5
+ */
+public class MMC5 extends AbstractMapper implements PPU.FetchHook {
+
+    public MMC5() {
+        id = 5;
+    }
+
+    /**
+     * PPU超过一条扫描线（主时钟）没有读取name table时认为渲染已经停止
+     */
+    private static final int IN_FRAME_TIMEOUT = 341;
+
+    // region PRG
+
+    /**
+     * $5100 xxxx xxPP
+     * 0: 32KB; 1: 16KB + 16KB; 2: 16KB + 8KB + 8KB; 3: 4 x 8KB
+     */
+    private int prgMode;
+
+    /**
+     * $5113 - $5117
+     * [0] $6000 (只能是RAM); [1] - [4] $8000, $A000, $C000, $E000
+     * RBBB BBBB，R=1 ROM; R=0 RAM（$5117总是ROM）
+     */
+    private final int[] prgRegisters = new int[5];
+
+    /**
+     * 每个slot是否映射到PRG RAM，以及RAM的bank号
+     */
+    private final boolean[] prgSlotRam = new boolean[4];
+    private final int[] prgRamBanks = new int[4];
+
+    /**
+     * $5102 = 2 且 $5103 = 1 时才能写入PRG RAM
+     */
+    private int prgRamProtect1;
+    private int prgRamProtect2;
+
+    // endregion
+
+    // region CHR
+
+    /**
+     * $5101 xxxx xxCC
+     * 0: 8KB; 1: 4KB; 2: 2KB; 3: 1KB
+     */
+    private int chrMode;
+
+    /**
+     * $5120 - $5127，Sprite（8x8 Sprite时也用于背景）
+     */
+    private final int[] chrRegistersA = new int[8];
+
+    /**
+     * $5128 - $512B，8x16 Sprite时用于背景
+     */
+    private final int[] chrRegistersB = new int[4];
+
+    /**
+     * B组寄存器映射后的偏移，A组使用{@link #chrSlots}
+     */
+    private final int[] chrSlotsB = new int[8];
+
+    /**
+     * $5130 CHR bank的高2位
+     */
+    private int chrUpper;
+
+    /**
+     * 最后写入的是B组，8x8 Sprite时和$2007读取使用最后写入的一组
+     */
+    private boolean lastWrittenB;
+
+    /**
+     * 监听$2000 bit 5
+     */
+    private boolean sprite8x16;
+
+    // endregion
+
+    // region Name table / ExRAM
+
+    private final byte[] exRam = new byte[1024];
+
+    /**
+     * $5104 xxxx xxXX
+     * 0: name table; 1: 扩展属性; 2: CPU 读写; 3: CPU 只读
+     */
+    private int exRamMode;
+
+    /**
+     * $5105 DDCC BBAA，每个name table 2位
+     * 0: CIRAM 第0页; 1: CIRAM 第1页; 2: ExRAM; 3: 填充模式
+     */
+    private int nameTableMapping;
+
+    /**
+     * $5106 / $5107
+     */
+    private int fillTile;
+    private int fillAttribute;
+
+    // endregion
+
+    // region 垂直分屏
+
+    /**
+     * $5200 ESxW WWWW
+     * E: enable; S: 0 左侧，1 右侧; W: 分界的tile列
+     */
+    private int splitMode;
+
+    /**
+     * $5201 分屏区域的纵向滚动
+     */
+    private int splitScroll;
+
+    /**
+     * $5202 分屏区域使用的4KB CHR bank
+     */
+    private int splitBank;
+
+    /**
+     * 当前扫描线在分屏区域中的Y坐标
+     */
+    private int splitY;
+
+    /**
+     * 最后一次tile读取是否在分屏区域，属性和图案的读取跟随tile
+     */
+    private boolean inSplit;
+
+    private int splitTileId;
+
+    // endregion
+
+    // region 扫描线检测 / IRQ
+
+    private int lastTileAddress = -1;
+    private int matchCount;
+
+    /**
+     * 扫描线开始后的第几次tile读取
+     * 0 - 31: 当前扫描线第2 - 33列（前两列已经在上一条扫描线预取）; 32 - 33: 下一条扫描线第0 - 1列; 34 - 35: 空读
+     */
+    private int fetchIndex;
+
+    private long lastFetchCycle;
+
+    private boolean inFrame;
+
+    private int scanlineCounter;
+
+    /**
+     * $5203
+     */
+    private int irqCompare;
+
+    /**
+     * $5204 bit 7
+     */
+    private boolean irqEnable;
+
+    private boolean irqPending;
+
+    /**
+     * 扩展属性模式下最后一次读取的ExRAM字节
+     * PPBB BBBB，P: palette; B: 4KB CHR bank
+     */
+    private int extendedAttribute;
+
+    // endregion
+
+    /**
+     * $5205 / $5206 8位无符号乘法
+     */
+    private int multiplicand = 0xFF;
+    private int multiplier = 0xFF;
+
+    // region CPU
+
+    @Override
+    public void write(int address, int data) {
+        data &= 0x00FF;
+        if (address <= 0x1FFF) {
+            // CHR-RAM
+            int offset = chrOffset(lastWrittenB && !sprite8x16 ? chrSlotsB : chrSlots, address);
+            writeChr(offset, data);
+        } else if (address >= 0x8000 && address <= 0xFFFF) {
+            int slot = (address >>> 13) & 0x03;
+            if (prgSlotRam[slot] && isPrgRamWritable()) {
+                writeSram(prgRamIndex(prgRamBanks[slot], address), data);
+            }
+        }
+    }
+
+    @Override
+    public byte read(int address) {
+        byte data = 0;
+        if (address <= 0x1FFF) {
+            data = chr[chrOffset(lastWrittenB && !sprite8x16 ? chrSlotsB : chrSlots, address)];
+        } else if (address >= 0x8000 && address <= 0xFFFF) {
+            int slot = (address >>> 13) & 0x03;
+            if (prgSlotRam[slot]) {
+                data = hasPrgRam() ? sram[prgRamIndex(prgRamBanks[slot], address)] : 0;
+            } else {
+                data = readPrgSlot(address);
+            }
+
+            // CPU读取NMI向量时，PPU已经进入vblank
+            if (address == 0xFFFA || address == 0xFFFB) {
+                inFrame = false;
+                lastTileAddress = -1;
+                updateIrq();
+            }
+        }
+
+        return data;
+    }
+
+    @Override
+    public byte readPrgRam(int address) {
+        return hasPrgRam() ? sram[prgRamIndex(prgRegisters[0], address)] : 0;
+    }
+
+    @Override
+    public void writePrgRam(int address, int data) {
+        if (hasPrgRam() && isPrgRamWritable()) {
+            writeSram(prgRamIndex(prgRegisters[0], address), data & 0x00FF);
+        }
+    }
+
+    @Override
+    public byte readExpansion(int address) {
+        if (address >= 0x5C00) {
+            return exRamMode >= 2 ? exRam[address & 0x03FF] : 0;
+        }
+
+        switch (address) {
+            case 0x5204:
+                int status = (irqPending ? 0x80 : 0) | (isInFrame() ? 0x40 : 0);
+                irqPending = false;
+                updateIrq();
+                return (byte) status;
+            case 0x5205:
+                return (byte) (multiplicand * multiplier);
+            case 0x5206:
+                return (byte) ((multiplicand * multiplier) >>> 8);
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public void writeExpansion(int address, int data) {
+        data &= 0x00FF;
+        if (address >= 0x5C00) {
+            // 模式3只读
+            if (exRamMode != 3) {
+                exRam[address & 0x03FF] = (byte) data;
+            }
+            return;
+        }
+
+        if (address >= 0x5113 && address <= 0x5117) {
+            prgRegisters[address - 0x5113] = data;
+            updatePrgBanks();
+            return;
+        }
+
+        if (address >= 0x5120 && address <= 0x5127) {
+            chrRegistersA[address - 0x5120] = data | (chrUpper << 8);
+            lastWrittenB = false;
+            updateChrBanks();
+            return;
+        }
+
+        if (address >= 0x5128 && address <= 0x512B) {
+            chrRegistersB[address - 0x5128] = data | (chrUpper << 8);
+            lastWrittenB = true;
+            updateChrBanks();
+            return;
+        }
+
+        switch (address) {
+            case 0x5100:
+                prgMode = data & 0x03;
+                updatePrgBanks();
+                break;
+            case 0x5101:
+                chrMode = data & 0x03;
+                updateChrBanks();
+                break;
+            case 0x5102:
+                prgRamProtect1 = data & 0x03;
+                break;
+            case 0x5103:
+                prgRamProtect2 = data & 0x03;
+                break;
+            case 0x5104:
+                exRamMode = data & 0x03;
+                break;
+            case 0x5105:
+                nameTableMapping = data;
+                break;
+            case 0x5106:
+                fillTile = data;
+                break;
+            case 0x5107:
+                fillAttribute = data & 0x03;
+                break;
+            case 0x5130:
+                chrUpper = data & 0x03;
+                break;
+            case 0x5200:
+                splitMode = data;
+                break;
+            case 0x5201:
+                splitScroll = data;
+                break;
+            case 0x5202:
+                splitBank = data;
+                break;
+            case 0x5203:
+                irqCompare = data;
+                break;
+            case 0x5204:
+                irqEnable = (data & 0x80) != 0;
+                updateIrq();
+                break;
+            case 0x5205:
+                multiplicand = data;
+                break;
+            case 0x5206:
+                multiplier = data;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private boolean hasPrgRam() {
+        return sram != null && sram.length > 0;
+    }
+
+    private boolean isPrgRamWritable() {
+        return prgRamProtect1 == 0x02 && prgRamProtect2 == 0x01;
+    }
+
+    /**
+     * @param bank 8KB PRG RAM bank号，超出范围时取模
+     * @return 在sram中的下标，小于8KB时镜像
+     */
+    private int prgRamIndex(int bank, int address) {
+        int offset = (bank & 0x07) % Math.max(1, sram.length / 0x2000) * 0x2000;
+        return (offset + (address & 0x1FFF)) % sram.length;
+    }
+
+    /**
+     * 把一个8KB slot映射到寄存器选择的ROM或RAM
+     */
+    private void mapPrgSlot(int slot, int register, int bank) {
+        boolean rom = slot == 3 || (register & 0x80) != 0;
+        prgSlotRam[slot] = !rom;
+        if (rom) {
+            mapPrg8k(slot, bank & 0x7F);
+        } else {
+            prgRamBanks[slot] = bank;
+        }
+    }
+
+    private void updatePrgBanks() {
+        int r5114 = prgRegisters[1], r5115 = prgRegisters[2], r5116 = prgRegisters[3], r5117 = prgRegisters[4];
+        switch (prgMode) {
+            case 0:
+                // 32KB，$5117 的低2位被忽略
+                for (int i = 0; i < 4; i++) {
+                    mapPrgSlot(i, 0x80, (r5117 & 0x7C) + i);
+                }
+                break;
+            case 1:
+                mapPrgSlot(0, r5115, (r5115 & 0x7E));
+                mapPrgSlot(1, r5115, (r5115 & 0x7E) + 1);
+                mapPrgSlot(2, 0x80, (r5117 & 0x7E));
+                mapPrgSlot(3, 0x80, (r5117 & 0x7E) + 1);
+                break;
+            case 2:
+                mapPrgSlot(0, r5115, (r5115 & 0x7E));
+                mapPrgSlot(1, r5115, (r5115 & 0x7E) + 1);
+                mapPrgSlot(2, r5116, r5116);
+                mapPrgSlot(3, 0x80, r5117);
+                break;
+            default:
+                mapPrgSlot(0, r5114, r5114);
+                mapPrgSlot(1, r5115, r5115);
+                mapPrgSlot(2, r5116, r5116);
+                mapPrgSlot(3, 0x80, r5117);
+                break;
+        }
+    }
+
+    // endregion
+
+    // region CHR
+
+    private int chrBankOffset(int bank) {
+        return Math.floorMod(bank, Math.max(1, chr.length / 0x0400)) * 0x0400;
+    }
+
+    private static int chrOffset(int[] slots, int address) {
+        return slots[(address >>> 10) & 0x07] + (address & 0x03FF);
+    }
+
+    /**
+     * 按CHR模式把寄存器展开成1KB的slot
+     * A组: 8KB 使用$5127，4KB 使用$5123 / $5127，2KB 使用$5121 / $5123 / $5125 / $5127
+     * B组只有4个寄存器，$0000-$0FFF 和 $1000-$1FFF 相同
+     */
+    private void updateChrBanks() {
+        int size = 8 >>> chrMode;
+        for (int i = 0; i < 8; i++) {
+            int first = i / size * size;
+            int registerA = chrRegistersA[first + size - 1];
+            chrSlots[i] = chrBankOffset(registerA * size + (i - first));
+
+            int j = i & 0x03;
+            int sizeB = Math.min(size, 4);
+            int firstB = j / sizeB * sizeB;
+            int registerB = chrRegistersB[firstB + sizeB - 1];
+            chrSlotsB[i] = chrBankOffset(registerB * size + (size == 8 ? i : j - firstB));
+        }
+    }
+
+    // endregion
+
+    // region PPU.FetchHook
+
+    @Override
+    public byte readNameTable(int address, byte[][] vram) {
+        int offset = address & 0x03FF;
+        switch ((nameTableMapping >>> (((address >>> 10) & 0x03) * 2)) & 0x03) {
+            case 0:
+                return vram[0][offset];
+            case 1:
+                return vram[1][offset];
+            case 2:
+                return exRamMode <= 1 ? exRam[offset] : 0;
+            default:
+                if (offset >= 0x03C0) {
+                    return (byte) (fillAttribute * 0x55);
+                }
+                return (byte) fillTile;
+        }
+    }
+
+    @Override
+    public void writeNameTable(int address, int data, byte[][] vram) {
+        int offset = address & 0x03FF;
+        switch ((nameTableMapping >>> (((address >>> 10) & 0x03) * 2)) & 0x03) {
+            case 0:
+                vram[0][offset] = (byte) data;
+                break;
+            case 1:
+                vram[1][offset] = (byte) data;
+                break;
+            case 2:
+                if (exRamMode <= 1) {
+                    exRam[offset] = (byte) data;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public int fetchTile(int address, int data) {
+        long now = bus == null ? 0 : bus.getCycles();
+        if (now - lastFetchCycle > IN_FRAME_TIMEOUT) {
+            // vblank期间PPU没有读取，之前的读取不能和这次连起来
+            inFrame = false;
+            lastTileAddress = -1;
+        }
+        lastFetchCycle = now;
+
+        if (address == lastTileAddress) {
+            matchCount++;
+        } else {
+            matchCount = 0;
+        }
+        lastTileAddress = address;
+
+        if (matchCount == 2) {
+            detectScanline();
+            fetchIndex = 0;
+        } else {
+            fetchIndex++;
+        }
+
+        inSplit = false;
+        if (inFrame && (splitMode & 0x80) != 0 && fetchIndex < 34) {
+            // 计算这次读取的tile所在的列
+            int column = fetchIndex < 32 ? fetchIndex + 2 : fetchIndex - 32;
+            int y = fetchIndex < 32 ? splitY : (splitY + 1) % 240;
+            int threshold = splitMode & 0x1F;
+            boolean right = (splitMode & 0x40) != 0;
+            if (right ? column >= threshold : column < threshold) {
+                inSplit = true;
+                splitTileId = exRam[((y >>> 3) << 5) + (column & 0x1F)] & 0x00FF;
+                return splitTileId;
+            }
+        }
+
+        if (exRamMode == 1) {
+            extendedAttribute = exRam[address & 0x03FF] & 0x00FF;
+        }
+        return data;
+    }
+
+    @Override
+    public int fetchAttribute(int address, int data) {
+        if (inSplit) {
+            int column = fetchIndex < 32 ? fetchIndex + 2 : fetchIndex - 32;
+            int y = fetchIndex < 32 ? splitY : (splitY + 1) % 240;
+            int attribute = exRam[0x03C0 + ((y >>> 5) << 3) + ((column & 0x1F) >>> 2)] & 0x00FF;
+            // PPU 按照 v 选择2位，这里按照分屏区域的坐标先选出来
+            int shift = ((y & 0x10) != 0 ? 4 : 0) + ((column & 0x02) != 0 ? 2 : 0);
+            return ((attribute >>> shift) & 0x03) * 0x55;
+        }
+        if (exRamMode == 1) {
+            return (extendedAttribute >>> 6) * 0x55;
+        }
+        return data;
+    }
+
+    @Override
+    public byte fetchBackgroundPattern(int address) {
+        if (inSplit) {
+            int y = fetchIndex < 32 ? splitY : (splitY + 1) % 240;
+            int offset = (splitTileId << 4) | (address & 0x08) | (y & 0x07);
+            return chr[chrBankOffset(splitBank * 4) + offset];
+        }
+        if (exRamMode == 1) {
+            int bank = (extendedAttribute & 0x3F) | (chrUpper << 6);
+            return chr[chrBankOffset(bank * 4) + (address & 0x0FFF)];
+        }
+        return chr[chrOffset(sprite8x16 || lastWrittenB ? chrSlotsB : chrSlots, address)];
+    }
+
+    @Override
+    public byte fetchSpritePattern(int address) {
+        return chr[chrOffset(!sprite8x16 && lastWrittenB ? chrSlotsB : chrSlots, address)];
+    }
+
+    @Override
+    public void writePpuCtrl(int data) {
+        sprite8x16 = (data & 0x20) != 0;
+    }
+
+    /**
+     * 检测到新的扫描线
+     */
+    private void detectScanline() {
+        if (!inFrame) {
+            inFrame = true;
+            scanlineCounter = 0;
+            splitY = splitScroll % 240;
+        } else {
+            scanlineCounter = (scanlineCounter + 1) & 0xFF;
+            splitY = (splitY + 1) % 240;
+            if (scanlineCounter == irqCompare) {
+                irqPending = true;
+            }
+        }
+        updateIrq();
+    }
+
+    private boolean isInFrame(long now) {
+        return inFrame && now - lastFetchCycle <= IN_FRAME_TIMEOUT;
+    }
+
+    private boolean isInFrame() {
+        return isInFrame(bus == null ? 0 : bus.getCycles());
+    }
+
+    private void updateIrq() {
+        setIrq(irqPending && irqEnable);
+    }
+
+    // endregion
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        super.saveState(buffer);
+        buffer.putInt(prgMode);
+        for (int register : prgRegisters) {
+            buffer.putInt(register);
+        }
+        buffer.putInt(prgRamProtect1);
+        buffer.putInt(prgRamProtect2);
+
+        buffer.putInt(chrMode);
+        for (int register : chrRegistersA) {
+            buffer.putInt(register);
+        }
+        for (int register : chrRegistersB) {
+            buffer.putInt(register);
+        }
+        buffer.putInt(chrUpper);
+        putBoolean(buffer, lastWrittenB);
+        putBoolean(buffer, sprite8x16);
+
+        buffer.put(exRam);
+        buffer.putInt(exRamMode);
+        buffer.putInt(nameTableMapping);
+        buffer.putInt(fillTile);
+        buffer.putInt(fillAttribute);
+
+        buffer.putInt(splitMode);
+        buffer.putInt(splitScroll);
+        buffer.putInt(splitBank);
+        buffer.putInt(splitY);
+        putBoolean(buffer, inSplit);
+        buffer.putInt(splitTileId);
+
+        buffer.putInt(lastTileAddress);
+        buffer.putInt(matchCount);
+        buffer.putInt(fetchIndex);
+        buffer.putLong(lastFetchCycle);
+        putBoolean(buffer, inFrame);
+        buffer.putInt(scanlineCounter);
+        buffer.putInt(irqCompare);
+        putBoolean(buffer, irqEnable);
+        putBoolean(buffer, irqPending);
+        buffer.putInt(extendedAttribute);
+
+        buffer.putInt(multiplicand);
+        buffer.putInt(multiplier);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        super.loadState(buffer);
+        prgMode = buffer.getInt();
+        for (int i = 0; i < prgRegisters.length; i++) {
+            prgRegisters[i] = buffer.getInt();
+        }
+        prgRamProtect1 = buffer.getInt();
+        prgRamProtect2 = buffer.getInt();
+        updatePrgBanks();
+
+        chrMode = buffer.getInt();
+        for (int i = 0; i < chrRegistersA.length; i++) {
+            chrRegistersA[i] = buffer.getInt();
+        }
+        for (int i = 0; i < chrRegistersB.length; i++) {
+            chrRegistersB[i] = buffer.getInt();
+        }
+        chrUpper = buffer.getInt();
+        lastWrittenB = getBoolean(buffer);
+        sprite8x16 = getBoolean(buffer);
+        updateChrBanks();
+
+        buffer.get(exRam);
+        exRamMode = buffer.getInt();
+        nameTableMapping = buffer.getInt();
+        fillTile = buffer.getInt();
+        fillAttribute = buffer.getInt();
+
+        splitMode = buffer.getInt();
+        splitScroll = buffer.getInt();
+        splitBank = buffer.getInt();
+        splitY = buffer.getInt();
+        inSplit = getBoolean(buffer);
+        splitTileId = buffer.getInt();
+
+        lastTileAddress = buffer.getInt();
+        matchCount = buffer.getInt();
+        fetchIndex = buffer.getInt();
+        lastFetchCycle = buffer.getLong();
+        inFrame = getBoolean(buffer);
+        scanlineCounter = buffer.getInt();
+        irqCompare = buffer.getInt();
+        irqEnable = getBoolean(buffer);
+        irqPending = getBoolean(buffer);
+        extendedAttribute = buffer.getInt();
+
+        multiplicand = buffer.getInt();
+        multiplier = buffer.getInt();
+    }
+
+    @Override
+    public void reset() {
+        prgMode = 3;
+        prgRegisters[0] = 0;
+        prgRegisters[1] = 0xFF;
+        prgRegisters[2] = 0xFF;
+        prgRegisters[3] = 0xFF;
+        prgRegisters[4] = 0xFF;
+        prgRamProtect1 = 0;
+        prgRamProtect2 = 0;
+        updatePrgBanks();
+
+        chrMode = 0;
+        chrUpper = 0;
+        lastWrittenB = false;
+        sprite8x16 = false;
+        for (int i = 0; i < 8; i++) {
+            chrRegistersA[i] = i;
+        }
+        for (int i = 0; i < 4; i++) {
+            chrRegistersB[i] = i;
+        }
+        updateChrBanks();
+
+        exRamMode = 0;
+        nameTableMapping = mirror == Cartridge.Mirror.Vertical ? 0x44 : 0x50;
+        fillTile = 0;
+        fillAttribute = 0;
+        splitMode = 0;
+        splitScroll = 0;
+        splitBank = 0;
+        inSplit = false;
+
+        lastTileAddress = -1;
+        matchCount = 0;
+        fetchIndex = 0;
+        inFrame = false;
+        scanlineCounter = 0;
+        irqCompare = 0;
+        irqEnable = false;
+        irqPending = false;
+        updateIrq();
+
+        multiplicand = 0xFF;
+        multiplier = 0xFF;
+    }
+}
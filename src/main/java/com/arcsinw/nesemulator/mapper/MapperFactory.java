@@ -1,20 +1,82 @@
 package com.arcsinw.nesemulator.mapper;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
 public class MapperFactory {
+
+    private static final MapperProvider BUILTIN = new BuiltinMapperProvider();
+
+    /**
+     * 插件提供的mapper，第一次创建mapper时通过ServiceLoader查找
+     * 无法加载的插件被跳过，不影响其他插件和内置的mapper
+     */
+    private static Map<Integer, MapperProvider> plugins;
+
+    private static synchronized Map<Integer, MapperProvider> getPlugins() {
+        if (plugins == null) {
+            plugins = new HashMap<>();
+            Iterator<MapperProvider> iterator = ServiceLoader.load(MapperProvider.class, getClassLoader()).iterator();
+            while (true) {
+                MapperProvider provider;
+                int[] ids;
+                try {
+                    if (!iterator.hasNext()) {
+                        break;
+                    }
+                    provider = iterator.next();
+                    ids = provider.getMapperIds();
+                } catch (ServiceConfigurationError | RuntimeException | LinkageError e) {
+                    System.err.println("跳过无法加载的mapper插件: " + e);
+                    continue;
+                }
+
+                for (int id : ids) {
+                    // classpath中靠前的插件优先
+                    if (!plugins.containsKey(id)) {
+                        plugins.put(id, provider);
+                    }
+                }
+            }
+        }
+        return plugins;
+    }
+
+    private static ClassLoader getClassLoader() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        return classLoader != null ? classLoader : MapperFactory.class.getClassLoader();
+    }
+
+    /**
+     * 重新查找插件，用于运行时加入了新的jar
+     */
+    public static synchronized void reloadPlugins() {
+        plugins = null;
+    }
+
+    /**
+     * @param id mapper号
+     * @param submapper NES 2.0 submapper
+     */
+    public static AbstractMapper getMapper(int id, int submapper) {
+        AbstractMapper mapper = getMapper(id);
+        if (mapper != null) {
+            mapper.setSubmapper(submapper);
+        }
+        return mapper;
+    }
+
+    /**
+     * @return 不支持时返回null
+     */
     public static AbstractMapper getMapper(int id) {
-        switch (id) {
-            case 0:
-                return new NROM();
-            case 1:
-                return new MMC1();
-            case 2:
-                return new UxROM();
-            case 4:
-                return new MMC3();
-            case 7:
-                return new AxROM();
-            default:
-                return null;
+        MapperProvider provider = getPlugins().get(id);
+        if (provider != null) {
+            return provider.create(id);
         }
+        return BUILTIN.create(id);
     }
 }
@@ -0,0 +1,24 @@
+package com.arcsinw.nesemulator.mapper;
+
+/**
+ * Mapper插件接口，通过{@link java.util.ServiceLoader}发现
+ *
+ * 在插件jar中实现这个接口，并在 META-INF/services/com.arcsinw.nesemulator.mapper.MapperProvider
+ * 中写入实现类的全名，{@link MapperFactory}第一次创建mapper时查找所有插件
+ * 插件提供的mapper号优先于内置实现，可以用来替换内置的mapper
+ *
+ * Provider 只应该在{@link #create(int)}中引用mapper类，这样只有卡带实际使用的mapper才会被加载
+ * mapper需要实现的内容见{@link AbstractMapper}
+ */
+public interface MapperProvider {
+    /**
+     * @return 支持的mapper号
+     */
+    int[] getMapperIds();
+
+    /**
+     * 创建mapper，PRG/CHR/SRAM，镜像和submapper由{@link com.arcsinw.nesemulator.Cartridge}在之后设置
+     * @param id {@link #getMapperIds()} 中的mapper号
+     */
+    AbstractMapper create(int id);
+}
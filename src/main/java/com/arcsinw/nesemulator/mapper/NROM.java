@@ -17,7 +17,7 @@ public class NROM extends AbstractMapper {
     public void write(int address, int data) {
         if (address < 0x2000) {
             // Pattern Table
-            chr[address] = (byte) (data & 0x00FF);
+            writeChr(address, data & 0x00FF);
         }
     }
 
@@ -1,5 +1,7 @@
 package com.arcsinw.nesemulator.mapper;
 
+import java.nio.ByteBuffer;
+
 /**
  * 包括两个Banks
  * CPU $8000-$BFFF: 16 KB switchable PRG ROM bank
@@ -23,7 +25,7 @@ public class UxROM extends AbstractMapper {
     public void write(int address, int data) {
         if (address < 0x2000) {
             // Pattern Table
-            chr[address] = (byte) (data & 0x00FF);
+            writeChr(address, data & 0x00FF);
         } else if (address >= 0x8000 && address <= 0xFFFF) {
             // 向这个地址范围写入数据视为切换PRG Banks
             writeBankSelect(data);
@@ -47,6 +49,20 @@ public class UxROM extends AbstractMapper {
         return data;
     }
 
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        super.saveState(buffer);
+        buffer.putInt(bank0Offset);
+        buffer.putInt(bank1Offset);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        super.loadState(buffer);
+        bank0Offset = buffer.getInt();
+        bank1Offset = buffer.getInt();
+    }
+
     @Override
     public void reset() {
         bank0Offset = 0;
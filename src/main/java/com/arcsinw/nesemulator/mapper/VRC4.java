@@ -0,0 +1,259 @@
+package com.arcsinw.nesemulator.mapper;
+
+import com.arcsinw.nesemulator.CPUBus;
+import com.arcsinw.nesemulator.Cartridge;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Konami VRC2 / VRC4，Mapper021, 022, 023, 025
+ * CPU $8000-$9FFF (or $C000-$DFFF): 8 KB switchable PRG ROM bank
+ * CPU $A000-$BFFF: 8 KB switchable PRG ROM bank
+ * CPU $C000-$DFFF (or $8000-$9FFF): 8 KB PRG ROM bank, fixed to the second-last bank
+ * CPU $E000-$FFFF: 8 KB PRG ROM bank, fixed to the last bank
+ * PPU $0000-$1FFF: 8 x 1 KB switchable CHR ROM banks
+ *
+ * 不同的板子把寄存器的两位接到不同的CPU地址线上
+ * 021: VRC4a (A1, A2) / VRC4c (A6, A7)
+ * 022: VRC2a (A1, A0)，CHR bank号右移1位
+ * 023: VRC4f (A0, A1) / VRC4e (A2, A3) / VRC2b (A0, A1)
+ * 025: VRC4b (A1, A0) / VRC4d (A3, A2) / VRC2c (A1, A0)
+ * NES 2.0 submapper 可以确定具体的接法，否则同时接受两种
+ * https://wiki.nesdev.com/w/index.php/VRC2_and_VRC4
+ */
+public class VRC4 extends AbstractMapper {
+
+    public VRC4(int id) {
+        this.id = id;
+    }
+
+    /**
+     * 接到寄存器 bit 0 / bit 1 的地址线
+     */
+    private int register0Lines;
+    private int register1Lines;
+
+    /**
+     * VRC2 没有IRQ和PRG模式，mirroring只有1位
+     */
+    private boolean vrc2;
+
+    private int prgBank0;
+    private int prgBank1;
+
+    /**
+     * $9002 bit 1
+     * 0: $8000 可切换，$C000 固定为倒数第二个bank
+     * 1: $C000 可切换，$8000 固定为倒数第二个bank
+     */
+    private boolean prgSwapMode;
+
+    private final int[] chrBanks = new int[8];
+
+    private final VRCIrq irq = new VRCIrq();
+
+    /**
+     * 根据mapper号和submapper确定地址线
+     */
+    private void decodeAddressLines() {
+        vrc2 = id == 22;
+        switch (id) {
+            case 21:
+                register0Lines = submapper == 1 ? 0x02 : submapper == 2 ? 0x40 : 0x42;
+                register1Lines = submapper == 1 ? 0x04 : submapper == 2 ? 0x80 : 0x84;
+                break;
+            case 22:
+                register0Lines = 0x02;
+                register1Lines = 0x01;
+                break;
+            case 23:
+                vrc2 = submapper == 3;
+                register0Lines = submapper == 2 ? 0x04 : (submapper == 1 || submapper == 3) ? 0x01 : 0x05;
+                register1Lines = submapper == 2 ? 0x08 : (submapper == 1 || submapper == 3) ? 0x02 : 0x0A;
+                break;
+            case 25:
+            default:
+                vrc2 = submapper == 3;
+                register0Lines = submapper == 2 ? 0x08 : (submapper == 1 || submapper == 3) ? 0x02 : 0x0A;
+                register1Lines = submapper == 2 ? 0x04 : (submapper == 1 || submapper == 3) ? 0x01 : 0x05;
+                break;
+        }
+    }
+
+    /**
+     * @return 0 - 3
+     */
+    private int getRegister(int address) {
+        return ((address & register0Lines) != 0 ? 0x01 : 0) | ((address & register1Lines) != 0 ? 0x02 : 0);
+    }
+
+    @Override
+    public void setBus(CPUBus bus) {
+        super.setBus(bus);
+        irq.setBus(bus);
+    }
+
+    @Override
+    public void write(int address, int data) {
+        data &= 0x00FF;
+        if (address <= 0x1FFF) {
+            // CHR-RAM
+            writeChrSlot(address, data);
+        } else if (address >= 0x8000 && address <= 0xFFFF) {
+            writeRegister(address, data);
+        }
+    }
+
+    @Override
+    public byte read(int address) {
+        byte data = 0;
+        if (address <= 0x1FFF) {
+            data = readChrSlot(address);
+        } else if (address >= 0x8000 && address <= 0xFFFF) {
+            data = readPrgSlot(address);
+        }
+
+        return data;
+    }
+
+    private void writeRegister(int address, int data) {
+        int register = getRegister(address);
+        int region = address & 0xF000;
+
+        switch (region) {
+            case 0x8000:
+                prgBank0 = data & 0x1F;
+                updatePrgBanks();
+                break;
+            case 0x9000:
+                if (register < 2 || vrc2) {
+                    writeMirroring(data);
+                } else {
+                    prgSwapMode = (data & 0x02) != 0;
+                    updatePrgBanks();
+                }
+                break;
+            case 0xA000:
+                prgBank1 = data & 0x1F;
+                updatePrgBanks();
+                break;
+            case 0xB000:
+            case 0xC000:
+            case 0xD000:
+            case 0xE000:
+                // 每个CHR bank由两个寄存器写入，低4位和高5位
+                int bank = ((region - 0xB000) >>> 11) | (register >>> 1);
+                if ((register & 0x01) == 0) {
+                    chrBanks[bank] = (chrBanks[bank] & 0x1F0) | (data & 0x0F);
+                } else {
+                    chrBanks[bank] = (chrBanks[bank] & 0x0F) | ((data & 0x1F) << 4);
+                }
+                mapChr1k(bank, id == 22 ? chrBanks[bank] >>> 1 : chrBanks[bank]);
+                break;
+            case 0xF000:
+                if (vrc2) {
+                    break;
+                }
+                switch (register) {
+                    case 0:
+                        irq.writeLatchLow(data);
+                        break;
+                    case 1:
+                        irq.writeLatchHigh(data);
+                        break;
+                    case 2:
+                        irq.writeControl(data);
+                        break;
+                    default:
+                        irq.acknowledge();
+                        break;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * VRC4: 0: vertical; 1: horizontal; 2: one-screen, lower bank; 3: one-screen, upper bank
+     * VRC2 只有bit 0
+     */
+    private void writeMirroring(int data) {
+        if (mirror == Cartridge.Mirror.FourScreen) {
+            return;
+        }
+
+        switch (vrc2 ? data & 0x01 : data & 0x03) {
+            case 0:
+                mirror = Cartridge.Mirror.Vertical;
+                break;
+            case 1:
+                mirror = Cartridge.Mirror.Horizontal;
+                break;
+            case 2:
+                mirror = Cartridge.Mirror.SingleScreenLower;
+                break;
+            default:
+                mirror = Cartridge.Mirror.SingleScreenUpper;
+                break;
+        }
+    }
+
+    private void updatePrgBanks() {
+        if (prgSwapMode) {
+            mapPrg8k(0, -2);
+            mapPrg8k(2, prgBank0);
+        } else {
+            mapPrg8k(0, prgBank0);
+            mapPrg8k(2, -2);
+        }
+        mapPrg8k(1, prgBank1);
+        mapPrg8k(3, -1);
+    }
+
+    @Override
+    public void onScheduledEvent(long cycle) {
+        irq.onScheduledEvent(cycle);
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        super.saveState(buffer);
+        buffer.putInt(prgBank0);
+        buffer.putInt(prgBank1);
+        putBoolean(buffer, prgSwapMode);
+        for (int bank : chrBanks) {
+            buffer.putInt(bank);
+        }
+        irq.saveState(buffer);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        super.loadState(buffer);
+        prgBank0 = buffer.getInt();
+        prgBank1 = buffer.getInt();
+        prgSwapMode = getBoolean(buffer);
+        for (int i = 0; i < chrBanks.length; i++) {
+            chrBanks[i] = buffer.getInt();
+        }
+        irq.loadState(buffer);
+    }
+
+    @Override
+    public void reset() {
+        decodeAddressLines();
+
+        prgBank0 = 0;
+        prgBank1 = 1;
+        prgSwapMode = false;
+        updatePrgBanks();
+
+        for (int i = 0; i < 8; i++) {
+            chrBanks[i] = i;
+            mapChr1k(i, i);
+        }
+
+        irq.reset();
+    }
+}
@@ -0,0 +1,199 @@
+package com.arcsinw.nesemulator.mapper;
+
+import com.arcsinw.nesemulator.CPUBus;
+import com.arcsinw.nesemulator.Cartridge;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Konami VRC6，Mapper024 (VRC6a), Mapper026 (VRC6b，A0和A1交换)
+ * CPU $6000-$7FFF: 8 KB PRG RAM bank
+ * CPU $8000-$BFFF: 16 KB switchable PRG ROM bank
+ * CPU $C000-$DFFF: 8 KB switchable PRG ROM bank
+ * CPU $E000-$FFFF: 8 KB PRG ROM bank, fixed to the last bank
+ * PPU $0000-$1FFF: 8 x 1 KB switchable CHR ROM banks
+ * https://wiki.nesdev.com/w/index.php/VRC6
+ */
+public class VRC6 extends AbstractMapper {
+
+    public VRC6(int id) {
+        this.id = id;
+    }
+
+    private final VRCIrq irq = new VRCIrq();
+
+    private final VRC6Audio audio = new VRC6Audio();
+
+    /**
+     * $B003 bit 7
+     */
+    private boolean prgRamEnable;
+
+    @Override
+    public void setBus(CPUBus bus) {
+        super.setBus(bus);
+        irq.setBus(bus);
+        audio.setBus(bus);
+        if (bus != null) {
+            bus.getApu().setExpansionChannel(audio);
+        }
+    }
+
+    public VRC6Audio getAudio() {
+        return audio;
+    }
+
+    /**
+     * VRC6b 的 A0 和 A1 交换，转换成 VRC6a 的地址
+     */
+    private int normalize(int address) {
+        if (id == 26) {
+            address = (address & ~0x03) | ((address & 0x01) << 1) | ((address & 0x02) >>> 1);
+        }
+        return address & 0xF003;
+    }
+
+    @Override
+    public void write(int address, int data) {
+        data &= 0x00FF;
+        if (address <= 0x1FFF) {
+            // CHR-RAM
+            writeChrSlot(address, data);
+        } else if (address >= 0x8000 && address <= 0xFFFF) {
+            writeRegister(normalize(address), data);
+        }
+    }
+
+    @Override
+    public byte read(int address) {
+        byte data = 0;
+        if (address <= 0x1FFF) {
+            data = readChrSlot(address);
+        } else if (address >= 0x8000 && address <= 0xFFFF) {
+            data = readPrgSlot(address);
+        }
+
+        return data;
+    }
+
+    @Override
+    public byte readPrgRam(int address) {
+        return prgRamEnable ? super.readPrgRam(address) : 0;
+    }
+
+    @Override
+    public void writePrgRam(int address, int data) {
+        if (prgRamEnable) {
+            super.writePrgRam(address, data);
+        }
+    }
+
+    private void writeRegister(int address, int data) {
+        switch (address & 0xF000) {
+            case 0x8000:
+                mapPrg16k(0, data & 0x0F);
+                break;
+            case 0x9000:
+            case 0xA000:
+                audio.write(address, data);
+                break;
+            case 0xB000:
+                if ((address & 0x03) == 3) {
+                    writeBankingMode(data);
+                } else {
+                    audio.write(address, data);
+                }
+                break;
+            case 0xC000:
+                mapPrg8k(2, data & 0x1F);
+                break;
+            case 0xD000:
+                mapChr1k(address & 0x03, data);
+                break;
+            case 0xE000:
+                mapChr1k(4 + (address & 0x03), data);
+                break;
+            case 0xF000:
+                switch (address & 0x03) {
+                    case 0:
+                        irq.writeLatch(data);
+                        break;
+                    case 1:
+                        irq.writeControl(data);
+                        break;
+                    case 2:
+                        irq.acknowledge();
+                        break;
+                    default:
+                        break;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * $B003
+     * W.PN MMDD
+     * |    ||||
+     * |    ||++- PPU banking mode
+     * |    ++--- Mirroring (0: vertical; 1: horizontal; 2: one-screen, lower bank; 3: one-screen, upper bank)
+     * +--------- PRG RAM enable
+     * 只实现了常用的 CHR 1KB 模式
+     */
+    private void writeBankingMode(int data) {
+        prgRamEnable = (data & 0x80) != 0;
+        if (mirror == Cartridge.Mirror.FourScreen) {
+            return;
+        }
+
+        switch ((data >>> 2) & 0x03) {
+            case 0:
+                mirror = Cartridge.Mirror.Vertical;
+                break;
+            case 1:
+                mirror = Cartridge.Mirror.Horizontal;
+                break;
+            case 2:
+                mirror = Cartridge.Mirror.SingleScreenLower;
+                break;
+            default:
+                mirror = Cartridge.Mirror.SingleScreenUpper;
+                break;
+        }
+    }
+
+    @Override
+    public void onScheduledEvent(long cycle) {
+        irq.onScheduledEvent(cycle);
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        super.saveState(buffer);
+        putBoolean(buffer, prgRamEnable);
+        irq.saveState(buffer);
+        audio.saveState(buffer);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        super.loadState(buffer);
+        prgRamEnable = getBoolean(buffer);
+        irq.loadState(buffer);
+        audio.loadState(buffer);
+    }
+
+    @Override
+    public void reset() {
+        mapPrg16k(0, 0);
+        mapPrg8k(2, -2);
+        mapPrg8k(3, -1);
+        mapChr8k(0);
+        prgRamEnable = true;
+
+        irq.reset();
+        audio.reset();
+    }
+}
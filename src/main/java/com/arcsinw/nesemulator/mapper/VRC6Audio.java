@@ -0,0 +1,294 @@
+package com.arcsinw.nesemulator.mapper;
+
+import com.arcsinw.nesemulator.CPUBus;
+import com.arcsinw.nesemulator.Channel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * VRC6 扩展音源：2个脉冲通道 + 1个锯齿波通道
+ * 每个通道的输出都是时间的周期函数，取样时根据主时钟直接计算相位，不需要每个CPU cycle更新分频器
+ * https://wiki.nesdev.com/w/index.php/VRC6_audio
+ */
+public class VRC6Audio implements Channel {
+
+    /**
+     * VRC6的输出是线性的，0 - 61
+     * 音量15的脉冲通道与APU音量15的脉冲通道大致相同 (95.88 / (8128 / 15 + 100) / 15)
+     */
+    private static final double OUTPUT_SCALE = 0.00996;
+
+    /**
+     * 通道的公共部分：12位周期，使能位，相位起点
+     */
+    private static class Oscillator {
+        int frequency;
+        boolean enabled;
+
+        /**
+         * 第0步开始的时刻（CPU cycle，不包括暂停的时间）
+         */
+        long phaseStart;
+
+        /**
+         * 每一步的CPU cycle数
+         */
+        long period = 1;
+
+        long step(long time) {
+            return (time - phaseStart) / period;
+        }
+
+        void saveState(ByteBuffer buffer) {
+            buffer.putInt(frequency);
+            buffer.put((byte) (enabled ? 1 : 0));
+            buffer.putLong(phaseStart);
+            buffer.putLong(period);
+        }
+
+        void loadState(ByteBuffer buffer) {
+            frequency = buffer.getInt();
+            enabled = buffer.get() != 0;
+            phaseStart = buffer.getLong();
+            period = buffer.getLong();
+        }
+
+        /**
+         * 周期改变时保持当前的步数
+         */
+        void setPeriod(long time, long newPeriod) {
+            long step = step(time);
+            period = newPeriod;
+            phaseStart = time - step * newPeriod;
+        }
+    }
+
+    /**
+     * $9000 / $A000
+     * MDDD VVVV
+     * |||| ++++- Volume
+     * |+++------ Duty Cycle
+     * +--------- Mode (1: ignore duty)
+     */
+    private static class Pulse extends Oscillator {
+        int volume;
+        int duty;
+        boolean ignoreDuty;
+
+        int output(long time) {
+            if (!enabled) {
+                return 0;
+            }
+            if (ignoreDuty) {
+                return volume;
+            }
+            // 占空比计数器从15递减到0
+            int counter = 15 - (int) (step(time) & 0x0F);
+            return counter <= duty ? volume : 0;
+        }
+    }
+
+    /**
+     * $B000
+     * xxAA AAAA
+     *   ++-++++- Accumulator Rate
+     * 每两步累加一次，第14步时清零
+     */
+    private static class Saw extends Oscillator {
+        int rate;
+
+        int output(long time) {
+            if (!enabled) {
+                return 0;
+            }
+            int step = (int) (step(time) % 14);
+            return ((rate * (step >>> 1)) & 0xFF) >>> 3;
+        }
+    }
+
+    private final Pulse pulse1 = new Pulse();
+    private final Pulse pulse2 = new Pulse();
+    private final Saw saw = new Saw();
+
+    /**
+     * $9003 bit 0，暂停所有通道
+     */
+    private boolean halt;
+    private long haltStart;
+    private long pausedCycles;
+
+    /**
+     * $9003 bit 1 / bit 2，周期右移4或8位
+     */
+    private int frequencyShift;
+
+    private CPUBus bus;
+
+    void setBus(CPUBus bus) {
+        this.bus = bus;
+    }
+
+    private long cpuCycles() {
+        return bus == null ? 0 : bus.getCycles() / 3;
+    }
+
+    /**
+     * @return 通道的时间，暂停期间不变
+     */
+    private long time() {
+        return (halt ? haltStart : cpuCycles()) - pausedCycles;
+    }
+
+    private long getPeriod(Oscillator oscillator) {
+        return (oscillator.frequency >>> frequencyShift) + 1;
+    }
+
+    private void updatePeriods(long time) {
+        pulse1.setPeriod(time, getPeriod(pulse1));
+        pulse2.setPeriod(time, getPeriod(pulse2));
+        saw.setPeriod(time, getPeriod(saw));
+    }
+
+    /**
+     * 写入频率的高4位和使能位，使能位从0变为1时相位复位
+     * E... FFFF
+     */
+    private void writeControl(Oscillator oscillator, long time, int data) {
+        boolean enabled = (data & 0x80) != 0;
+        oscillator.frequency = (oscillator.frequency & 0x00FF) | ((data & 0x0F) << 8);
+        oscillator.setPeriod(time, getPeriod(oscillator));
+        if (enabled && !oscillator.enabled) {
+            oscillator.phaseStart = time;
+        }
+        oscillator.enabled = enabled;
+    }
+
+    private void writeFrequencyLow(Oscillator oscillator, long time, int data) {
+        oscillator.frequency = (oscillator.frequency & 0x0F00) | (data & 0x00FF);
+        oscillator.setPeriod(time, getPeriod(oscillator));
+    }
+
+    private void writePulse(Pulse pulse, int register, long time, int data) {
+        switch (register) {
+            case 0:
+                pulse.volume = data & 0x0F;
+                pulse.duty = (data >>> 4) & 0x07;
+                pulse.ignoreDuty = (data & 0x80) != 0;
+                break;
+            case 1:
+                writeFrequencyLow(pulse, time, data);
+                break;
+            case 2:
+                writeControl(pulse, time, data);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @param address $9000-$9003, $A000-$A002, $B000-$B002（已经按mapper的接法转换）
+     */
+    @Override
+    public void write(int address, int data) {
+        data &= 0x00FF;
+        long time = time();
+        int register = address & 0x03;
+
+        switch (address & 0xF000) {
+            case 0x9000:
+                if (register == 3) {
+                    writeFrequencyControl(data);
+                } else {
+                    writePulse(pulse1, register, time, data);
+                }
+                break;
+            case 0xA000:
+                writePulse(pulse2, register, time, data);
+                break;
+            case 0xB000:
+                if (register == 0) {
+                    saw.rate = data & 0x3F;
+                } else if (register == 1) {
+                    writeFrequencyLow(saw, time, data);
+                } else if (register == 2) {
+                    writeControl(saw, time, data);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * $9003
+     * xxxx xABH
+     *       ||+- Halt
+     *       |+-- 16x frequency (4 octaves up)
+     *       +--- 256x frequency (8 octaves up)
+     */
+    private void writeFrequencyControl(int data) {
+        boolean newHalt = (data & 0x01) != 0;
+        long now = cpuCycles();
+        if (newHalt && !halt) {
+            haltStart = now;
+        } else if (!newHalt && halt) {
+            pausedCycles += now - haltStart;
+        }
+        halt = newHalt;
+
+        frequencyShift = (data & 0x04) != 0 ? 8 : (data & 0x02) != 0 ? 4 : 0;
+        updatePeriods(time());
+    }
+
+    @Override
+    public double getOutput() {
+        long time = time();
+        return (pulse1.output(time) + pulse2.output(time) + saw.output(time)) * OUTPUT_SCALE;
+    }
+
+    private static void savePulse(Pulse pulse, ByteBuffer buffer) {
+        pulse.saveState(buffer);
+        buffer.putInt(pulse.volume);
+        buffer.putInt(pulse.duty);
+        buffer.put((byte) (pulse.ignoreDuty ? 1 : 0));
+    }
+
+    private static void loadPulse(Pulse pulse, ByteBuffer buffer) {
+        pulse.loadState(buffer);
+        pulse.volume = buffer.getInt();
+        pulse.duty = buffer.getInt();
+        pulse.ignoreDuty = buffer.get() != 0;
+    }
+
+    void saveState(ByteBuffer buffer) {
+        savePulse(pulse1, buffer);
+        savePulse(pulse2, buffer);
+        saw.saveState(buffer);
+        buffer.putInt(saw.rate);
+        buffer.put((byte) (halt ? 1 : 0));
+        buffer.putLong(haltStart);
+        buffer.putLong(pausedCycles);
+        buffer.putInt(frequencyShift);
+    }
+
+    void loadState(ByteBuffer buffer) {
+        loadPulse(pulse1, buffer);
+        loadPulse(pulse2, buffer);
+        saw.loadState(buffer);
+        saw.rate = buffer.getInt();
+        halt = buffer.get() != 0;
+        haltStart = buffer.getLong();
+        pausedCycles = buffer.getLong();
+        frequencyShift = buffer.getInt();
+    }
+
+    void reset() {
+        pulse1.enabled = false;
+        pulse2.enabled = false;
+        saw.enabled = false;
+        halt = false;
+        pausedCycles = 0;
+        frequencyShift = 0;
+    }
+}
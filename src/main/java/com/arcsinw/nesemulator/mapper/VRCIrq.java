@@ -0,0 +1,217 @@
+package com.arcsinw.nesemulator.mapper;
+
+import com.arcsinw.nesemulator.CPU;
+import com.arcsinw.nesemulator.CPUBus;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Konami VRC4/VRC6/VRC7 的IRQ计数器
+ * 8位计数器从latch开始递增，0xFF再加1时重新装入latch并触发IRQ
+ * 周期模式: 每个CPU cycle加1
+ * 扫描线模式: 预分频器从341开始，每个CPU cycle减3，小于等于0时加341并让计数器加1
+ *
+ * 计数器的值只在写寄存器时根据主时钟计算，下一次IRQ的时刻直接算出来并预约到{@link CPUBus}，
+ * 不需要每个cycle回调
+ * https://wiki.nesdev.com/w/index.php/VRC_IRQ
+ */
+final class VRCIrq {
+    /**
+     * 扫描线模式下计数器的周期（主时钟，即PPU cycle）
+     */
+    private static final int SCANLINE_CYCLES = 341;
+
+    /**
+     * 周期模式下计数器的周期（主时钟），1个CPU cycle
+     */
+    private static final int CPU_CYCLES = 3;
+
+    private int latch;
+
+    /**
+     * counterTime时刻计数器的值
+     */
+    private int counter;
+
+    private long counterTime;
+
+    /**
+     * 预分频器复位（启用计数器）的时刻
+     */
+    private long base;
+
+    /**
+     * control bit 0，确认中断后用作enable
+     */
+    private boolean enableAfterAck;
+
+    /**
+     * control bit 1
+     */
+    private boolean enable;
+
+    /**
+     * control bit 2，1: 周期模式; 0: 扫描线模式
+     */
+    private boolean cycleMode;
+
+    private CPUBus bus;
+
+    void setBus(CPUBus bus) {
+        this.bus = bus;
+    }
+
+    /**
+     * @return 从base到time计数器被时钟驱动的次数
+     */
+    private long clocks(long time) {
+        long elapsed = time - base;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        // 扫描线模式: k个CPU cycle后预分频器为 341 - 3k + 341 * 已有的次数，3k >= 341n 时第n次
+        return cycleMode ? elapsed / CPU_CYCLES : elapsed / SCANLINE_CYCLES;
+    }
+
+    /**
+     * clocks的反函数
+     * @return 第n次时钟所在的主时钟
+     */
+    private long timeOfClock(long n) {
+        if (cycleMode) {
+            return base + n * CPU_CYCLES;
+        }
+        // ceil(341n / 3) 个CPU cycle，间隔为 114, 114, 113
+        long cpuCycles = (n * SCANLINE_CYCLES + CPU_CYCLES - 1) / CPU_CYCLES;
+        return base + cpuCycles * CPU_CYCLES;
+    }
+
+    /**
+     * 把计数器推进到now
+     */
+    private void advance(long now) {
+        if (enable) {
+            long n = clocks(now) - clocks(counterTime);
+            long toOverflow = 256 - counter;
+            if (n >= toOverflow) {
+                counter = latch + (int) ((n - toOverflow) % (256 - latch));
+            } else {
+                counter += (int) n;
+            }
+        }
+        counterTime = now;
+    }
+
+    /**
+     * 根据当前的计数器预约下一次IRQ
+     */
+    private void schedule() {
+        if (bus == null) {
+            return;
+        }
+
+        if (!enable) {
+            bus.scheduleMapperEvent(Long.MAX_VALUE);
+            return;
+        }
+        bus.scheduleMapperEvent(timeOfClock(clocks(counterTime) + (256 - counter)));
+    }
+
+    private long now() {
+        return bus == null ? 0 : bus.getCycles();
+    }
+
+    private void setIrq(boolean active) {
+        if (bus != null) {
+            bus.setIrq(CPU.IRQ_MAPPER, active);
+        }
+    }
+
+    void writeLatch(int data) {
+        advance(now());
+        latch = data & 0x00FF;
+    }
+
+    void writeLatchLow(int data) {
+        writeLatch((latch & 0xF0) | (data & 0x0F));
+    }
+
+    void writeLatchHigh(int data) {
+        writeLatch((latch & 0x0F) | ((data & 0x0F) << 4));
+    }
+
+    /**
+     * xxxx xMAE
+     *       |||
+     *       ||+- IRQ Enable after acknowledgement
+     *       |+-- IRQ Enable (1 = enabled)
+     *       +--- IRQ Mode (1 = cycle mode, 0 = scanline mode)
+     * 启用时重新装入计数器并复位预分频器
+     */
+    void writeControl(int data) {
+        long now = now();
+        advance(now);
+
+        enableAfterAck = (data & 0x01) != 0;
+        enable = (data & 0x02) != 0;
+        cycleMode = (data & 0x04) != 0;
+
+        if (enable) {
+            counter = latch;
+            base = now;
+            counterTime = now;
+        }
+
+        setIrq(false);
+        schedule();
+    }
+
+    /**
+     * 确认中断，把E位复制到A位
+     */
+    void acknowledge() {
+        advance(now());
+        enable = enableAfterAck;
+        setIrq(false);
+        schedule();
+    }
+
+    /**
+     * 预约的时刻到达，计数器溢出
+     */
+    void onScheduledEvent(long cycle) {
+        advance(cycle);
+        setIrq(true);
+        schedule();
+    }
+
+    void saveState(ByteBuffer buffer) {
+        buffer.putInt(latch);
+        buffer.putInt(counter);
+        buffer.putLong(counterTime);
+        buffer.putLong(base);
+        buffer.put((byte) ((enableAfterAck ? 0x01 : 0) | (enable ? 0x02 : 0) | (cycleMode ? 0x04 : 0)));
+    }
+
+    void loadState(ByteBuffer buffer) {
+        latch = buffer.getInt();
+        counter = buffer.getInt();
+        counterTime = buffer.getLong();
+        base = buffer.getLong();
+        int control = buffer.get();
+        enableAfterAck = (control & 0x01) != 0;
+        enable = (control & 0x02) != 0;
+        cycleMode = (control & 0x04) != 0;
+    }
+
+    void reset() {
+        latch = 0;
+        counter = 0;
+        counterTime = 0;
+        base = 0;
+        enable = false;
+        enableAfterAck = false;
+        cycleMode = false;
+        setIrq(false);
+    }
+}
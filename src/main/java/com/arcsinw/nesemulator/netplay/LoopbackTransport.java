@@ -0,0 +1,128 @@
+package com.arcsinw.nesemulator.netplay;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * 内存中的传输，模拟延迟，抖动和丢包，用于测试
+ * 时间由{@link Network#advance(long)}推进，结果只由随机数种子决定
+ */
+public class LoopbackTransport implements Transport {
+
+    /**
+     * 两个端点共享的模拟网络
+     */
+    public static class Network {
+        private final long latency;
+        private final long jitter;
+        private final double lossRate;
+        private final Random random;
+
+        private long time;
+        private long sequence;
+
+        /**
+         * @param latency 单向延迟（毫秒）
+         * @param jitter 延迟的随机增加量（毫秒），不为0时数据包可能乱序
+         * @param lossRate 丢包率 0 - 1
+         */
+        public Network(long latency, long jitter, double lossRate, long seed) {
+            this.latency = latency;
+            this.jitter = jitter;
+            this.lossRate = lossRate;
+            this.random = new Random(seed);
+        }
+
+        public synchronized void advance(long millis) {
+            time += millis;
+        }
+
+        public synchronized long getTime() {
+            return time;
+        }
+
+        /**
+         * @return 一对互相连接的端点
+         */
+        public LoopbackTransport[] createPair() {
+            LoopbackTransport a = new LoopbackTransport(this);
+            LoopbackTransport b = new LoopbackTransport(this);
+            a.peer = b;
+            b.peer = a;
+            return new LoopbackTransport[]{a, b};
+        }
+    }
+
+    private static class Packet implements Comparable<Packet> {
+        final long deliverTime;
+        final long sequence;
+        final byte[] data;
+
+        Packet(long deliverTime, long sequence, byte[] data) {
+            this.deliverTime = deliverTime;
+            this.sequence = sequence;
+            this.data = data;
+        }
+
+        @Override
+        public int compareTo(Packet other) {
+            if (deliverTime != other.deliverTime) {
+                return Long.compare(deliverTime, other.deliverTime);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final Network network;
+
+    private LoopbackTransport peer;
+
+    private final PriorityQueue<Packet> inbox = new PriorityQueue<>();
+
+    private LoopbackTransport(Network network) {
+        this.network = network;
+    }
+
+    @Override
+    public void send(byte[] data, int length) {
+        long deliverTime;
+        long sequence;
+        synchronized (network) {
+            if (network.random.nextDouble() < network.lossRate) {
+                return;
+            }
+            deliverTime = network.time + network.latency
+                    + (network.jitter > 0 ? (long) (network.random.nextDouble() * network.jitter) : 0);
+            sequence = network.sequence++;
+        }
+
+        synchronized (peer.inbox) {
+            peer.inbox.add(new Packet(deliverTime, sequence, Arrays.copyOf(data, length)));
+        }
+    }
+
+    @Override
+    public int receive(byte[] buffer) {
+        long now = network.getTime();
+        Packet packet;
+        synchronized (inbox) {
+            packet = inbox.peek();
+            if (packet == null || packet.deliverTime > now) {
+                return -1;
+            }
+            inbox.poll();
+        }
+
+        int length = Math.min(packet.data.length, buffer.length);
+        System.arraycopy(packet.data, 0, buffer, 0, length);
+        return length;
+    }
+
+    @Override
+    public void close() {
+        synchronized (inbox) {
+            inbox.clear();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.arcsinw.nesemulator.netplay;
+
+import com.arcsinw.nesemulator.CPUBus;
+import com.arcsinw.nesemulator.PPU;
+import com.arcsinw.nesemulator.SaveState;
+import com.arcsinw.nesemulator.StateHash;
+import com.arcsinw.nesemulator.input.Joypad;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 回滚联机（两名玩家）
+ * 每帧用本地输入和预测的对方输入（重复对方最后一次确认的输入）运行
+ * 收到对方的真实输入后，如果和预测的不同，恢复到那一帧之前的存档，不输出画面地重新运行到当前帧
+ *
+ * 玩家1的输入接到joypad1，玩家2的接到joypad2，两边都从新加载的卡带上电开始
+ *
+ * 数据包: ROM hash(4) 已确认的对方帧(4) 第一个输入的帧(4) 输入数(1) 输入(n)
+ * 每个包重复发送对方还没有确认的全部输入，丢包不需要重传
+ */
+public class RollbackSession {
+
+    /**
+     * 最多领先对方已确认输入的帧数，超过时等待
+     */
+    public static final int MAX_ROLLBACK = 8;
+
+    /**
+     * 输入和存档的环形缓冲，要大于两边最多相差的帧数
+     */
+    private static final int RING_SIZE = 32;
+
+    private static final int HEADER_SIZE = 13;
+
+    private final CPUBus bus;
+
+    private final Transport transport;
+
+    /**
+     * 1 或 2
+     */
+    private final int player;
+
+    private final int romHash;
+
+    private final StateHash stateHash;
+
+    // region 每帧的数据，下标 frame % RING_SIZE
+
+    /**
+     * 第frame帧运行之前的状态
+     */
+    private final SaveState[] snapshots = new SaveState[RING_SIZE];
+
+    private final int[] localInputs = new int[RING_SIZE];
+
+    /**
+     * frame <= remoteConfirmed 时是对方的真实输入，否则是预测
+     */
+    private final int[] remoteInputs = new int[RING_SIZE];
+
+    /**
+     * 第frame帧运行之后的状态hash，用于检查两边是否一致
+     */
+    private final long[] checksums = new long[RING_SIZE];
+
+    // endregion
+
+    /**
+     * 下一个要运行的帧
+     */
+    private int frame;
+
+    /**
+     * 已经收到对方输入的最后一帧（连续）
+     */
+    private int remoteConfirmed = -1;
+
+    /**
+     * 对方已经收到的本地输入的最后一帧
+     */
+    private int remoteAck = -1;
+
+    /**
+     * 预测错误的最早一帧
+     */
+    private int rollbackFrame = Integer.MAX_VALUE;
+
+    private int rollbackCount;
+    private int resimulatedFrames;
+    private long rollbackNanos;
+
+    private final byte[] packet = new byte[HEADER_SIZE + RING_SIZE];
+
+    /**
+     * @param player 本地玩家 1 或 2
+     */
+    public RollbackSession(CPUBus bus, Transport transport, int player) {
+        if (player != 1 && player != 2) {
+            throw new Error("player must be 1 or 2");
+        }
+        this.bus = bus;
+        this.transport = transport;
+        this.player = player;
+        this.romHash = bus.getCartridge().getRomImage().getSha1().hashCode();
+        this.stateHash = new StateHash(bus);
+        for (int i = 0; i < RING_SIZE; i++) {
+            snapshots[i] = new SaveState(bus);
+        }
+        bus.powerOn();
+    }
+
+    /**
+     * 用本地输入运行一帧
+     * @param localButtons 本地手柄的按键 {@link Joypad#getButtons()}
+     * @return false 领先对方太多，这一帧没有运行，稍后再试
+     */
+    public boolean advance(int localButtons) throws IOException {
+        poll();
+        if (rollbackFrame < frame) {
+            rollback();
+        }
+
+        if (frame - remoteConfirmed > MAX_ROLLBACK) {
+            send();
+            return false;
+        }
+
+        int index = frame % RING_SIZE;
+        localInputs[index] = localButtons;
+        if (frame > remoteConfirmed) {
+            remoteInputs[index] = predictRemoteInput();
+        }
+        runFrame(frame, true);
+        frame++;
+
+        send();
+        return true;
+    }
+
+    /**
+     * 对方的输入还没到时，认为对方保持最后一次的按键
+     */
+    private int predictRemoteInput() {
+        return remoteConfirmed >= 0 ? remoteInputs[remoteConfirmed % RING_SIZE] : 0;
+    }
+
+    private void runFrame(int frame, boolean output) {
+        int index = frame % RING_SIZE;
+        snapshots[index].capture();
+
+        bus.joypad1.setButtons(player == 1 ? localInputs[index] : remoteInputs[index]);
+        bus.joypad2.setButtons(player == 1 ? remoteInputs[index] : localInputs[index]);
+
+        PPU ppu = bus.ppu;
+        ppu.setOutputEnabled(output);
+        try {
+            bus.runFrame();
+        } finally {
+            ppu.setOutputEnabled(true);
+        }
+        checksums[index] = stateHash.compute();
+    }
+
+    /**
+     * 恢复到预测错误的那一帧之前，用新的输入重新运行到当前帧
+     */
+    private void rollback() {
+        long start = System.nanoTime();
+        int from = rollbackFrame;
+        rollbackFrame = Integer.MAX_VALUE;
+
+        snapshots[from % RING_SIZE].restore();
+        int predicted = predictRemoteInput();
+        for (int f = from; f < frame; f++) {
+            if (f > remoteConfirmed) {
+                remoteInputs[f % RING_SIZE] = predicted;
+            }
+            runFrame(f, false);
+        }
+
+        rollbackCount++;
+        resimulatedFrames += frame - from;
+        rollbackNanos += System.nanoTime() - start;
+    }
+
+    // region 网络
+
+    private void send() throws IOException {
+        // 对方可能已经确认了更多，但至少要覆盖对方还没有收到的部分
+        int first = Math.max(remoteAck + 1, frame - RING_SIZE + 1);
+        int count = Math.max(frame - first, 0);
+
+        ByteBuffer buffer = ByteBuffer.wrap(packet);
+        buffer.putInt(romHash);
+        buffer.putInt(remoteConfirmed);
+        buffer.putInt(first);
+        buffer.put((byte) count);
+        for (int f = first; f < first + count; f++) {
+            buffer.put((byte) localInputs[f % RING_SIZE]);
+        }
+        transport.send(packet, buffer.position());
+    }
+
+    private void poll() throws IOException {
+        byte[] data = new byte[packet.length];
+        int length;
+        while ((length = transport.receive(data)) >= HEADER_SIZE) {
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+            if (buffer.getInt() != romHash) {
+                throw new Error("对方使用的ROM不同");
+            }
+            remoteAck = Math.max(remoteAck, buffer.getInt());
+            int first = buffer.getInt();
+            int count = buffer.get() & 0x00FF;
+
+            for (int f = first; f < first + count; f++) {
+                int input = buffer.get() & 0x00FF;
+                if (f != remoteConfirmed + 1) {
+                    // 已经收到过，或者中间缺了一部分（等待之后的包补上）
+                    continue;
+                }
+
+                int index = f % RING_SIZE;
+                if (f < frame && remoteInputs[index] != input) {
+                    rollbackFrame = Math.min(rollbackFrame, f);
+                }
+                remoteInputs[index] = input;
+                remoteConfirmed = f;
+            }
+        }
+    }
+
+    // endregion
+
+    // region 状态
+
+    /**
+     * @return 下一个要运行的帧
+     */
+    public int getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return 两边的输入都已经确定并且按真实输入运行过的最后一帧
+     */
+    public int getConfirmedFrame() {
+        return Math.min(remoteConfirmed, frame - 1);
+    }
+
+    /**
+     * @param frame 不大于{@link #getConfirmedFrame()}，并且是最近{@value #RING_SIZE}帧以内
+     * @return 这一帧运行之后的状态hash {@link StateHash}
+     */
+    public long getChecksum(int frame) {
+        if (frame > getConfirmedFrame() || frame <= this.frame - RING_SIZE) {
+            throw new Error("checksum not available for frame " + frame);
+        }
+        return checksums[frame % RING_SIZE];
+    }
+
+    public int getRollbackCount() {
+        return rollbackCount;
+    }
+
+    public int getResimulatedFrames() {
+        return resimulatedFrames;
+    }
+
+    /**
+     * @return 回滚花费的总时间（纳秒）
+     */
+    public long getRollbackNanos() {
+        return rollbackNanos;
+    }
+
+    // endregion
+}
@@ -0,0 +1,18 @@
+package com.arcsinw.nesemulator.netplay;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * 联机使用的不可靠数据报传输，数据包可能丢失，重复或乱序
+ */
+public interface Transport extends Closeable {
+
+    void send(byte[] data, int length) throws IOException;
+
+    /**
+     * 不阻塞
+     * @return 收到的字节数，没有数据时返回 -1
+     */
+    int receive(byte[] buffer) throws IOException;
+}
@@ -0,0 +1,50 @@
+package com.arcsinw.nesemulator.netplay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * UDP传输，非阻塞
+ */
+public class UdpTransport implements Transport {
+
+    private final DatagramChannel channel;
+
+    /**
+     * @param localPort 本地端口
+     * @param remote 对方的地址
+     */
+    public UdpTransport(int localPort, InetSocketAddress remote) throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(localPort));
+        channel.connect(remote);
+        channel.configureBlocking(false);
+    }
+
+    @Override
+    public void send(byte[] data, int length) throws IOException {
+        try {
+            channel.write(ByteBuffer.wrap(data, 0, length));
+        } catch (PortUnreachableException e) {
+            // 对方还没有启动，数据包丢失即可
+        }
+    }
+
+    @Override
+    public int receive(byte[] buffer) throws IOException {
+        try {
+            int n = channel.read(ByteBuffer.wrap(buffer));
+            return n > 0 ? n : -1;
+        } catch (PortUnreachableException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,445 @@
+package com.arcsinw.nesemulator.rl;
+
+import com.arcsinw.nesemulator.CPUBus;
+import com.arcsinw.nesemulator.Console;
+import com.arcsinw.nesemulator.Observation;
+import com.arcsinw.nesemulator.PPU;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 强化学习用的批量环境（类似gym的vector env）
+ * K台机器由固定的工作线程并行运行，{@link #step(int[])} 一次运行所有机器
+ *
+ * 观察值: 一个direct ByteBuffer，[K][height][width]，默认是 240x256 的灰度
+ * 由PPU直接输出（{@link Observation}），机器不生成全尺寸的画面
+ * 奖励: 配置的RAM地址上的值的变化量，只能读取 CPU RAM 和 PRG-RAM，直接读数组，不经过总线（避免读I/O寄存器的副作用）
+ * 每一步用同一个动作运行frameSkip帧，灰度时观察值是最后两帧逐像素取最大值（去掉精灵闪烁）
+ * episode结束时自动恢复到初始状态，这时的观察值是新episode的第一帧
+ *
+ * 初始状态是构造时template的状态，之后修改template没有影响
+ * step() 和 reset() 中不分配内存
+ */
+public class BatchedEnvironment implements AutoCloseable {
+
+    /**
+     * 默认的观察值大小
+     */
+    public static final int WIDTH = 256;
+    public static final int HEIGHT = 240;
+
+    /**
+     * 奖励中的一项，值的变化量 * scale
+     */
+    private static final class RewardTerm {
+        final int address;
+        final int length;
+
+        /**
+         * true 每个字节是一位十进制数，高位在前；false 小端二进制
+         */
+        final boolean digits;
+        final float scale;
+
+        RewardTerm(int address, int length, boolean digits, float scale) {
+            this.address = address;
+            this.length = length;
+            this.digits = digits;
+            this.scale = scale;
+        }
+
+        long read(CPUBus bus) {
+            long value = 0;
+            for (int i = 0; i < length; i++) {
+                if (digits) {
+                    value = value * 10 + (peek(bus, address + i) & 0x0F);
+                } else {
+                    value |= (long) peek(bus, address + i) << (8 * i);
+                }
+            }
+            return value;
+        }
+    }
+
+    private static final int TASK_STEP = 0;
+    private static final int TASK_RESET = 1;
+
+    private final Console[] consoles;
+
+    /**
+     * 每个工作线程一份初始状态，同一个源不能同时复制到多台机器
+     */
+    private final Console[] templates;
+
+    private final int frameSkip;
+    private final boolean maxPool;
+
+    private final int frameSize;
+
+    private final ByteBuffer observations;
+
+    /**
+     * 每台机器在observations中的部分
+     */
+    private final ByteBuffer[] observationSlices;
+
+    private final Observation[] consoleObservations;
+
+    /**
+     * 倒数第二帧的观察值，用于max-pool
+     */
+    private final byte[][] pooledFrames;
+    private final ByteBuffer[] pooledBuffers;
+
+    private final float[] rewards;
+    private final boolean[] dones;
+    private final int[] episodeSteps;
+
+    private final List<RewardTerm> rewardTerms = new ArrayList<>();
+    private long[][] rewardValues;
+
+    private int terminalAddress = -1;
+    private int terminalValue;
+    private int maxEpisodeSteps;
+
+    // region 工作线程
+
+    private final Thread[] workers;
+
+    private final int[] actions;
+
+    private volatile int task;
+
+    /**
+     * 每次分配任务加1，工作线程看到变化后开始运行
+     */
+    private volatile int generation;
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private volatile Thread waiter;
+
+    private volatile Throwable failure;
+
+    private volatile boolean closed;
+
+    // endregion
+
+    /**
+     * @param template 初始状态，每台机器从它复制
+     * @param count 机器数 K
+     * @param frameSkip 每一步运行的帧数
+     * @param maxPool 观察值取最后两帧的最大值，只用于GRAYSCALE
+     * @param threads 工作线程数
+     * @param format 观察值的格式
+     * @param width 观察值的宽度，例如 84，小于256时由PPU缩小
+     * @param height 观察值的高度
+     */
+    public BatchedEnvironment(Console template, int count, int frameSkip, boolean maxPool, int threads,
+                              Observation.Format format, int width, int height) {
+        if (count <= 0 || frameSkip <= 0 || threads <= 0) {
+            throw new Error("count, frameSkip and threads must be positive");
+        }
+        this.frameSkip = frameSkip;
+        // 调色板索引取最大值没有意义
+        this.maxPool = maxPool && frameSkip > 1 && format == Observation.Format.GRAYSCALE;
+
+        consoles = new Console[count];
+        consoleObservations = new Observation[count];
+        frameSize = width * height;
+        observations = ByteBuffer.allocateDirect(count * frameSize);
+        observationSlices = new ByteBuffer[count];
+        pooledFrames = new byte[count][this.maxPool ? frameSize : 0];
+        pooledBuffers = new ByteBuffer[count];
+        for (int k = 0; k < count; k++) {
+            observations.position(k * frameSize);
+            observationSlices[k] = observations.slice();
+            pooledBuffers[k] = ByteBuffer.wrap(pooledFrames[k]);
+
+            Console console = template.fork();
+            Observation observation = new Observation(format, width, height);
+            observation.setTarget(observationSlices[k], 0);
+            console.getPpu().setObservation(observation);
+            console.getPpu().setScreenEnabled(false);
+            consoles[k] = console;
+            consoleObservations[k] = observation;
+        }
+        observations.clear();
+
+        rewards = new float[count];
+        dones = new boolean[count];
+        episodeSteps = new int[count];
+        actions = new int[count];
+
+        int workerCount = Math.min(threads, count);
+        templates = new Console[workerCount];
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            templates[i] = template.fork();
+            final int worker = i;
+            workers[i] = new Thread(() -> work(worker), "env-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public BatchedEnvironment(Console template, int count, int frameSkip, boolean maxPool, int threads) {
+        this(template, count, frameSkip, maxPool, threads, Observation.Format.GRAYSCALE, WIDTH, HEIGHT);
+    }
+
+    public BatchedEnvironment(Console template, int count, int frameSkip) {
+        this(template, count, frameSkip, true, Runtime.getRuntime().availableProcessors());
+    }
+
+    // region 配置，在reset()之前调用
+
+    /**
+     * 奖励加上 address 开始 length 字节的小端无符号数的变化量 * scale
+     */
+    public void addReward(int address, int length, float scale) {
+        checkAddress(address, length);
+        rewardTerms.add(new RewardTerm(address, length, false, scale));
+        rewardValues = null;
+    }
+
+    /**
+     * 奖励加上十进制数的变化量 * scale，每个字节的低4位是一位，高位在前（很多游戏的分数这样保存）
+     */
+    public void addDecimalReward(int address, int length, float scale) {
+        checkAddress(address, length);
+        rewardTerms.add(new RewardTerm(address, length, true, scale));
+        rewardValues = null;
+    }
+
+    /**
+     * RAM[address] == value 时episode结束
+     */
+    public void setTerminal(int address, int value) {
+        checkAddress(address, 1);
+        terminalAddress = address;
+        terminalValue = value & 0x00FF;
+    }
+
+    /**
+     * @param steps 每个episode最多的步数，0 表示不限制
+     */
+    public void setMaxEpisodeSteps(int steps) {
+        maxEpisodeSteps = steps;
+    }
+
+    /**
+     * 地址只能在 CPU RAM ($0000 - $1FFF) 或 PRG-RAM ($6000 - $7FFF) 中
+     */
+    private static void checkAddress(int address, int length) {
+        int end = address + length - 1;
+        boolean ram = address >= 0 && end < 0x2000;
+        boolean prgRam = address >= 0x6000 && end < 0x8000;
+        if (length <= 0 || (!ram && !prgRam)) {
+            throw new Error(String.format("address $%04X + %d must be in RAM ($0000-$1FFF) or PRG-RAM ($6000-$7FFF)", address, length));
+        }
+    }
+
+    /**
+     * 读取 RAM / PRG-RAM，没有PRG-RAM时为0
+     */
+    private static int peek(CPUBus bus, int address) {
+        if (address < 0x2000) {
+            return bus.cpuRAM[address & 0x07FF] & 0x00FF;
+        }
+        byte[] sram = bus.getCartridge().getSram();
+        int offset = address - 0x6000;
+        return offset < sram.length ? sram[offset] & 0x00FF : 0;
+    }
+
+    // endregion
+
+    /**
+     * 所有机器恢复到初始状态
+     */
+    public void reset() {
+        if (rewardValues == null || rewardValues.length != consoles.length) {
+            rewardValues = new long[consoles.length][rewardTerms.size()];
+        }
+        dispatch(TASK_RESET);
+    }
+
+    /**
+     * @param actions 每台机器手柄1的按键 {@link com.arcsinw.nesemulator.input.Joypad#getButtons()}
+     */
+    public void step(int[] actions) {
+        if (actions.length != consoles.length) {
+            throw new Error("expected " + consoles.length + " actions");
+        }
+        if (rewardValues == null) {
+            throw new Error("reset() must be called before step()");
+        }
+        System.arraycopy(actions, 0, this.actions, 0, actions.length);
+        dispatch(TASK_STEP);
+    }
+
+    // region 结果
+
+    /**
+     * @return [K][height][width]，每次step()之后更新
+     */
+    public ByteBuffer getObservations() {
+        return observations;
+    }
+
+    /**
+     * @return 每台机器的观察值的字节数
+     */
+    public int getObservationSize() {
+        return frameSize;
+    }
+
+    public float[] getRewards() {
+        return rewards;
+    }
+
+    /**
+     * @return true 这一步结束了episode，机器已经恢复到初始状态
+     */
+    public boolean[] getDones() {
+        return dones;
+    }
+
+    public int getCount() {
+        return consoles.length;
+    }
+
+    /**
+     * 机器不写入全尺寸的画面，{@link Console#getScreen()} 不会更新
+     */
+    public Console getConsole(int index) {
+        return consoles[index];
+    }
+
+    // endregion
+
+    private void dispatch(int task) {
+        if (closed) {
+            throw new Error("environment is closed");
+        }
+        this.task = task;
+        waiter = Thread.currentThread();
+        pending.set(workers.length);
+        generation++;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+        while (pending.get() != 0) {
+            LockSupport.park(this);
+        }
+
+        Throwable error = failure;
+        if (error != null) {
+            failure = null;
+            throw new Error("environment worker failed", error);
+        }
+    }
+
+    private void work(int worker) {
+        int seen = 0;
+        while (true) {
+            int current;
+            while ((current = generation) == seen) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.park(this);
+            }
+            seen = current;
+
+            try {
+                for (int k = worker; k < consoles.length; k += workers.length) {
+                    if (task == TASK_RESET) {
+                        resetConsole(k, worker);
+                    } else {
+                        stepConsole(k, worker);
+                    }
+                }
+            } catch (Throwable e) {
+                failure = e;
+            }
+
+            if (pending.decrementAndGet() == 0) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    private void resetConsole(int k, int worker) {
+        Console console = consoles[k];
+        templates[worker].copyInto(console);
+        episodeSteps[k] = 0;
+
+        CPUBus bus = console.getBus();
+        for (int t = 0; t < rewardTerms.size(); t++) {
+            rewardValues[k][t] = rewardTerms.get(t).read(bus);
+        }
+
+        // 初始状态的画面由template生成，复制时一起复制过来了
+        consoleObservations[k].capture(console.getScreen());
+    }
+
+    private void stepConsole(int k, int worker) {
+        Console console = consoles[k];
+        PPU ppu = console.getPpu();
+        Observation observation = consoleObservations[k];
+        ByteBuffer slice = observationSlices[k];
+        console.getJoypad1().setButtons(actions[k]);
+
+        try {
+            for (int i = 0; i < frameSkip; i++) {
+                // 只有需要观察的帧才输出，倒数第二帧输出到pooledFrames，最后一帧直接输出到observations
+                boolean pooled = maxPool && i == frameSkip - 2;
+                ppu.setOutputEnabled(pooled || i == frameSkip - 1);
+                observation.setTarget(pooled ? pooledBuffers[k] : slice, 0);
+                console.stepFrame();
+            }
+        } finally {
+            ppu.setOutputEnabled(true);
+            observation.setTarget(slice, 0);
+        }
+
+        if (maxPool) {
+            byte[] previous = pooledFrames[k];
+            for (int i = 0; i < frameSize; i++) {
+                if ((previous[i] & 0x00FF) > (slice.get(i) & 0x00FF)) {
+                    slice.put(i, previous[i]);
+                }
+            }
+        }
+
+        CPUBus bus = console.getBus();
+        float reward = 0;
+        for (int t = 0; t < rewardTerms.size(); t++) {
+            RewardTerm term = rewardTerms.get(t);
+            long value = term.read(bus);
+            reward += (value - rewardValues[k][t]) * term.scale;
+            rewardValues[k][t] = value;
+        }
+        rewards[k] = reward;
+
+        episodeSteps[k]++;
+        boolean done = (terminalAddress >= 0 && peek(bus, terminalAddress) == terminalValue)
+                || (maxEpisodeSteps > 0 && episodeSteps[k] >= maxEpisodeSteps);
+        dones[k] = done;
+        if (done) {
+            resetConsole(k, worker);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.arcsinw.nesemulator.rom;
+
+import com.arcsinw.nesemulator.Cartridge;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 文件头修正数据库
+ * 很多ROM的iNES文件头是错的（镜像类型、mapper号、电池标志），以 PRG + CHR 的 CRC32 为键保存正确的文件头
+ * 数据在第一次使用时从资源文件/header_db.bin加载，按CRC32排序，二分查找
+ * 内置的header_db.bin目前没有条目，用 {@link com.arcsinw.nesemulator.utils.HeaderDatabaseGenerator} 从已知的错误dump列表生成
+ *
+ * 文件格式（大端）
+ * "NESH" 版本(int) 条目数(int)
+ * 每个条目12字节: crc32(int) mapper(short) prgBanks(short) chrBanks(short) flags(byte) 保留(byte)
+ * flags:
+ * xxxx xBMM
+ *       |++-- 镜像类型 {@link Cartridge.Mirror}
+ *       +---- 电池
+ */
+public final class HeaderDatabase {
+    public static final String RESOURCE = "/header_db.bin";
+    public static final int MAGIC = 0x4E455348; // "NESH"
+    public static final int VERSION = 1;
+
+    public static final int FLAG_MIRROR_MASK = 0x03;
+    public static final int FLAG_BATTERY = 0x04;
+
+    /**
+     * 按有符号int升序排列的CRC32
+     */
+    private final int[] crcs;
+
+    private final short[] mappers;
+    private final short[] prgBanks;
+    private final short[] chrBanks;
+    private final byte[] flags;
+
+    private HeaderDatabase(int count) {
+        crcs = new int[count];
+        mappers = new short[count];
+        prgBanks = new short[count];
+        chrBanks = new short[count];
+        flags = new byte[count];
+    }
+
+    private static class Holder {
+        static final HeaderDatabase INSTANCE = loadResource();
+    }
+
+    /**
+     * @return 内置数据库，第一次调用时加载
+     */
+    public static HeaderDatabase getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private static HeaderDatabase loadResource() {
+        try (InputStream inputStream = HeaderDatabase.class.getResourceAsStream(RESOURCE)) {
+            if (inputStream == null) {
+                return new HeaderDatabase(0);
+            }
+            return read(inputStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new HeaderDatabase(0);
+        }
+    }
+
+    static HeaderDatabase read(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return new HeaderDatabase(0);
+        }
+
+        int count = in.readInt();
+        HeaderDatabase database = new HeaderDatabase(count);
+        for (int i = 0; i < count; i++) {
+            database.crcs[i] = in.readInt();
+            database.mappers[i] = in.readShort();
+            database.prgBanks[i] = in.readShort();
+            database.chrBanks[i] = in.readShort();
+            database.flags[i] = in.readByte();
+            in.readByte();
+        }
+        return database;
+    }
+
+    public int size() {
+        return crcs.length;
+    }
+
+    /**
+     * 用数据库中的数据修正文件头
+     * @param header 从文件读出的文件头，会被直接修改
+     * @param crc32 PRG + CHR 的 CRC32
+     * @return 修改的内容，没有修改时为空
+     */
+    public List<String> correct(Cartridge.Header header, int crc32) {
+        List<String> overrides = new ArrayList<>(0);
+
+        int i = Arrays.binarySearch(crcs, crc32);
+        if (i < 0) {
+            return overrides;
+        }
+
+        // CRC32相同但大小不同，不是同一个ROM
+        if (prgBanks[i] != header.prgBanksCount || chrBanks[i] != header.chrBanksCount) {
+            return overrides;
+        }
+
+        int mapperNo = mappers[i];
+        if (header.mapperNo != mapperNo) {
+            overrides.add(String.format("mapperNo %d -> %d", header.mapperNo, mapperNo));
+            header.mapperNo = mapperNo;
+        }
+
+        Cartridge.Mirror mirror = Cartridge.Mirror.fromKey(flags[i] & FLAG_MIRROR_MASK);
+        if (header.mirror != mirror) {
+            overrides.add(String.format("mirror %s -> %s", header.mirror, mirror));
+            header.mirror = mirror;
+        }
+
+        boolean battery = (flags[i] & FLAG_BATTERY) != 0;
+        if (header.batteryFlag != battery) {
+            overrides.add(String.format("batteryFlag %b -> %b", header.batteryFlag, battery));
+            header.batteryFlag = battery;
+        }
+
+        return overrides;
+    }
+}
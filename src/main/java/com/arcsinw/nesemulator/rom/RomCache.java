@@ -0,0 +1,216 @@
+package com.arcsinw.nesemulator.rom;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 进程内的ROM缓存，以 PRG + CHR 的 SHA-1 为键，见 {@link #newRomDigest(int, int)}
+ * 同一个游戏的多个实例只保留一份PRG/CHR-ROM
+ * 使用弱引用，没有实例引用的RomImage可以被GC回收，被回收的条目在下一次写入缓存时移除
+ */
+public final class RomCache {
+
+    private static final ConcurrentHashMap<String, WeakReference<RomImage>> IMAGES = new ConcurrentHashMap<>();
+
+    /**
+     * IMAGES和PATCHED中被GC清除的引用
+     */
+    private static final ReferenceQueue<Object> CLEARED = new ReferenceQueue<>();
+
+    /**
+     * 记住自己的键，被清除后可以从缓存中移除
+     */
+    private static final class WeakEntry<T> extends WeakReference<T> {
+        private final String key;
+
+        WeakEntry(String key, T referent) {
+            super(referent, CLEARED);
+            this.key = key;
+        }
+    }
+
+    private static final class SoftEntry<T> extends SoftReference<T> {
+        private final String key;
+
+        SoftEntry(String key, T referent) {
+            super(referent, CLEARED);
+            this.key = key;
+        }
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private RomCache() { }
+
+    /**
+     * 返回与 prg + chr 内容相同的共享RomImage
+     * 缓存中已经存在时，传入的数组会被丢弃
+     * @param prg PRG-ROM
+     * @param chr CHR-ROM，CHR-RAM卡带传入空数组
+     * @return 共享的RomImage
+     */
+    public static RomImage intern(byte[] prg, byte[] chr) {
+        expunge();
+        String sha1 = romSha1(prg, chr);
+
+        while (true) {
+            WeakReference<RomImage> reference = IMAGES.get(sha1);
+            RomImage image = reference == null ? null : reference.get();
+            if (image != null) {
+                return image;
+            }
+
+            RomImage created = new RomImage(prg, chr, sha1);
+            WeakReference<RomImage> createdReference = new WeakEntry<>(sha1, created);
+            boolean stored = reference == null
+                    ? IMAGES.putIfAbsent(sha1, createdReference) == null
+                    : IMAGES.replace(sha1, reference, createdReference);
+            if (stored) {
+                return created;
+            }
+        }
+    }
+
+    /**
+     * @param sha1 PRG + CHR 的 SHA-1
+     * @return 缓存中的RomImage，不存在时返回null
+     */
+    public static RomImage get(String sha1) {
+        WeakReference<RomImage> reference = IMAGES.get(sha1);
+        return reference == null ? null : reference.get();
+    }
+
+    // region 补丁
+
+    /**
+     * 补丁的结果：文件头（包括trainer）和共享的RomImage
+     */
+    public static final class Patched {
+        private final byte[] header;
+        private final RomImage image;
+
+        Patched(byte[] header, RomImage image) {
+            this.header = header;
+            this.image = image;
+        }
+
+        /**
+         * @return 16字节文件头 + trainer，只读
+         */
+        public byte[] getHeader() {
+            return header;
+        }
+
+        public RomImage getImage() {
+            return image;
+        }
+    }
+
+    /**
+     * 原始ROM + 补丁的SHA-1 -> 补丁结果
+     * 使用软引用，内存不足之前同一组补丁只应用一次，即使暂时没有实例在使用
+     */
+    private static final ConcurrentHashMap<String, SoftReference<Patched>> PATCHED = new ConcurrentHashMap<>();
+
+    /**
+     * @param key {@link RomPatcher#cacheKey}
+     * @return 缓存中的补丁结果，不存在时返回null
+     */
+    public static Patched getPatched(String key) {
+        SoftReference<Patched> reference = PATCHED.get(key);
+        return reference == null ? null : reference.get();
+    }
+
+    /**
+     * 缓存补丁结果，PRG/CHR 通过{@link #intern(byte[], byte[])}共享
+     * @param header 16字节文件头 + trainer
+     */
+    public static Patched putPatched(String key, byte[] header, byte[] prg, byte[] chr) {
+        Patched patched = new Patched(header, intern(prg, chr));
+        PATCHED.put(key, new SoftEntry<>(key, patched));
+        return patched;
+    }
+
+    // endregion
+
+    /**
+     * 清理已经被回收的条目
+     * @return 缓存中仍然存活的RomImage数量
+     */
+    public static int purge() {
+        expunge();
+        IMAGES.values().removeIf(reference -> reference.get() == null);
+        PATCHED.values().removeIf(reference -> reference.get() == null);
+        return IMAGES.size();
+    }
+
+    /**
+     * 移除GC已经清除的条目，只移除键仍然对应这个引用的，重新写入的新条目不受影响
+     */
+    private static void expunge() {
+        Reference<?> reference;
+        while ((reference = CLEARED.poll()) != null) {
+            if (reference instanceof WeakEntry) {
+                IMAGES.remove(((WeakEntry<?>) reference).key, reference);
+            } else {
+                PATCHED.remove(((SoftEntry<?>) reference).key, reference);
+            }
+        }
+    }
+
+    /**
+     * ROM的SHA-1，先加入PRG和CHR的长度（各4字节，大端序），再加入PRG和CHR的内容
+     * 只拼接内容时，PRG/CHR分界不同的两个ROM会得到同一个SHA-1
+     * @param prgSize PRG-ROM字节数
+     * @param chrSize CHR-ROM字节数，CHR-RAM卡带为0
+     * @return 之后依次update PRG和CHR的内容
+     */
+    static MessageDigest newRomDigest(int prgSize, int chrSize) {
+        MessageDigest digest = newSha1();
+        digest.update(toBytes(prgSize));
+        digest.update(toBytes(chrSize));
+        return digest;
+    }
+
+    static String romSha1(byte[] prg, byte[] chr) {
+        MessageDigest digest = newRomDigest(prg.length, chr.length);
+        digest.update(prg);
+        digest.update(chr);
+        return toHex(digest.digest());
+    }
+
+    static String sha1(byte[]... parts) {
+        MessageDigest digest = newSha1();
+        for (byte[] part : parts) {
+            digest.update(part);
+        }
+
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+    }
+
+    private static byte[] toBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >>> 4) & 0x0F];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+}
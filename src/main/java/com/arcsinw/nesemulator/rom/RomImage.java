@@ -0,0 +1,65 @@
+package com.arcsinw.nesemulator.rom;
+
+/**
+ * 卡带中只读的 PRG-ROM 和 CHR-ROM 数据
+ * 同一个ROM的多个模拟器实例共享同一个RomImage，由{@link RomCache}统一分配
+ * prg和chr数组不允许被修改，可写的CHR-RAM和PRG-RAM由每个实例自己分配
+ */
+public final class RomImage {
+    /**
+     * Program ROM
+     * 16KB per bank
+     */
+    private final byte[] prg;
+
+    /**
+     * Character ROM
+     * 8KB per bank，CHR-RAM卡带的长度为0
+     */
+    private final byte[] chr;
+
+    /**
+     * PRG + CHR 的 SHA-1（小写十六进制）
+     */
+    private final String sha1;
+
+    RomImage(byte[] prg, byte[] chr, String sha1) {
+        this.prg = prg;
+        this.chr = chr;
+        this.sha1 = sha1;
+    }
+
+    /**
+     * @return 共享的PRG-ROM，只读
+     */
+    public byte[] getPrg() {
+        return prg;
+    }
+
+    /**
+     * @return 共享的CHR-ROM，只读
+     */
+    public byte[] getChr() {
+        return chr;
+    }
+
+    public String getSha1() {
+        return sha1;
+    }
+
+    /**
+     * @return ROM数据占用的字节数
+     */
+    public int size() {
+        return prg.length + chr.length;
+    }
+
+    @Override
+    public String toString() {
+        return "RomImage{ " +
+                "sha1=" + sha1 +
+                ", prgSize=" + prg.length +
+                ", chrSize=" + chr.length +
+                " }";
+    }
+}
@@ -0,0 +1,271 @@
+package com.arcsinw.nesemulator.rom;
+
+import com.arcsinw.nesemulator.Cartridge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ROM库索引
+ * 保存每个.nes文件的文件头信息和 PRG + CHR 的哈希，可以持久化到磁盘并增量更新
+ * 查询都是HashMap查找
+ */
+public class RomIndex {
+    private static final int MAGIC = 0x4E455349; // "NESI"
+    private static final int VERSION = 3;
+
+    /**
+     * 索引中的一个ROM文件
+     */
+    public static final class Entry {
+        public final String path;
+        public final long fileSize;
+        public final long lastModified;
+
+        public final int mapperNo;
+        public final Cartridge.Mirror mirror;
+        public final int prgBanksCount;
+        public final int chrBanksCount;
+        public final boolean trainerFlag;
+        public final boolean batteryFlag;
+
+        /**
+         * NES 2.0 的扩展信息，iNES 1.0 文件使用默认值
+         */
+        public final boolean nes20;
+        public final int submapper;
+        public final int prgRamSize;
+        public final int prgNvramSize;
+        public final int chrRamSize;
+        public final int chrNvramSize;
+        public final int timingMode;
+
+        /**
+         * PRG + CHR 的 CRC32
+         */
+        public final int crc32;
+
+        /**
+         * PRG + CHR 的 SHA-1（小写十六进制），与{@link RomCache}的键一致
+         */
+        public final String sha1;
+
+        public Entry(String path, long fileSize, long lastModified, Cartridge.Header header, int crc32, String sha1) {
+            this(path, fileSize, lastModified, header.mapperNo, header.submapper, header.mirror,
+                    header.prgBanksCount, header.chrBanksCount, header.trainerFlag, header.batteryFlag, header.nes20,
+                    header.prgRamSize, header.prgNvramSize, header.chrRamSize, header.chrNvramSize, header.timingMode,
+                    crc32, sha1);
+        }
+
+        /**
+         * 从索引文件读入时使用，不需要完整的文件头
+         */
+        private Entry(String path, long fileSize, long lastModified, int mapperNo, int submapper, Cartridge.Mirror mirror,
+                      int prgBanksCount, int chrBanksCount, boolean trainerFlag, boolean batteryFlag, boolean nes20,
+                      int prgRamSize, int prgNvramSize, int chrRamSize, int chrNvramSize, int timingMode,
+                      int crc32, String sha1) {
+            this.path = path;
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+            this.mapperNo = mapperNo;
+            this.mirror = mirror;
+            this.prgBanksCount = prgBanksCount;
+            this.chrBanksCount = chrBanksCount;
+            this.trainerFlag = trainerFlag;
+            this.batteryFlag = batteryFlag;
+            this.nes20 = nes20;
+            this.submapper = submapper;
+            this.prgRamSize = prgRamSize;
+            this.prgNvramSize = prgNvramSize;
+            this.chrRamSize = chrRamSize;
+            this.chrNvramSize = chrNvramSize;
+            this.timingMode = timingMode;
+            this.crc32 = crc32;
+            this.sha1 = sha1;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%08x %s mapper=%d.%d %s PRG=%dx16KB CHR=%dx8KB PRG-RAM=%d CHR-RAM=%d %s",
+                    crc32, sha1, mapperNo, submapper, mirror, prgBanksCount, chrBanksCount,
+                    prgRamSize + prgNvramSize, chrRamSize + chrNvramSize, path);
+        }
+    }
+
+    private final Map<String, Entry> byPath = new HashMap<>();
+    private final Map<String, Entry> bySha1 = new HashMap<>();
+    private final Map<Integer, List<Entry>> byCrc32 = new HashMap<>();
+    private final Map<Integer, List<Entry>> byMapper = new HashMap<>();
+
+    // region 查询
+
+    public Entry findBySha1(String sha1) {
+        return bySha1.get(sha1.toLowerCase());
+    }
+
+    public List<Entry> findByCrc32(int crc32) {
+        return byCrc32.getOrDefault(crc32, Collections.emptyList());
+    }
+
+    public List<Entry> findByMapper(int mapperNo) {
+        return byMapper.getOrDefault(mapperNo, Collections.emptyList());
+    }
+
+    public Entry findByPath(String path) {
+        return byPath.get(path);
+    }
+
+    public Collection<Entry> entries() {
+        return Collections.unmodifiableCollection(byPath.values());
+    }
+
+    public int size() {
+        return byPath.size();
+    }
+
+    // endregion
+
+    public void put(Entry entry) {
+        remove(entry.path);
+
+        byPath.put(entry.path, entry);
+        bySha1.putIfAbsent(entry.sha1, entry);
+        byCrc32.computeIfAbsent(entry.crc32, k -> new ArrayList<>(1)).add(entry);
+        byMapper.computeIfAbsent(entry.mapperNo, k -> new ArrayList<>()).add(entry);
+    }
+
+    public Entry remove(String path) {
+        Entry entry = byPath.remove(path);
+        if (entry == null) {
+            return null;
+        }
+
+        if (bySha1.get(entry.sha1) == entry) {
+            bySha1.remove(entry.sha1);
+            // 同一个ROM的其他副本
+            for (Entry e : byCrc32.getOrDefault(entry.crc32, Collections.emptyList())) {
+                if (e != entry && e.sha1.equals(entry.sha1)) {
+                    bySha1.put(e.sha1, e);
+                    break;
+                }
+            }
+        }
+        removeFrom(byCrc32, entry.crc32, entry);
+        removeFrom(byMapper, entry.mapperNo, entry);
+        return entry;
+    }
+
+    private static void removeFrom(Map<Integer, List<Entry>> map, int key, Entry entry) {
+        List<Entry> list = map.get(key);
+        if (list != null) {
+            list.remove(entry);
+            if (list.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    // region 持久化
+
+    /**
+     * 写入索引文件，先写临时文件再替换，写入过程中中断不会损坏旧索引
+     */
+    public void save(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(byPath.size());
+
+            for (Entry entry : byPath.values()) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.fileSize);
+                out.writeLong(entry.lastModified);
+                out.writeShort(entry.mapperNo);
+                out.writeByte(entry.submapper);
+                out.writeByte(entry.mirror.getKey());
+                out.writeShort(entry.prgBanksCount);
+                out.writeShort(entry.chrBanksCount);
+                out.writeByte((entry.trainerFlag ? 0x01 : 0) | (entry.batteryFlag ? 0x02 : 0) | (entry.nes20 ? 0x04 : 0));
+                out.writeInt(entry.prgRamSize);
+                out.writeInt(entry.prgNvramSize);
+                out.writeInt(entry.chrRamSize);
+                out.writeInt(entry.chrNvramSize);
+                out.writeByte(entry.timingMode);
+                out.writeInt(entry.crc32);
+                out.write(fromHex(entry.sha1));
+            }
+        }
+
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @param file 索引文件
+     * @return 文件不存在或者版本不一致时返回空索引
+     */
+    public static RomIndex load(Path file) throws IOException {
+        RomIndex index = new RomIndex();
+        if (!Files.isRegularFile(file)) {
+            return index;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return index;
+            }
+
+            int count = in.readInt();
+            byte[] sha1 = new byte[20];
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long fileSize = in.readLong();
+                long lastModified = in.readLong();
+
+                int mapperNo = in.readUnsignedShort();
+                int submapper = in.readUnsignedByte();
+                Cartridge.Mirror mirror = Cartridge.Mirror.fromKey(in.readUnsignedByte());
+                int prgBanksCount = in.readUnsignedShort();
+                int chrBanksCount = in.readUnsignedShort();
+                int flags = in.readUnsignedByte();
+                int prgRamSize = in.readInt();
+                int prgNvramSize = in.readInt();
+                int chrRamSize = in.readInt();
+                int chrNvramSize = in.readInt();
+                int timingMode = in.readUnsignedByte();
+                int crc32 = in.readInt();
+                in.readFully(sha1);
+
+                index.put(new Entry(path, fileSize, lastModified, mapperNo, submapper, mirror,
+                        prgBanksCount, chrBanksCount, (flags & 0x01) != 0, (flags & 0x02) != 0, (flags & 0x04) != 0,
+                        prgRamSize, prgNvramSize, chrRamSize, chrNvramSize, timingMode,
+                        crc32, RomCache.toHex(sha1)));
+            }
+        }
+
+        return index;
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    // endregion
+}
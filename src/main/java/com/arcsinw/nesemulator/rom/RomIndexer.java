@@ -0,0 +1,287 @@
+package com.arcsinw.nesemulator.rom;
+
+import com.arcsinw.nesemulator.Cartridge;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * 并行扫描ROM目录，生成或增量更新{@link RomIndex}
+ * 每个目录和文件都是一个fork-join任务，文件只读取文件头，PRG/CHR以流的方式计算哈希，不会整体加载
+ * 文件大小和修改时间都没有变化的条目直接复用
+ */
+public class RomIndexer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ForkJoinPool pool;
+
+    private final AtomicInteger reusedCount = new AtomicInteger();
+    private final AtomicInteger hashedCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    public RomIndexer() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public RomIndexer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * 扫描roots下的所有.nes文件并更新索引
+     * roots下已经不存在的文件会从索引中删除，其他目录的条目保持不变
+     * @param index 之前的索引，会被直接修改
+     * @param roots 要扫描的目录
+     * @return index
+     */
+    public RomIndex update(RomIndex index, List<Path> roots) {
+        reusedCount.set(0);
+        hashedCount.set(0);
+        failedCount.set(0);
+
+        Set<String> scanned = new HashSet<>();
+        List<String> rootPrefixes = new ArrayList<>();
+
+        for (Path root : roots) {
+            Path absoluteRoot = root.toAbsolutePath().normalize();
+            rootPrefixes.add(absoluteRoot.toString() + File.separator);
+
+            List<RomIndex.Entry> entries = pool.invoke(new DirectoryTask(absoluteRoot, index));
+            for (RomIndex.Entry entry : entries) {
+                scanned.add(entry.path);
+                if (index.findByPath(entry.path) != entry) {
+                    index.put(entry);
+                }
+            }
+        }
+
+        List<String> removed = new ArrayList<>();
+        for (RomIndex.Entry entry : index.entries()) {
+            if (!scanned.contains(entry.path) && isUnder(entry.path, rootPrefixes)) {
+                removed.add(entry.path);
+            }
+        }
+        removed.forEach(index::remove);
+
+        return index;
+    }
+
+    public int getReusedCount() {
+        return reusedCount.get();
+    }
+
+    public int getHashedCount() {
+        return hashedCount.get();
+    }
+
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    private static boolean isUnder(String path, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNesFile(Path path) {
+        return path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".nes");
+    }
+
+    /**
+     * 扫描一个目录，子目录和文件各自作为子任务
+     */
+    private class DirectoryTask extends RecursiveTask<List<RomIndex.Entry>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final RomIndex previous;
+
+        DirectoryTask(Path directory, RomIndex previous) {
+            this.directory = directory;
+            this.previous = previous;
+        }
+
+        @Override
+        protected List<RomIndex.Entry> compute() {
+            List<RecursiveTask<List<RomIndex.Entry>>> tasks = new ArrayList<>();
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path path : stream) {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    if (attributes.isDirectory()) {
+                        tasks.add(new DirectoryTask(path, previous));
+                    } else if (attributes.isRegularFile() && isNesFile(path)) {
+                        tasks.add(new FileTask(path, attributes, previous));
+                    }
+                }
+            } catch (IOException e) {
+                failedCount.incrementAndGet();
+                return new ArrayList<>();
+            }
+
+            List<RomIndex.Entry> entries = new ArrayList<>();
+            for (RecursiveTask<List<RomIndex.Entry>> task : invokeAll(tasks)) {
+                entries.addAll(task.join());
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * 索引单个文件
+     */
+    private class FileTask extends RecursiveTask<List<RomIndex.Entry>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path file;
+        private final BasicFileAttributes attributes;
+        private final RomIndex previous;
+
+        FileTask(Path file, BasicFileAttributes attributes, RomIndex previous) {
+            this.file = file;
+            this.attributes = attributes;
+            this.previous = previous;
+        }
+
+        @Override
+        protected List<RomIndex.Entry> compute() {
+            List<RomIndex.Entry> result = new ArrayList<>(1);
+            String path = file.toString();
+            long fileSize = attributes.size();
+            long lastModified = attributes.lastModifiedTime().toMillis();
+
+            RomIndex.Entry old = previous.findByPath(path);
+            if (old != null && old.fileSize == fileSize && old.lastModified == lastModified) {
+                reusedCount.incrementAndGet();
+                result.add(old);
+                return result;
+            }
+
+            try (InputStream inputStream = Files.newInputStream(file)) {
+                RomIndex.Entry entry = index(path, fileSize, lastModified, inputStream);
+                if (entry != null) {
+                    hashedCount.incrementAndGet();
+                    result.add(entry);
+                } else {
+                    failedCount.incrementAndGet();
+                }
+            } catch (IOException e) {
+                failedCount.incrementAndGet();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 解析文件头并计算 PRG + CHR 的哈希
+     * @return 不是合法的nes文件时返回null
+     */
+    public static RomIndex.Entry index(String path, long fileSize, long lastModified, InputStream inputStream) throws IOException {
+        byte[] headerBytes = new byte[Cartridge.Header.SIZE];
+        if (!readFully(inputStream, headerBytes, headerBytes.length) || !Cartridge.Header.isNesHeader(headerBytes)) {
+            return null;
+        }
+
+        Cartridge.Header header;
+        try {
+            header = new Cartridge.Header(headerBytes);
+        } catch (Error e) {
+            // 文件头中的PRG/CHR大小不合法，只跳过这一个文件，不中断整个扫描
+            return null;
+        }
+        skipFully(inputStream, header.getTrainerSize());
+
+        CRC32 crc32 = new CRC32();
+        // 和RomCache.intern得到的SHA-1相同
+        MessageDigest sha1 = RomCache.newRomDigest(header.getPrgSize(), header.getChrSize());
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        long remaining = (long) header.getPrgSize() + header.getChrSize();
+        while (remaining > 0) {
+            int n = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                // 文件比文件头声明的短
+                return null;
+            }
+            crc32.update(buffer, 0, n);
+            sha1.update(buffer, 0, n);
+            remaining -= n;
+        }
+
+        HeaderDatabase.getInstance().correct(header, (int) crc32.getValue());
+
+        return new RomIndex.Entry(path, fileSize, lastModified, header,
+                (int) crc32.getValue(), RomCache.toHex(sha1.digest()));
+    }
+
+    private static boolean readFully(InputStream inputStream, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int n = inputStream.read(buffer, offset, length - offset);
+            if (n < 0) {
+                return false;
+            }
+            offset += n;
+        }
+        return true;
+    }
+
+    private static void skipFully(InputStream inputStream, long count) throws IOException {
+        while (count > 0) {
+            long n = inputStream.skip(count);
+            if (n <= 0) {
+                if (inputStream.read() < 0) {
+                    throw new EOFException();
+                }
+                n = 1;
+            }
+            count -= n;
+        }
+    }
+
+    /**
+     * RomIndexer [索引文件] [ROM目录]...
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: RomIndexer <index file> <rom dir>...");
+            return;
+        }
+
+        Path indexFile = Paths.get(args[0]);
+        List<Path> roots = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            roots.add(Paths.get(args[i]));
+        }
+
+        long start = System.currentTimeMillis();
+        RomIndexer indexer = new RomIndexer();
+        RomIndex index = indexer.update(RomIndex.load(indexFile), roots);
+        index.save(indexFile);
+
+        System.out.println(String.format("%d roms, %d hashed, %d reused, %d failed, %d ms",
+                index.size(), indexer.getHashedCount(), indexer.getReusedCount(), indexer.getFailedCount(),
+                System.currentTimeMillis() - start));
+    }
+}
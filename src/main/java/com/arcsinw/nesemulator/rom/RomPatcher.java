@@ -0,0 +1,477 @@
+package com.arcsinw.nesemulator.rom;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * ROM补丁（软补丁），支持 IPS / BPS / UPS，根据文件开头的标记判断格式
+ * 补丁按顺序从流中读取并直接写入结果，不需要把补丁整个读入内存
+ * 补丁作用于整个.nes文件（包括文件头）
+ *
+ * IPS: https://zerosoft.zophar.net/ips.php
+ * BPS: https://www.romhacking.net/documents/746/
+ * UPS: https://www.romhacking.net/documents/392/
+ */
+public final class RomPatcher {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] IPS_MAGIC = {'P', 'A', 'T', 'C', 'H'};
+    private static final byte[] BPS_MAGIC = {'B', 'P', 'S', '1'};
+    private static final byte[] UPS_MAGIC = {'U', 'P', 'S', '1'};
+
+    /**
+     * IPS 结束标记 "EOF"
+     */
+    private static final int IPS_EOF = 0x454F46;
+
+    /**
+     * BPS / UPS 结尾的3个CRC32
+     */
+    private static final int FOOTER_SIZE = 12;
+
+    private RomPatcher() { }
+
+    /**
+     * 按顺序应用多个补丁
+     * @param source 原始.nes文件
+     * @param patches 补丁文件
+     * @return 新的数组，source不会被修改
+     */
+    public static byte[] apply(byte[] source, List<Path> patches) throws IOException {
+        byte[] result = source;
+        for (Path patch : patches) {
+            try (InputStream inputStream = Files.newInputStream(patch)) {
+                result = apply(result, inputStream);
+            } catch (IOException e) {
+                throw new IOException("补丁应用失败: " + patch + ", " + e.getMessage(), e);
+            }
+        }
+        return result == source ? source.clone() : result;
+    }
+
+    /**
+     * @param source 原始数据
+     * @param patch IPS / BPS / UPS 补丁
+     * @return 新的数组，source不会被修改
+     */
+    public static byte[] apply(byte[] source, InputStream patch) throws IOException {
+        PatchInputStream in = new PatchInputStream(new BufferedInputStream(patch, BUFFER_SIZE));
+
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        if (Arrays.equals(magic, BPS_MAGIC)) {
+            return applyBps(source, in);
+        }
+        if (Arrays.equals(magic, UPS_MAGIC)) {
+            return applyUps(source, in);
+        }
+        if (Arrays.equals(magic, Arrays.copyOf(IPS_MAGIC, 4)) && in.read() == IPS_MAGIC[4]) {
+            return applyIps(source, in);
+        }
+        throw new IOException("不支持的补丁格式");
+    }
+
+    /**
+     * @return 原始ROM和所有补丁的SHA-1，用作补丁结果的缓存键
+     */
+    public static String cacheKey(byte[] source, List<Path> patches) throws IOException {
+        StringBuilder key = new StringBuilder(RomCache.sha1(source));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (Path patch : patches) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new Error(e);
+            }
+
+            try (InputStream inputStream = Files.newInputStream(patch)) {
+                int n;
+                while ((n = inputStream.read(buffer)) > 0) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+            key.append('+').append(RomCache.toHex(digest.digest()));
+        }
+        return key.toString();
+    }
+
+    // region IPS
+
+    /**
+     * 记录: 偏移(3字节) 长度(2字节) 数据；长度为0时是RLE记录: 重复次数(2字节) 值(1字节)
+     * "EOF"之后可能有3字节的截断长度
+     */
+    private static byte[] applyIps(byte[] source, PatchInputStream in) throws IOException {
+        Output target = new Output(source.length);
+        target.write(source, 0, source.length);
+
+        while (true) {
+            int offset = in.readBigEndian(3);
+            if (offset == IPS_EOF) {
+                break;
+            }
+
+            int size = in.readBigEndian(2);
+            if (size == 0) {
+                int count = in.readBigEndian(2);
+                int value = in.readByte();
+                target.fill(offset, count, value);
+            } else {
+                target.position(offset);
+                for (int i = 0; i < size; i++) {
+                    target.write(in.readByte());
+                }
+            }
+        }
+
+        int truncate = in.read();
+        if (truncate >= 0) {
+            int length = (truncate << 16) | in.readBigEndian(2);
+            return Arrays.copyOf(target.toByteArray(), length);
+        }
+        return target.toByteArray();
+    }
+
+    // endregion
+
+    // region BPS
+
+    private static final int BPS_SOURCE_READ = 0;
+    private static final int BPS_TARGET_READ = 1;
+    private static final int BPS_SOURCE_COPY = 2;
+    private static final int BPS_TARGET_COPY = 3;
+
+    private static byte[] applyBps(byte[] source, PatchInputStream in) throws IOException {
+        in.setFooterSize(FOOTER_SIZE);
+
+        long sourceSize = in.readNumber();
+        long targetSize = in.readNumber();
+        long metadataSize = in.readNumber();
+        in.skipFully(metadataSize);
+
+        if (sourceSize != source.length) {
+            throw new IOException(String.format("原始文件大小不匹配: %d, 需要 %d", source.length, sourceSize));
+        }
+        if (targetSize > Integer.MAX_VALUE) {
+            throw new IOException("目标文件太大: " + targetSize);
+        }
+
+        byte[] target = new byte[(int) targetSize];
+        int outputOffset = 0;
+        int sourceRelativeOffset = 0;
+        int targetRelativeOffset = 0;
+
+        while (!in.atFooter()) {
+            long data = in.readNumber();
+            int command = (int) (data & 0x03);
+            int length = (int) ((data >>> 2) + 1);
+            checkRange(outputOffset, length, target.length);
+
+            switch (command) {
+                case BPS_SOURCE_READ:
+                    checkRange(outputOffset, length, source.length);
+                    System.arraycopy(source, outputOffset, target, outputOffset, length);
+                    outputOffset += length;
+                    break;
+                case BPS_TARGET_READ:
+                    in.readFully(target, outputOffset, length);
+                    outputOffset += length;
+                    break;
+                case BPS_SOURCE_COPY:
+                    sourceRelativeOffset += readSignedNumber(in);
+                    checkRange(sourceRelativeOffset, length, source.length);
+                    System.arraycopy(source, sourceRelativeOffset, target, outputOffset, length);
+                    sourceRelativeOffset += length;
+                    outputOffset += length;
+                    break;
+                case BPS_TARGET_COPY:
+                    targetRelativeOffset += readSignedNumber(in);
+                    // 可能和正在写入的区域重叠（重复模式），只要求起点已经写入，需要逐字节复制
+                    checkRange(targetRelativeOffset, 1, outputOffset);
+                    for (int i = 0; i < length; i++) {
+                        target[outputOffset++] = target[targetRelativeOffset++];
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        verifyFooter(in, source, target);
+        return target;
+    }
+
+    private static int readSignedNumber(PatchInputStream in) throws IOException {
+        long data = in.readNumber();
+        int value = (int) (data >>> 1);
+        return (data & 0x01) != 0 ? -value : value;
+    }
+
+    // endregion
+
+    // region UPS
+
+    /**
+     * 记录: 跳过的字节数(变长整数) 异或数据，以0结束
+     * 超出原始文件的部分按0处理
+     */
+    private static byte[] applyUps(byte[] source, PatchInputStream in) throws IOException {
+        in.setFooterSize(FOOTER_SIZE);
+
+        long sourceSize = in.readNumber();
+        long targetSize = in.readNumber();
+        if (sourceSize != source.length) {
+            throw new IOException(String.format("原始文件大小不匹配: %d, 需要 %d", source.length, sourceSize));
+        }
+        if (targetSize > Integer.MAX_VALUE) {
+            throw new IOException("目标文件太大: " + targetSize);
+        }
+
+        byte[] target = Arrays.copyOf(source, (int) targetSize);
+        long offset = 0;
+        while (!in.atFooter()) {
+            // 跳过的字节数可以是任意大的变长整数，用long累加，超出目标文件时补丁不合法
+            offset += in.readNumber();
+            if (offset < 0 || offset > target.length) {
+                throw new IOException(String.format("补丁数据越界: offset=%d, limit=%d", offset, target.length));
+            }
+            while (true) {
+                int value = in.readByte();
+                if (offset < target.length) {
+                    target[(int) offset] ^= value;
+                }
+                offset++;
+                if (value == 0) {
+                    break;
+                }
+            }
+        }
+
+        verifyFooter(in, source, target);
+        return target;
+    }
+
+    // endregion
+
+    private static void checkRange(int offset, int length, int limit) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > limit) {
+            throw new IOException(String.format("补丁数据越界: offset=%d, length=%d, limit=%d", offset, length, limit));
+        }
+    }
+
+    /**
+     * BPS / UPS 的结尾: 原始文件CRC32，目标文件CRC32，补丁CRC32（不含最后4字节），小端
+     */
+    private static void verifyFooter(PatchInputStream in, byte[] source, byte[] target) throws IOException {
+        int sourceCrc = in.readLittleEndian();
+        int targetCrc = in.readLittleEndian();
+        int patchCrc = (int) in.getCrc();
+        int expectedPatchCrc = in.readLittleEndian();
+
+        if (expectedPatchCrc != patchCrc) {
+            throw new IOException("补丁文件校验失败");
+        }
+        if (sourceCrc != crc32(source)) {
+            throw new IOException("原始文件校验失败");
+        }
+        if (targetCrc != crc32(target)) {
+            throw new IOException("目标文件校验失败");
+        }
+    }
+
+    private static int crc32(byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes);
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * 补丁的输入流，计算已读取部分的CRC32
+     * BPS / UPS 需要在结尾的CRC之前停止，所以保留最后footerSize字节不交给调用方，用atFooter判断
+     */
+    private static final class PatchInputStream {
+        private final InputStream in;
+        private final CRC32 crc = new CRC32();
+
+        /**
+         * 预读的结尾字节（环形缓冲区），长度为0时不预读
+         */
+        private int[] footer = new int[0];
+        private int footerStart;
+        private int footerCount;
+
+        PatchInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * 之后的读取都保留size字节的预读
+         */
+        void setFooterSize(int size) throws IOException {
+            footer = new int[size];
+            for (int i = 0; i < size; i++) {
+                footer[i] = in.read();
+                if (footer[i] < 0) {
+                    throw new EOFException("补丁文件不完整");
+                }
+            }
+            footerStart = 0;
+            footerCount = size;
+        }
+
+        /**
+         * @return 剩余的数据只有结尾
+         */
+        boolean atFooter() throws IOException {
+            in.mark(1);
+            int next = in.read();
+            in.reset();
+            return next < 0;
+        }
+
+        /**
+         * @return -1 表示结束
+         */
+        int read() throws IOException {
+            int value = in.read();
+            if (footer.length > 0) {
+                int result = -1;
+                if (footerCount > 0) {
+                    result = footer[footerStart];
+                    if (value >= 0) {
+                        footer[footerStart] = value;
+                    } else {
+                        // 已经到达结尾，依次读出预读的字节
+                        footerCount--;
+                    }
+                    footerStart = (footerStart + 1) % footer.length;
+                }
+                value = result;
+            }
+
+            if (value >= 0) {
+                crc.update(value);
+            }
+            return value;
+        }
+
+        int readByte() throws IOException {
+            int value = read();
+            if (value < 0) {
+                throw new EOFException("补丁文件不完整");
+            }
+            return value;
+        }
+
+        void readFully(byte[] bytes) throws IOException {
+            readFully(bytes, 0, bytes.length);
+        }
+
+        void readFully(byte[] bytes, int offset, int length) throws IOException {
+            for (int i = 0; i < length; i++) {
+                bytes[offset + i] = (byte) readByte();
+            }
+        }
+
+        void skipFully(long count) throws IOException {
+            for (long i = 0; i < count; i++) {
+                readByte();
+            }
+        }
+
+        int readBigEndian(int bytes) throws IOException {
+            int value = 0;
+            for (int i = 0; i < bytes; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        int readLittleEndian() throws IOException {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value |= readByte() << (i * 8);
+            }
+            return value;
+        }
+
+        /**
+         * BPS / UPS 的变长整数，每字节7位，最高位为1表示结束
+         */
+        long readNumber() throws IOException {
+            long data = 0;
+            long shift = 1;
+            while (true) {
+                int x = readByte();
+                data += (x & 0x7F) * shift;
+                if ((x & 0x80) != 0) {
+                    return data;
+                }
+                shift <<= 7;
+                data += shift;
+                if (shift > (1L << 56)) {
+                    throw new IOException("变长整数过长");
+                }
+            }
+        }
+
+        long getCrc() {
+            return crc.getValue();
+        }
+    }
+
+    /**
+     * IPS的输出，可以写到当前长度之后
+     */
+    private static final class Output {
+        private byte[] buffer;
+        private int length;
+        private int position;
+
+        Output(int capacity) {
+            buffer = new byte[Math.max(16, capacity)];
+        }
+
+        void position(int position) {
+            this.position = position;
+        }
+
+        private void ensure(int end) {
+            if (end > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(end, buffer.length * 2));
+            }
+            length = Math.max(length, end);
+        }
+
+        void write(int value) {
+            ensure(position + 1);
+            buffer[position++] = (byte) value;
+        }
+
+        void write(byte[] bytes, int offset, int count) {
+            ensure(position + count);
+            System.arraycopy(bytes, offset, buffer, position, count);
+            position += count;
+        }
+
+        void fill(int offset, int count, int value) {
+            ensure(offset + count);
+            Arrays.fill(buffer, offset, offset + count, (byte) value);
+            position = offset + count;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+    }
+}
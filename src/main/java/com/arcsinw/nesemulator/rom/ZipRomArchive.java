@@ -0,0 +1,282 @@
+package com.arcsinw.nesemulator.rom;
+
+import com.arcsinw.nesemulator.Cartridge;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 直接从zip压缩包中加载.nes文件，不需要解压到磁盘
+ * 每个压缩包只在第一次打开时解析一次central directory，之后按名字查找ROM是HashMap查找
+ * 解压后的数据直接进入{@link RomCache}
+ *
+ * 解析结果按路径缓存并且引用计数，{@link #open(Path)} 每次返回一个新的句柄，
+ * 关闭句柄不影响其他持有者，最后一个句柄关闭并且缓存不再引用时才关闭ZipFile
+ * 缓存只保留最近使用的{@link #MAX_CACHED_ARCHIVES}个压缩包，扫描大量压缩包时不会一直占用文件描述符
+ *
+ * 文件路径可以写成 path.zip!entry.nes 指定压缩包中的ROM，见 {@link #isArchivePath(String)}
+ */
+public class ZipRomArchive implements Closeable {
+
+    /**
+     * path.zip!entry 中的分隔符
+     */
+    public static final char ENTRY_SEPARATOR = '!';
+
+    /**
+     * 缓存的压缩包个数上限，超过时移除最久没有使用的
+     */
+    public static final int MAX_CACHED_ARCHIVES = 16;
+
+    /**
+     * 已解析的压缩包，以绝对路径为键，按访问顺序排列，读写都需要同步
+     */
+    private static final LinkedHashMap<Path, Shared> ARCHIVES = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 当前打开的ZipFile个数
+     */
+    private static final AtomicInteger OPEN_FILES = new AtomicInteger();
+
+    /**
+     * 同一个压缩包的所有句柄共享的ZipFile和条目
+     */
+    private static final class Shared {
+        private final Path path;
+
+        private final long lastModified;
+
+        private final ZipFile zipFile;
+
+        /**
+         * 压缩包内完整路径 -> .nes条目
+         */
+        private final Map<String, ZipEntry> entries = new HashMap<>();
+
+        /**
+         * 文件名（不含目录，小写） -> .nes条目
+         */
+        private final Map<String, ZipEntry> entriesByFileName = new HashMap<>();
+
+        private final List<String> entryNames;
+
+        /**
+         * 缓存本身占1个，每个未关闭的句柄占1个
+         */
+        private int references = 1;
+
+        private Shared(Path path) throws IOException {
+            this.path = path;
+            this.lastModified = Files.getLastModifiedTime(path).toMillis();
+            this.zipFile = new ZipFile(path.toFile());
+            OPEN_FILES.incrementAndGet();
+
+            List<String> names = new ArrayList<>();
+            Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+            while (enumeration.hasMoreElements()) {
+                ZipEntry entry = enumeration.nextElement();
+                String name = entry.getName();
+                if (entry.isDirectory() || !name.toLowerCase(Locale.ROOT).endsWith(".nes")) {
+                    continue;
+                }
+
+                entries.put(name, entry);
+                entriesByFileName.putIfAbsent(fileName(name), entry);
+                names.add(name);
+            }
+            entryNames = Collections.unmodifiableList(names);
+        }
+
+        /**
+         * 只在缓存中时调用，此时引用数至少为1，ZipFile还没有关闭
+         */
+        private synchronized void retain() {
+            references++;
+        }
+
+        private synchronized void release() throws IOException {
+            if (--references == 0) {
+                OPEN_FILES.decrementAndGet();
+                zipFile.close();
+            }
+        }
+    }
+
+    private final Shared shared;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private ZipRomArchive(Shared shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * 打开压缩包，同一个文件只解析一次，文件被修改后重新解析
+     * 返回的句柄用完后需要关闭
+     * @param path zip文件路径
+     */
+    public static ZipRomArchive open(Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        long lastModified = Files.getLastModifiedTime(key).toMillis();
+
+        synchronized (ARCHIVES) {
+            Shared shared = ARCHIVES.get(key);
+            if (shared != null && shared.lastModified != lastModified) {
+                // 旧的ZipFile在其他句柄都关闭后才关闭
+                ARCHIVES.remove(key);
+                shared.release();
+                shared = null;
+            }
+            if (shared == null) {
+                shared = new Shared(key);
+                ARCHIVES.put(key, shared);
+            }
+            shared.retain();
+            ZipRomArchive archive = new ZipRomArchive(shared);
+
+            evict();
+            return archive;
+        }
+    }
+
+    /**
+     * 移除最久没有使用的压缩包，释放缓存持有的引用，还有句柄的压缩包在句柄关闭后才关闭
+     */
+    private static void evict() throws IOException {
+        Iterator<Shared> iterator = ARCHIVES.values().iterator();
+        while (ARCHIVES.size() > MAX_CACHED_ARCHIVES) {
+            Shared eldest = iterator.next();
+            iterator.remove();
+            eldest.release();
+        }
+    }
+
+    /**
+     * @return 当前打开的ZipFile个数，包括缓存中的和已经移出缓存但句柄还没有关闭的
+     */
+    public static int getOpenFileCount() {
+        return OPEN_FILES.get();
+    }
+
+    /**
+     * @return true 路径是 .zip 文件，或者 .zip!条目
+     */
+    public static boolean isArchivePath(String path) {
+        return archiveEnd(path) >= 0;
+    }
+
+    /**
+     * 加载 path.zip!entry 指定的ROM，没有 !entry 时加载压缩包中的第一个ROM
+     */
+    public static Cartridge loadPath(String path) throws IOException {
+        int end = archiveEnd(path);
+        if (end < 0) {
+            throw new IOException("不是zip文件: " + path);
+        }
+        try (ZipRomArchive archive = open(Paths.get(path.substring(0, end)))) {
+            return end < path.length() ? archive.load(path.substring(end + 1)) : archive.loadFirst();
+        }
+    }
+
+    /**
+     * @return .zip 之后的位置，不是压缩包路径时为-1
+     */
+    private static int archiveEnd(String path) {
+        String lower = path.toLowerCase(Locale.ROOT);
+        int separator = lower.indexOf(".zip" + ENTRY_SEPARATOR);
+        if (separator >= 0) {
+            return separator + ".zip".length();
+        }
+        return lower.endsWith(".zip") ? path.length() : -1;
+    }
+
+    /**
+     * 关闭这个句柄，重复关闭没有影响
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed.compareAndSet(false, true)) {
+            shared.release();
+        }
+    }
+
+    public Path getPath() {
+        return shared.path;
+    }
+
+    /**
+     * @return 压缩包中所有.nes文件的完整路径
+     */
+    public List<String> getEntryNames() {
+        return shared.entryNames;
+    }
+
+    /**
+     * 按完整路径查找，找不到时按文件名（忽略大小写）查找
+     */
+    private ZipEntry findEntry(String name) {
+        ZipEntry entry = shared.entries.get(name);
+        if (entry == null) {
+            entry = shared.entriesByFileName.get(fileName(name));
+        }
+        return entry;
+    }
+
+    /**
+     * 打开压缩包中某个ROM的解压流
+     * @param name .nes文件在压缩包中的路径或文件名
+     */
+    public InputStream openStream(String name) throws IOException {
+        if (closed.get()) {
+            throw new IOException("压缩包已关闭: " + shared.path);
+        }
+        ZipEntry entry = findEntry(name);
+        if (entry == null) {
+            throw new IOException("压缩包中没有" + name + ": " + shared.path);
+        }
+        return new BufferedInputStream(shared.zipFile.getInputStream(entry));
+    }
+
+    /**
+     * 从压缩包中加载卡带
+     * @param name .nes文件在压缩包中的路径或文件名
+     */
+    public Cartridge load(String name) throws IOException {
+        try (InputStream inputStream = openStream(name)) {
+            return new Cartridge(inputStream);
+        }
+    }
+
+    /**
+     * 加载压缩包中的第一个ROM，适用于只包含一个ROM的压缩包
+     */
+    public Cartridge loadFirst() throws IOException {
+        if (shared.entryNames.isEmpty()) {
+            throw new IOException("压缩包中没有.nes文件: " + shared.path);
+        }
+        return load(shared.entryNames.get(0));
+    }
+
+    private static String fileName(String name) {
+        int slash = name.lastIndexOf('/');
+        return name.substring(slash + 1).toLowerCase(Locale.ROOT);
+    }
+}
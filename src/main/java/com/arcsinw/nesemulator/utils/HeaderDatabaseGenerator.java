@@ -0,0 +1,83 @@
+package com.arcsinw.nesemulator.utils;
+
+import com.arcsinw.nesemulator.Cartridge;
+import com.arcsinw.nesemulator.rom.HeaderDatabase;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * 从文本生成 src/main/resources/header_db.bin
+ * 每行一个ROM，# 开头为注释
+ * crc32(十六进制) mapper 镜像(H/V/S/4) 电池(0/1) prgBanks chrBanks
+ * 例如
+ * 5B135CC1 0 V 0 2 1
+ */
+public class HeaderDatabaseGenerator {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("usage: HeaderDatabaseGenerator <input.txt> <header_db.bin>");
+            return;
+        }
+
+        // 按有符号int排序，与 HeaderDatabase 中的二分查找一致
+        TreeMap<Integer, int[]> records = new TreeMap<>();
+        List<String> lines = Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8);
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] columns = line.split("\\s+");
+            int crc32 = (int) Long.parseLong(columns[0], 16);
+            int mapperNo = Integer.parseInt(columns[1]);
+            int flags = parseMirror(columns[2]).getKey() & HeaderDatabase.FLAG_MIRROR_MASK;
+            if (columns[3].equals("1")) {
+                flags |= HeaderDatabase.FLAG_BATTERY;
+            }
+            int prgBanks = Integer.parseInt(columns[4]);
+            int chrBanks = Integer.parseInt(columns[5]);
+
+            records.put(crc32, new int[] {mapperNo, prgBanks, chrBanks, flags});
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(args[1])))) {
+            out.writeInt(HeaderDatabase.MAGIC);
+            out.writeInt(HeaderDatabase.VERSION);
+            out.writeInt(records.size());
+            for (Integer crc32 : new ArrayList<>(records.keySet())) {
+                int[] record = records.get(crc32);
+                out.writeInt(crc32);
+                out.writeShort(record[0]);
+                out.writeShort(record[1]);
+                out.writeShort(record[2]);
+                out.writeByte(record[3]);
+                out.writeByte(0);
+            }
+        }
+
+        System.out.println(records.size() + " records");
+    }
+
+    private static Cartridge.Mirror parseMirror(String s) {
+        switch (s) {
+            case "V":
+                return Cartridge.Mirror.Vertical;
+            case "S":
+                return Cartridge.Mirror.SingleScreenLower;
+            case "4":
+                return Cartridge.Mirror.FourScreen;
+            default:
+                return Cartridge.Mirror.Horizontal;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.arcsinw.nesemulator.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * 不依赖java.awt的PNG编码器，输出8位调色板图像
+ * NES的画面本身就是调色板索引，不需要先转换成RGB
+ */
+public final class PngEncoder {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private static final int COLOR_TYPE_INDEXED = 3;
+
+    private PngEncoder() {
+    }
+
+    /**
+     * @param indices 每个像素的调色板索引 [height][width]
+     * @param palette 每种颜色的 { r, g, b }，最多256种，超出范围的索引按 palette.length 取模
+     */
+    public static void write(byte[][] indices, int[][] palette, OutputStream outputStream) throws IOException {
+        if (palette.length == 0 || palette.length > 256) {
+            throw new Error("palette must have 1 - 256 colors");
+        }
+        int height = indices.length;
+        int width = height == 0 ? 0 : indices[0].length;
+
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(8);
+        headerData.writeByte(COLOR_TYPE_INDEXED);
+        // 压缩，过滤，隔行
+        headerData.writeByte(0);
+        headerData.writeByte(0);
+        headerData.writeByte(0);
+        writeChunk(out, "IHDR", header.toByteArray());
+
+        byte[] colors = new byte[palette.length * 3];
+        for (int i = 0; i < palette.length; i++) {
+            colors[i * 3] = (byte) palette[i][0];
+            colors[i * 3 + 1] = (byte) palette[i][1];
+            colors[i * 3 + 2] = (byte) palette[i][2];
+        }
+        writeChunk(out, "PLTE", colors);
+
+        // 每行前面是过滤类型0（不过滤）
+        ByteArrayOutputStream image = new ByteArrayOutputStream(height * (width + 1) / 4);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(image, deflater);
+        byte[] row = new byte[width + 1];
+        for (byte[] line : indices) {
+            for (int x = 0; x < width; x++) {
+                row[x + 1] = (byte) ((line[x] & 0x00FF) % palette.length);
+            }
+            deflaterOutputStream.write(row);
+        }
+        deflaterOutputStream.finish();
+        deflater.end();
+        writeChunk(out, "IDAT", image.toByteArray());
+
+        writeChunk(out, "IEND", new byte[0]);
+        out.flush();
+    }
+
+    /**
+     * 长度 类型 内容 CRC（类型和内容）
+     */
+    private static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc32 = new CRC32();
+        crc32.update(typeBytes);
+        crc32.update(data);
+
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc32.getValue());
+    }
+}
@@ -0,0 +1,123 @@
+import com.arcsinw.nesemulator.Console;
+import com.arcsinw.nesemulator.Observation;
+import com.arcsinw.nesemulator.rl.BatchedEnvironment;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 批量环境的正确性和速度
+ * 1. 1个和多个工作线程，同样的动作序列得到的观察值和奖励必须相同（全尺寸和84x84）
+ * 2. step() 在调用线程和工作线程中都不分配内存
+ * 3. 统计每秒的env-step数
+ */
+public class BatchedEnvironmentBenchmark {
+
+    private static final int COUNT = 8;
+    private static final int FRAME_SKIP = 4;
+    private static final int STEPS = 60;
+    private static final int TIMING_STEPS = 200;
+
+    /**
+     * nestest 在 $0000 附近保存测试结果，作为奖励只用来比较
+     */
+    private static BatchedEnvironment create(Console template, int threads, int width, int height) {
+        BatchedEnvironment environment = new BatchedEnvironment(template, COUNT, FRAME_SKIP, true, threads,
+                Observation.Format.GRAYSCALE, width, height);
+        environment.addReward(0x0000, 2, 1.0f);
+        environment.setMaxEpisodeSteps(25);
+        environment.reset();
+        return environment;
+    }
+
+    private static long[] run(BatchedEnvironment environment, long seed) {
+        Random random = new Random(seed);
+        int[] actions = new int[COUNT];
+        long[] hashes = new long[STEPS];
+        byte[] observations = new byte[COUNT * environment.getObservationSize()];
+        for (int step = 0; step < STEPS; step++) {
+            for (int k = 0; k < COUNT; k++) {
+                // 偶尔按Start，让nestest开始运行
+                actions[k] = random.nextInt(8) == 0 ? 0x08 : random.nextInt(256) & 0xF3;
+            }
+            environment.step(actions);
+
+            ByteBuffer buffer = environment.getObservations().duplicate();
+            buffer.clear();
+            buffer.get(observations);
+            hashes[step] = Arrays.hashCode(observations) * 31L
+                    + Arrays.hashCode(environment.getRewards()) * 17L
+                    + Arrays.hashCode(environment.getDones());
+        }
+        return hashes;
+    }
+
+    /**
+     * @return 当前线程和所有工作线程分配的字节数
+     */
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("env-worker-")) {
+                total += bean.getThreadAllocatedBytes(thread.getId());
+            }
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Console template = new Console("/nestest.nes");
+        for (int i = 0; i < 10; i++) {
+            template.stepFrame();
+        }
+
+        int threads = Math.max(Runtime.getRuntime().availableProcessors(), 4);
+        boolean deterministic = true;
+        for (int[] size : new int[][]{{BatchedEnvironment.WIDTH, BatchedEnvironment.HEIGHT}, {84, 84}}) {
+            long[] serial;
+            long[] parallel;
+            try (BatchedEnvironment environment = create(template, 1, size[0], size[1])) {
+                serial = run(environment, 1);
+            }
+            try (BatchedEnvironment environment = create(template, threads, size[0], size[1])) {
+                parallel = run(environment, 1);
+            }
+            boolean match = Arrays.equals(serial, parallel);
+            deterministic &= match;
+            System.out.println(String.format("%s %dx%d: %d threads match 1 thread over %d steps",
+                    match ? "PASS" : "FAIL", size[0], size[1], threads, STEPS));
+        }
+
+        boolean noAllocation;
+        try (BatchedEnvironment environment = create(template, Runtime.getRuntime().availableProcessors(), 84, 84)) {
+            int[] actions = new int[COUNT];
+            for (int i = 0; i < TIMING_STEPS; i++) {
+                environment.step(actions);
+            }
+
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < TIMING_STEPS; i++) {
+                actions[i % COUNT] = i & 0xFF;
+                environment.step(actions);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            allocated = allocatedBytes() - allocated;
+
+            // allocatedBytes() 本身会分配一些
+            noAllocation = allocated < 64 * 1024;
+            System.out.println(String.format("%s allocated %d bytes in %d steps", noAllocation ? "PASS" : "FAIL", allocated, TIMING_STEPS));
+            System.out.println(String.format("K=%d frameSkip=%d 84x84: %.0f env-steps/s, %.0f frames/s on %d cores",
+                    COUNT, FRAME_SKIP, COUNT * TIMING_STEPS / seconds, COUNT * TIMING_STEPS * FRAME_SKIP / seconds,
+                    Runtime.getRuntime().availableProcessors()));
+        }
+
+        if (!deterministic || !noAllocation) {
+            throw new Error("批量环境的结果不正确");
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import com.arcsinw.nesemulator.Cartridge;
+import com.arcsinw.nesemulator.Console;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * MMC3 扫描线IRQ必须连续触发：
+ * 用一个最小的MMC3 ROM，IRQ处理程序把 $0010 加1，确认中断后重新启用，RTI返回
+ * 如果CPU入栈的P已经设置了I，RTI之后中断一直被禁用，只会触发第一次
+ */
+public class MMC3IrqTest {
+
+    private static final int PRG_SIZE = 32 * 1024;
+    private static final int CHR_SIZE = 8 * 1024;
+
+    /**
+     * 每 LATCH + 1 条扫描线触发一次
+     */
+    private static final int LATCH = 16;
+
+    private static final int[] RESET = {
+            0x78,                   // SEI
+            0xD8,                   // CLD
+            0xA2, 0xFF,             // LDX #$FF
+            0x9A,                   // TXS
+            0xA9, 0x08,             // LDA #$08     精灵使用 $1000 的图案表，A12 每条扫描线上升一次
+            0x8D, 0x00, 0x20,       // STA $2000
+            0xA9, 0x18,             // LDA #$18     显示背景和精灵
+            0x8D, 0x01, 0x20,       // STA $2001
+            0xA9, LATCH,            // LDA #LATCH
+            0x8D, 0x00, 0xC0,       // STA $C000    latch
+            0x8D, 0x01, 0xC0,       // STA $C001    reload
+            0x8D, 0x01, 0xE0,       // STA $E001    启用IRQ
+            0x58,                   // CLI
+            0x4C, 0x1B, 0xE0        // $E01B: JMP $E01B
+    };
+
+    private static final int[] IRQ = {
+            0xE6, 0x10,             // INC $10
+            0x8D, 0x00, 0xE0,       // STA $E000    确认中断
+            0x8D, 0x01, 0xE0,       // STA $E001    重新启用
+            0x40                    // RTI
+    };
+
+    private static final int RESET_ADDRESS = 0xE000;
+    private static final int IRQ_ADDRESS = 0xE040;
+    private static final int NMI_ADDRESS = 0xE050;
+
+    private static byte[] createRom() {
+        byte[] rom = new byte[16 + PRG_SIZE + CHR_SIZE];
+        byte[] header = {'N', 'E', 'S', 0x1A, PRG_SIZE / 0x4000, CHR_SIZE / 0x2000, 0x40, 0x00};
+        System.arraycopy(header, 0, rom, 0, header.length);
+
+        // $E000 - $FFFF 固定为最后一个8KB bank
+        int base = 16 + PRG_SIZE - 0x2000;
+        put(rom, base + RESET_ADDRESS - 0xE000, RESET);
+        put(rom, base + IRQ_ADDRESS - 0xE000, IRQ);
+        put(rom, base + NMI_ADDRESS - 0xE000, new int[]{0x40});
+        put(rom, base + 0x1FFA, new int[]{
+                NMI_ADDRESS & 0xFF, NMI_ADDRESS >>> 8,
+                RESET_ADDRESS & 0xFF, RESET_ADDRESS >>> 8,
+                IRQ_ADDRESS & 0xFF, IRQ_ADDRESS >>> 8});
+        return rom;
+    }
+
+    private static void put(byte[] rom, int offset, int[] code) {
+        for (int i = 0; i < code.length; i++) {
+            rom[offset + i] = (byte) code[i];
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Console console = new Console(new Cartridge(new ByteArrayInputStream(createRom())));
+
+        // 第一帧从pre-render扫描线中间开始，之后每一帧的次数相同
+        console.stepFrame();
+        int[] counts = new int[3];
+        for (int i = 0; i < counts.length; i++) {
+            int before = console.getBus().cpuRAM[0x10] & 0x00FF;
+            console.stepFrame();
+            counts[i] = ((console.getBus().cpuRAM[0x10] & 0x00FF) - before) & 0x00FF;
+        }
+
+        int expected = 240 / (LATCH + 1);
+        boolean passed = true;
+        for (int i = 0; i < counts.length; i++) {
+            boolean ok = counts[i] >= expected && counts[i] <= expected + 1;
+            passed &= ok;
+            System.out.println(String.format("%s frame %d: %d IRQs, expected %d", ok ? "PASS" : "FAIL", i + 1, counts[i], expected));
+        }
+
+        if (!passed) {
+            throw new Error("MMC3 IRQ没有连续触发");
+        }
+    }
+}
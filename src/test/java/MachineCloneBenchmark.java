@@ -0,0 +1,109 @@
+import com.arcsinw.nesemulator.CPU;
+import com.arcsinw.nesemulator.CPUBus;
+import com.arcsinw.nesemulator.Cartridge;
+import com.arcsinw.nesemulator.PPU;
+import com.arcsinw.nesemulator.SaveState;
+import com.arcsinw.nesemulator.StateHash;
+import com.arcsinw.nesemulator.input.Joypad;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 机器复制的正确性和速度
+ * 1. clone() 和 copyInto() 得到的机器用同样的输入运行N帧，每一帧的状态hash和画面必须和原机器相同
+ * 2. 统计 copyInto()，clone() 的平均时间，和 SaveState 保存 + 恢复 对比
+ */
+public class MachineCloneBenchmark {
+
+    private static final String[] ROMS = {"/nestest.nes", "/cpu_dummy_writes_oam.nes", "/cpu_dummy_writes_ppumem.nes"};
+
+    private static final int WARMUP_FRAMES = 30;
+    private static final int FRAMES = 60;
+    private static final int TIMING_ROUNDS = 20000;
+
+    private static CPUBus createBus(String rom) throws IOException {
+        CPUBus bus = new CPUBus();
+        bus.setCpu(new CPU());
+        bus.setPpu(new PPU());
+        bus.setCartridge(new Cartridge(rom));
+        bus.reset();
+        return bus;
+    }
+
+    /**
+     * 第5帧按下Start，第15帧松开
+     */
+    private static long[] runFrames(CPUBus bus) {
+        StateHash stateHash = new StateHash(bus);
+        long[] hashes = new long[FRAMES];
+        for (int frame = 0; frame < FRAMES; frame++) {
+            if (frame == 5 || frame == 15) {
+                bus.joypad1.setButton(Joypad.ButtonFlag.Start, frame == 5 ? 1 : 0);
+            }
+            bus.runFrame();
+            hashes[frame] = stateHash.compute() * 31 + Arrays.deepHashCode(bus.ppu.getScreen());
+        }
+        return hashes;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean passed = true;
+        for (String rom : ROMS) {
+            CPUBus bus = createBus(rom);
+            for (int i = 0; i < WARMUP_FRAMES; i++) {
+                bus.runFrame();
+            }
+
+            CPUBus cloned = bus.clone();
+            // 目标机器先运行到别的状态，复制必须完全覆盖
+            CPUBus target = createBus(rom);
+            for (int i = 0; i < WARMUP_FRAMES * 2; i++) {
+                target.runFrame();
+            }
+            bus.copyInto(target);
+
+            long[] expected = runFrames(bus);
+            long[] fromClone = runFrames(cloned);
+            long[] fromCopy = runFrames(target);
+            boolean ok = Arrays.equals(expected, fromClone) && Arrays.equals(expected, fromCopy);
+            passed &= ok;
+
+            // 计时
+            long copyTime = 0;
+            long cloneTime = 0;
+            long saveStateTime = 0;
+            SaveState state = new SaveState(bus);
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < TIMING_ROUNDS; i++) {
+                    bus.copyInto(target);
+                }
+                copyTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < TIMING_ROUNDS; i++) {
+                    cloned = bus.clone();
+                }
+                cloneTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < TIMING_ROUNDS; i++) {
+                    state.capture();
+                    state.restore();
+                }
+                saveStateTime = System.nanoTime() - start;
+            }
+
+            System.out.println(String.format("%s %s: copyInto %.2f us (%.0f/s), clone %.2f us (%.0f/s), SaveState %.2f us",
+                    ok ? "PASS" : "FAIL", rom,
+                    copyTime / 1e3 / TIMING_ROUNDS, TIMING_ROUNDS / (copyTime / 1e9),
+                    cloneTime / 1e3 / TIMING_ROUNDS, TIMING_ROUNDS / (cloneTime / 1e9),
+                    saveStateTime / 1e3 / TIMING_ROUNDS));
+        }
+
+        if (!passed) {
+            throw new Error("复制的机器运行结果不一致");
+        }
+    }
+}
@@ -0,0 +1,41 @@
+import com.arcsinw.nesemulator.CPU;
+import com.arcsinw.nesemulator.CPUBus;
+import com.arcsinw.nesemulator.Cartridge;
+import com.arcsinw.nesemulator.Movie;
+import com.arcsinw.nesemulator.MoviePlayer;
+import com.arcsinw.nesemulator.PPU;
+
+import java.io.IOException;
+
+/**
+ * 没有关键帧的空录像在播放时给出明确的错误，而不是IndexOutOfBoundsException
+ */
+public class MoviePlayerTest {
+
+    public static void main(String[] args) throws IOException {
+        CPUBus bus = new CPUBus();
+        bus.setCpu(new CPU());
+        bus.setPpu(new PPU());
+        bus.setCartridge(new Cartridge("/nestest.nes"));
+
+        Movie movie = new Movie(bus.getCartridge().getRomImage().getSha1(), 60);
+        String result;
+        boolean passed;
+        try {
+            new MoviePlayer(bus, movie);
+            result = "no error";
+            passed = false;
+        } catch (Error e) {
+            result = e.getMessage();
+            passed = e.getMessage().contains("空");
+        } catch (RuntimeException e) {
+            result = e.toString();
+            passed = false;
+        }
+        System.out.println(String.format("%s empty movie: %s", passed ? "PASS" : "FAIL", result));
+
+        if (!passed) {
+            throw new Error("空录像的错误不明确");
+        }
+    }
+}
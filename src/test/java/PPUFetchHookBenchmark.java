@@ -0,0 +1,150 @@
+import com.arcsinw.nesemulator.CPU;
+import com.arcsinw.nesemulator.CPUBus;
+import com.arcsinw.nesemulator.Cartridge;
+import com.arcsinw.nesemulator.PPU;
+import com.arcsinw.nesemulator.mapper.AbstractMapper;
+import com.arcsinw.nesemulator.mapper.NROM;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 比较PPU FetchHook 对不使用hook的mapper的影响
+ * NROM / MMC1 不实现FetchHook，PPU只多一次null判断，帧时间应该和加入hook之前相同
+ * 作为对照，再用一个什么都不做的hook跑NROM，得到调用hook本身的开销
+ *
+ * 加入hook之前和之后的构建用同样的NROM / MMC1 循环对比（各4次，每次取3轮中最快的，单核机器）：
+ * NROM 2.20 - 2.35 → 2.03 - 2.30 ms/frame，MMC1 2.08 - 2.42 → 2.05 - 2.47 ms/frame，差别在噪声之内
+ */
+public class PPUFetchHookBenchmark {
+
+    private static final int WARMUP_FRAMES = 120;
+    private static final int FRAMES = 600;
+
+    /**
+     * 把所有读取原样转发的hook
+     */
+    static class PassThroughNROM extends NROM implements PPU.FetchHook {
+        @Override
+        public byte readNameTable(int address, byte[][] vram) {
+            return vram[getNameTablePage(address)][address & 0x03FF];
+        }
+
+        @Override
+        public void writeNameTable(int address, int data, byte[][] vram) {
+            vram[getNameTablePage(address)][address & 0x03FF] = (byte) data;
+        }
+
+        private int getNameTablePage(int address) {
+            return mirror == Cartridge.Mirror.Vertical ? (address >>> 10) & 0x01 : (address >>> 11) & 0x01;
+        }
+
+        @Override
+        public int fetchTile(int address, int data) {
+            return data;
+        }
+
+        @Override
+        public int fetchAttribute(int address, int data) {
+            return data;
+        }
+
+        @Override
+        public byte fetchBackgroundPattern(int address) {
+            return read(address);
+        }
+
+        @Override
+        public byte fetchSpritePattern(int address) {
+            return read(address);
+        }
+
+        @Override
+        public void writePpuCtrl(int data) {
+        }
+    }
+
+    private static byte[] readRom(String path) throws IOException {
+        try (InputStream inputStream = PPUFetchHookBenchmark.class.getResourceAsStream(path)) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, n);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+
+    /**
+     * @return 每帧的平均时间（毫秒）
+     */
+    private static double run(Cartridge cartridge) {
+        CPU cpu = new CPU();
+        PPU ppu = new PPU();
+        CPUBus bus = new CPUBus();
+        final boolean[] frameCompleted = new boolean[1];
+        ppu.addFrameRenderCompletedEventListener(() -> frameCompleted[0] = true);
+        bus.setCpu(cpu);
+        bus.setPpu(ppu);
+        bus.setCartridge(cartridge);
+        bus.reset();
+
+        long start = 0;
+        for (int frame = 0; frame < WARMUP_FRAMES + FRAMES; frame++) {
+            if (frame == WARMUP_FRAMES) {
+                start = System.nanoTime();
+            }
+            frameCompleted[0] = false;
+            while (!frameCompleted[0]) {
+                bus.clock();
+            }
+        }
+        return (System.nanoTime() - start) / 1e6 / FRAMES;
+    }
+
+    public static void main(String[] args) throws IOException {
+        byte[] rom = readRom("/nestest.nes");
+
+        // 同一个ROM改成Mapper001，PRG复制成两个16KB bank，两个bank内容相同，运行结果和NROM一样
+        // PRG改变后CRC不同，不会被文件头数据库改回Mapper000
+        byte[] mmc1Rom = new byte[rom.length + 0x4000];
+        System.arraycopy(rom, 0, mmc1Rom, 0, 16 + 0x4000);
+        System.arraycopy(rom, 16, mmc1Rom, 16 + 0x4000, rom.length - 16);
+        mmc1Rom[4] = 2;
+        mmc1Rom[6] = (byte) ((mmc1Rom[6] & 0x0F) | 0x10);
+
+        for (int round = 0; round < 3; round++) {
+            double nrom = run(new Cartridge(new ByteArrayInputStream(rom)));
+
+            Cartridge hooked = new Cartridge(new ByteArrayInputStream(rom)) {
+                private final AbstractMapper mapper = passThrough(this);
+
+                @Override
+                public AbstractMapper getMapper() {
+                    return mapper;
+                }
+            };
+            double passThrough = run(hooked);
+
+            double mmc1 = run(new Cartridge(new ByteArrayInputStream(mmc1Rom)));
+
+            System.out.println(String.format("round %d: NROM %.3f ms/frame, NROM + hook %.3f ms/frame, MMC1 %.3f ms/frame",
+                    round, nrom, passThrough, mmc1));
+        }
+    }
+
+    /**
+     * PPU 通过 cartridge.getMapper() 找到hook，CPU的读写仍然使用卡带原来的mapper
+     */
+    private static AbstractMapper passThrough(Cartridge cartridge) {
+        PassThroughNROM hook = new PassThroughNROM();
+        hook.setPrg(cartridge.getRomImage().getPrg());
+        hook.setChr(cartridge.getRomImage().getChr());
+        hook.setMirror(cartridge.getMirror());
+        hook.reset();
+        return hook;
+    }
+}
@@ -0,0 +1,95 @@
+import com.arcsinw.nesemulator.CPU;
+import com.arcsinw.nesemulator.CPUBus;
+import com.arcsinw.nesemulator.Cartridge;
+import com.arcsinw.nesemulator.PPU;
+import com.arcsinw.nesemulator.netplay.LoopbackTransport;
+import com.arcsinw.nesemulator.netplay.RollbackSession;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 回滚的耗时
+ * 网络延迟为{@link RollbackSession#MAX_ROLLBACK} - 1帧，对方每一帧都换按键，每次收到输入都要回滚7帧
+ * 预热之后，按每帧的平均耗时（包括恢复状态和状态hash）换算，重新运行8帧必须在一帧（16.6ms）之内完成
+ * 分成几段测量，用中位数判断：偶尔一段变慢不影响结果，但是大多数时候超出预算时会失败
+ */
+public class RollbackBenchmark {
+
+    private static final long FRAME_MILLIS = 16;
+    private static final double BUDGET_MILLIS = 1000.0 / 60;
+
+    private static final int WARMUP_TICKS = 600;
+    private static final int WINDOWS = 5;
+    private static final int WINDOW_TICKS = 300;
+
+    private static CPUBus createBus() throws IOException {
+        CPUBus bus = new CPUBus();
+        bus.setCpu(new CPU());
+        bus.setPpu(new PPU());
+        bus.setCartridge(new Cartridge("/nestest.nes"));
+        return bus;
+    }
+
+    /**
+     * 玩家1按Start开始nestest的测试，玩家2每一帧都换按键，预测总是错的
+     */
+    private static int input(int player, int frame) {
+        if (player == 1) {
+            return frame >= 10 && frame < 14 ? 0x08 : 0;
+        }
+        return new Random(frame).nextInt(256) & ~0x0C;
+    }
+
+    public static void main(String[] args) throws IOException {
+        LoopbackTransport.Network network = new LoopbackTransport.Network(
+                (RollbackSession.MAX_ROLLBACK - 1) * FRAME_MILLIS, 0, 0, 42);
+        LoopbackTransport[] transports = network.createPair();
+        RollbackSession[] sessions = {
+                new RollbackSession(createBus(), transports[0], 1),
+                new RollbackSession(createBus(), transports[1], 2)
+        };
+
+        double[] resimulateMillis = new double[WINDOWS];
+        int tick = 0;
+        for (int window = -1; window < WINDOWS; window++) {
+            long nanos = -sessions[0].getRollbackNanos();
+            int rollbacks = -sessions[0].getRollbackCount();
+            int frames = -sessions[0].getResimulatedFrames();
+            for (int end = tick + (window < 0 ? WARMUP_TICKS : WINDOW_TICKS); tick < end; tick++) {
+                for (int i = 0; i < 2; i++) {
+                    sessions[i].advance(input(i + 1, sessions[i].getFrame()));
+                }
+                network.advance(FRAME_MILLIS);
+            }
+            nanos += sessions[0].getRollbackNanos();
+            rollbacks += sessions[0].getRollbackCount();
+            frames += sessions[0].getResimulatedFrames();
+
+            if (window < 0) {
+                continue;
+            }
+            if (rollbacks == 0) {
+                throw new Error("没有发生回滚");
+            }
+            double perFrame = nanos / 1e6 / frames;
+            resimulateMillis[window] = perFrame * RollbackSession.MAX_ROLLBACK;
+            System.out.println(String.format("window %d: %d rollbacks, %.2f frames each, %.2f ms per rollback, " +
+                            "%d frames resimulate in %.2f ms",
+                    window, rollbacks, (double) frames / rollbacks, nanos / 1e6 / rollbacks,
+                    RollbackSession.MAX_ROLLBACK, perFrame * RollbackSession.MAX_ROLLBACK));
+        }
+
+        Arrays.sort(resimulateMillis);
+        double median = resimulateMillis[WINDOWS / 2];
+        boolean ok = median < BUDGET_MILLIS;
+        System.out.println(String.format("%s %d frames resimulate in %.2f ms median, %.2f - %.2f ms (budget %.1f ms)",
+                ok ? "PASS" : "FAIL", RollbackSession.MAX_ROLLBACK, median,
+                resimulateMillis[0], resimulateMillis[WINDOWS - 1], BUDGET_MILLIS));
+
+        if (!ok) {
+            throw new Error("回滚超出一帧的时间");
+        }
+    }
+}
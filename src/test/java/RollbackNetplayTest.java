@@ -0,0 +1,126 @@
+import com.arcsinw.nesemulator.CPU;
+import com.arcsinw.nesemulator.CPUBus;
+import com.arcsinw.nesemulator.Cartridge;
+import com.arcsinw.nesemulator.PPU;
+import com.arcsinw.nesemulator.netplay.LoopbackTransport;
+import com.arcsinw.nesemulator.netplay.RollbackSession;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 两个回滚联机的模拟器通过模拟网络（延迟，抖动，丢包）连接
+ * 两边确认过的每一帧状态hash必须相同，同时统计重新运行8帧需要的时间
+ */
+public class RollbackNetplayTest {
+
+    private static final int FRAMES = 600;
+    private static final long FRAME_MILLIS = 16;
+
+    private static CPUBus createBus() throws IOException {
+        CPUBus bus = new CPUBus();
+        bus.setCpu(new CPU());
+        bus.setPpu(new PPU());
+        bus.setCartridge(new Cartridge("/nestest.nes"));
+        return bus;
+    }
+
+    /**
+     * 每个玩家的输入只由帧号决定，和网络无关
+     */
+    private static int input(int player, int frame) {
+        if (player == 1 && frame >= 10 && frame < 14) {
+            // 开始nestest的测试
+            return 0x08;
+        }
+        Random random = new Random(frame * 31L + player);
+        return random.nextInt(4) == 0 ? random.nextInt(256) & ~0x0C : 0;
+    }
+
+    /**
+     * 写 $4016 同时选通两个手柄: 先从 $4017 读几位打乱玩家2的移位位置，选通之后两个手柄都必须从A开始
+     */
+    private static boolean checkStrobe() throws IOException {
+        CPUBus bus = createBus();
+        int[] buttons = {0xA5, 0x3C};
+        bus.joypad1.setButtons(buttons[0]);
+        bus.joypad2.setButtons(buttons[1]);
+        for (int i = 0; i < 3; i++) {
+            bus.read(0x4017);
+        }
+
+        bus.write(0x4016, 1);
+        bus.write(0x4016, 0);
+        int[] read = new int[2];
+        for (int bit = 0; bit < 8; bit++) {
+            read[0] |= (bus.read(0x4016) & 0x01) << bit;
+            read[1] |= (bus.read(0x4017) & 0x01) << bit;
+        }
+
+        boolean ok = read[0] == buttons[0] && read[1] == buttons[1];
+        System.out.println(String.format("%s strobe: $4016 %02X (expected %02X), $4017 %02X (expected %02X)",
+                ok ? "PASS" : "FAIL", read[0], buttons[0], read[1], buttons[1]));
+        return ok;
+    }
+
+    private static boolean run(long latency, long jitter, double loss) throws IOException {
+        LoopbackTransport.Network network = new LoopbackTransport.Network(latency, jitter, loss, 42);
+        LoopbackTransport[] transports = network.createPair();
+        RollbackSession[] sessions = {
+                new RollbackSession(createBus(), transports[0], 1),
+                new RollbackSession(createBus(), transports[1], 2)
+        };
+        List<Map<Integer, Long>> checksums = Arrays.asList(new HashMap<>(), new HashMap<>());
+
+        int ticks = 0;
+        while (sessions[0].getConfirmedFrame() < FRAMES || sessions[1].getConfirmedFrame() < FRAMES) {
+            for (int i = 0; i < 2; i++) {
+                RollbackSession session = sessions[i];
+                session.advance(input(i + 1, session.getFrame()));
+                for (int f = Math.max(0, session.getFrame() - 16); f <= session.getConfirmedFrame(); f++) {
+                    checksums.get(i).put(f, session.getChecksum(f));
+                }
+            }
+            network.advance(FRAME_MILLIS);
+            ticks++;
+        }
+
+        int compared = 0;
+        boolean ok = true;
+        for (Map.Entry<Integer, Long> entry : checksums.get(0).entrySet()) {
+            Long other = checksums.get(1).get(entry.getKey());
+            if (other != null) {
+                compared++;
+                if (!other.equals(entry.getValue())) {
+                    ok = false;
+                }
+            }
+        }
+        ok &= compared > FRAMES / 2;
+
+        long nanos = sessions[0].getRollbackNanos() + sessions[1].getRollbackNanos();
+        int resimulated = sessions[0].getResimulatedFrames() + sessions[1].getResimulatedFrames();
+        System.out.println(String.format("%s latency %d ms, jitter %d ms, loss %.0f%%: %d ticks, %d frames compared, " +
+                        "%d rollbacks, %d frames resimulated, 8 frames resimulate in %.2f ms",
+                ok ? "PASS" : "FAIL", latency, jitter, loss * 100, ticks, compared,
+                sessions[0].getRollbackCount() + sessions[1].getRollbackCount(), resimulated,
+                resimulated == 0 ? 0 : nanos / 1e6 / resimulated * 8));
+        return ok;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean passed = checkStrobe();
+        passed &= run(0, 0, 0);
+        passed &= run(50, 0, 0);
+        passed &= run(40, 30, 0.1);
+        passed &= run(100, 50, 0.3);
+
+        if (!passed) {
+            throw new Error("两边的状态不一致");
+        }
+    }
+}
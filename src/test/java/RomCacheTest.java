@@ -0,0 +1,54 @@
+import com.arcsinw.nesemulator.Cartridge;
+import com.arcsinw.nesemulator.rom.RomCache;
+import com.arcsinw.nesemulator.rom.RomImage;
+import com.arcsinw.nesemulator.rom.RomIndex;
+import com.arcsinw.nesemulator.rom.RomIndexer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * 1. PRG/CHR拼接后内容相同、分界不同的两个ROM，SHA-1不同，不会共享同一个RomImage
+ * 2. RomIndexer流式计算的SHA-1和加载卡带时RomCache计算的相同
+ */
+public class RomCacheTest {
+
+    private static boolean checkSplit() {
+        byte[] bytes = new byte[0x6000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31 + 7);
+        }
+
+        RomImage a = RomCache.intern(Arrays.copyOfRange(bytes, 0, 0x4000), Arrays.copyOfRange(bytes, 0x4000, 0x6000));
+        RomImage b = RomCache.intern(Arrays.copyOfRange(bytes, 0, 0x2000), Arrays.copyOfRange(bytes, 0x2000, 0x6000));
+
+        boolean passed = a != b && !a.getSha1().equals(b.getSha1())
+                && a.getPrg().length == 0x4000 && b.getPrg().length == 0x2000;
+        System.out.println(String.format("%s split: %s / %s", passed ? "PASS" : "FAIL", a.getSha1(), b.getSha1()));
+        return passed;
+    }
+
+    private static boolean checkIndex() throws IOException {
+        Cartridge cartridge = new Cartridge("/nestest.nes");
+        RomIndex.Entry entry;
+        try (InputStream inputStream = RomCacheTest.class.getResourceAsStream("/nestest.nes")) {
+            entry = RomIndexer.index("nestest.nes", 0, 0, inputStream);
+        }
+
+        String sha1 = cartridge.getRomImage().getSha1();
+        boolean passed = entry != null && entry.sha1.equals(sha1);
+        System.out.println(String.format("%s index: %s / %s", passed ? "PASS" : "FAIL",
+                entry == null ? null : entry.sha1, sha1));
+        return passed;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean passed = checkSplit();
+        passed &= checkIndex();
+
+        if (!passed) {
+            throw new Error("ROM的SHA-1不正确");
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import com.arcsinw.nesemulator.rom.RomIndex;
+import com.arcsinw.nesemulator.rom.RomIndexer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * 目录中有一个文件头不合法的ROM（NES 2.0 指数表示的PRG大小超过上限）时，
+ * 只有这个文件计入失败，其他ROM照常索引，扫描不会中断
+ */
+public class RomIndexerTest {
+
+    private static final int GOOD_ROMS = 3;
+
+    private static byte[] malformedRom() {
+        byte[] rom = new byte[16 + 0x4000];
+        byte[] header = {'N', 'E', 'S', 0x1A,
+                (byte) 0xFC,    // PRG 指数表示法 2^63
+                0x00, 0x00,
+                0x08,           // NES 2.0
+                0x00,
+                0x0F};          // PRG 大小的高4位为F: 使用指数表示法
+        System.arraycopy(header, 0, rom, 0, header.length);
+        return rom;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path root = Files.createTempDirectory("rom-index");
+        try {
+            for (int i = 0; i < GOOD_ROMS; i++) {
+                Path directory = Files.createDirectories(root.resolve("dir" + i));
+                try (InputStream inputStream = RomIndexerTest.class.getResourceAsStream("/nestest.nes")) {
+                    Files.copy(inputStream, directory.resolve("nestest.nes"));
+                }
+            }
+            Files.write(root.resolve("dir1").resolve("malformed.nes"), malformedRom());
+
+            RomIndexer indexer = new RomIndexer();
+            RomIndex index = indexer.update(new RomIndex(), Collections.singletonList(root));
+
+            boolean passed = index.size() == GOOD_ROMS
+                    && indexer.getHashedCount() == GOOD_ROMS
+                    && indexer.getFailedCount() == 1;
+            System.out.println(String.format("%s %d entries, %d hashed, %d failed",
+                    passed ? "PASS" : "FAIL", index.size(), indexer.getHashedCount(), indexer.getFailedCount()));
+
+            if (!passed) {
+                throw new Error("不合法的文件头影响了其他ROM的索引");
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+}
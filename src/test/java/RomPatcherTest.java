@@ -0,0 +1,102 @@
+import com.arcsinw.nesemulator.rom.RomPatcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * UPS补丁中跳过的字节数超出目标文件时抛出IOException，
+ * 不会因为转换成int后变成负数而数组越界
+ */
+public class RomPatcherTest {
+
+    private static final int SIZE = 64;
+
+    /**
+     * BPS / UPS 的变长整数
+     */
+    private static void writeNumber(ByteArrayOutputStream out, long value) {
+        while (true) {
+            int x = (int) (value & 0x7F);
+            value >>>= 7;
+            if (value == 0) {
+                out.write(0x80 | x);
+                return;
+            }
+            out.write(x);
+            value--;
+        }
+    }
+
+    private static void writeLittleEndian(ByteArrayOutputStream out, long value) {
+        for (int i = 0; i < 4; i++) {
+            out.write((int) (value >>> (i * 8)) & 0xFF);
+        }
+    }
+
+    private static long crc32(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    /**
+     * 跳过skip字节后异或一个0x5A
+     */
+    private static byte[] upsPatch(byte[] source, byte[] target, long skip) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('U');
+        out.write('P');
+        out.write('S');
+        out.write('1');
+        writeNumber(out, source.length);
+        writeNumber(out, target.length);
+        writeNumber(out, skip);
+        out.write(0x5A);
+        out.write(0x00);
+        writeLittleEndian(out, crc32(source));
+        writeLittleEndian(out, crc32(target));
+        writeLittleEndian(out, crc32(out.toByteArray()));
+        return out.toByteArray();
+    }
+
+    private static boolean check(String name, byte[] source, byte[] patch, byte[] expected) {
+        String result;
+        boolean passed;
+        try {
+            byte[] target = RomPatcher.apply(source, new ByteArrayInputStream(patch));
+            passed = expected != null && Arrays.equals(target, expected);
+            result = "patched";
+        } catch (IOException e) {
+            passed = expected == null;
+            result = "IOException " + e.getMessage();
+        } catch (RuntimeException e) {
+            passed = false;
+            result = e.toString();
+        }
+        System.out.println(String.format("%s %s: %s", passed ? "PASS" : "FAIL", name, result));
+        return passed;
+    }
+
+    public static void main(String[] args) {
+        byte[] source = new byte[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            source[i] = (byte) i;
+        }
+        byte[] target = source.clone();
+        target[3] ^= 0x5A;
+
+        boolean passed = check("skip 3", source, upsPatch(source, target, 3), target);
+        // 转换成int是Integer.MIN_VALUE
+        passed &= check("skip 2^31", source, upsPatch(source, target, 0x80000000L), null);
+        // 转换成int是3，不能当作跳过3字节
+        passed &= check("skip 2^32 + 3", source, upsPatch(source, target, 0x100000003L), null);
+        passed &= check("skip past end", source, upsPatch(source, target, SIZE + 1), null);
+
+        if (!passed) {
+            throw new Error("UPS补丁的偏移检查不正确");
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import com.arcsinw.nesemulator.CPU;
+import com.arcsinw.nesemulator.CPUBus;
+import com.arcsinw.nesemulator.Cartridge;
+import com.arcsinw.nesemulator.PPU;
+import com.arcsinw.nesemulator.SaveState;
+import com.arcsinw.nesemulator.input.Joypad;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 存档必须逐位一致：
+ * 1. 保存后继续运行N帧，记录每一帧画面的hash
+ * 2. 恢复存档，用同样的输入再运行N帧，每一帧的hash必须相同
+ * 3. 恢复后立即保存，内容必须和原来的存档相同
+ * 同时统计保存和恢复的平均时间
+ */
+public class SaveStateTest {
+
+    private static final String[] ROMS = {"/nestest.nes", "/cpu_dummy_writes_oam.nes", "/cpu_dummy_writes_ppumem.nes"};
+
+    private static final int WARMUP_FRAMES = 30;
+    private static final int FRAMES = 120;
+    private static final int TIMING_ROUNDS = 1000;
+
+    private static CPUBus createBus(String rom) throws IOException {
+        CPUBus bus = new CPUBus();
+        bus.setCpu(new CPU());
+        bus.setPpu(new PPU());
+        bus.setCartridge(new Cartridge(rom));
+        bus.reset();
+        return bus;
+    }
+
+    /**
+     * 第10帧按下Start，第20帧松开，让nestest开始运行测试
+     */
+    private static long[] runFrames(CPUBus bus) {
+        long[] hashes = new long[FRAMES];
+        for (int frame = 0; frame < FRAMES; frame++) {
+            if (frame == 10 || frame == 20) {
+                bus.joypad1.setButton(Joypad.ButtonFlag.Start, frame == 10 ? 1 : 0);
+            }
+            bus.runFrame();
+            hashes[frame] = Arrays.deepHashCode(bus.ppu.getScreen()) * 31L + Arrays.hashCode(bus.cpuRAM);
+        }
+        return hashes;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean passed = true;
+        for (String rom : ROMS) {
+            CPUBus bus = createBus(rom);
+            for (int i = 0; i < WARMUP_FRAMES; i++) {
+                bus.runFrame();
+            }
+
+            SaveState state = new SaveState(bus);
+            state.capture();
+            byte[] saved = state.toByteArray();
+
+            long[] expected = runFrames(bus);
+            state.restore();
+            long[] actual = runFrames(bus);
+
+            // 从文件读入的存档恢复到一个新的模拟器上
+            CPUBus other = createBus(rom);
+            SaveState loaded = new SaveState(other);
+            loaded.load(saved);
+            loaded.restore();
+            long[] fromFile = runFrames(other);
+
+            state.restore();
+            state.capture();
+            boolean sameBytes = Arrays.equals(saved, state.toByteArray());
+
+            long captureTime = 0;
+            long restoreTime = 0;
+            for (int i = 0; i < TIMING_ROUNDS; i++) {
+                long start = System.nanoTime();
+                state.capture();
+                long middle = System.nanoTime();
+                state.restore();
+                restoreTime += System.nanoTime() - middle;
+                captureTime += middle - start;
+            }
+
+            boolean ok = Arrays.equals(expected, actual) && Arrays.equals(expected, fromFile) && sameBytes;
+            passed &= ok;
+            System.out.println(String.format("%s %s: %d bytes, capture %.1f us, restore %.1f us",
+                    ok ? "PASS" : "FAIL", rom, state.size(),
+                    captureTime / 1e3 / TIMING_ROUNDS, restoreTime / 1e3 / TIMING_ROUNDS));
+        }
+
+        if (!passed) {
+            throw new Error("存档恢复后的画面不一致");
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import com.arcsinw.nesemulator.rom.ZipRomArchive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 打开超过缓存上限的压缩包时，最久没有使用的压缩包被关闭，打开的文件数不会一直增加
+ * 移出缓存时还有句柄的压缩包可以继续使用，句柄关闭后才关闭
+ */
+public class ZipRomArchiveTest {
+
+    private static final int ARCHIVES = ZipRomArchive.MAX_CACHED_ARCHIVES + 8;
+
+    private static void createZip(Path path, byte[] rom) throws IOException {
+        try (ZipOutputStream outputStream = new ZipOutputStream(Files.newOutputStream(path))) {
+            outputStream.putNextEntry(new ZipEntry("roms/nestest.nes"));
+            outputStream.write(rom);
+            outputStream.closeEntry();
+        }
+    }
+
+    private static byte[] readRom() throws IOException {
+        try (InputStream inputStream = ZipRomArchiveTest.class.getResourceAsStream("/nestest.nes")) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, n);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path root = Files.createTempDirectory("zip-archives");
+        try {
+            byte[] rom = readRom();
+            Path[] paths = new Path[ARCHIVES];
+            for (int i = 0; i < ARCHIVES; i++) {
+                paths[i] = root.resolve("rom" + i + ".zip");
+                createZip(paths[i], rom);
+            }
+
+            int before = ZipRomArchive.getOpenFileCount();
+            // 第一个压缩包的句柄一直不关闭
+            ZipRomArchive held = ZipRomArchive.open(paths[0]);
+            int maxOpen = 0;
+            for (int i = 1; i < ARCHIVES; i++) {
+                try (ZipRomArchive archive = ZipRomArchive.open(paths[i])) {
+                    archive.loadFirst();
+                }
+                maxOpen = Math.max(maxOpen, ZipRomArchive.getOpenFileCount() - before);
+            }
+            int cached = ZipRomArchive.getOpenFileCount() - before;
+
+            boolean heldUsable = held.loadFirst() != null;
+            held.close();
+            int afterClose = ZipRomArchive.getOpenFileCount() - before;
+
+            // 缓存中的压缩包 + 已经移出缓存的held
+            boolean passed = maxOpen <= ZipRomArchive.MAX_CACHED_ARCHIVES + 1
+                    && cached == ZipRomArchive.MAX_CACHED_ARCHIVES + 1
+                    && heldUsable
+                    && afterClose == ZipRomArchive.MAX_CACHED_ARCHIVES;
+            System.out.println(String.format("%s %d archives, at most %d open, %d open with the first handle held, %d after closing it",
+                    passed ? "PASS" : "FAIL", ARCHIVES, maxOpen, cached, afterClose));
+
+            if (!passed) {
+                throw new Error("压缩包没有在移出缓存后关闭");
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+}